@@ -0,0 +1,131 @@
+package chip8.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+import chip8.emulator.Chip8;
+import chip8.emulator.EmulatorContext;
+import chip8.emulator.Keypad;
+
+/**Checks that steady-state emulation allocates nothing.<br>
+ * <p>Each program is warmed up, then run for several million cycles while the allocations of the running thread are measured,
+ * once stepping with {@link Chip8#cycle()}, once through {@link Chip8#runCycles(long)} and once with block translation.
+ * Any allocation in the measured run fails the check, since with many emulators in one JVM the garbage shows up as frame hitches.</p>
+ * <p>The built-in programs cover every instruction, including wrapped draws, held keys and an idle timer loop. ROM files may be passed to check them as well.
+ * Build the benchmark module, then run from the project root, exiting with status 1 if any run allocated:<br>
+ * <code>mvn -f bench/pom.xml package</code><br>
+ * <code>java -cp bench/target/benchmarks.jar chip8.bench.AllocationCheck [ROM file...]</code></p>
+ */
+public class AllocationCheck {
+	
+	/** The number of cycles run before measuring, so that measured code is compiled */
+	private static final long WARMUP_CYCLES = 2_000_000L;
+	
+	/** The number of cycles measured */
+	private static final long MEASURED_CYCLES = 5_000_000L;
+	
+	/** The key held down during every run, exercising SKP and SKNP */
+	private static final byte HELD_KEY = 0x0;
+	
+	/** Accumulates run results so they are never dead code */
+	private static volatile long sink;
+	
+	/**The ways a program is run.*/
+	private enum Mode {
+		CYCLE, RUN_CYCLES, BLOCKS
+	}//end enum Mode
+	
+	/**A named program, whose emulator is created fresh for each mode.*/
+	private static class Program {
+		
+		private final String name;
+		private final Supplier<Chip8> setup;
+		
+		private Program(String name, Supplier<Chip8> setup) {
+			this.name = name;
+			this.setup = setup;
+		}//end constructor method
+		
+	}//end class Program
+	
+	/**Checks the built-in programs and any provided ROM files, printing the bytes allocated by each run.
+	 * @param args The locations of additional ROM files to be checked
+	 */
+	public static void main(String[] args) {
+		List<Program> programs = new ArrayList<Program>();
+		programs.add(new Program("allOpcodes", () -> InterpreterBenchmarks.createEmulator(
+				0x6005, 0x610A, 0x6503, 0xA300, 0xF033, 0xF155, 0xF165, 0xF11E,
+				0xF029, 0xC23F, 0xD215, 0x8214, 0x8225, 0x8227, 0x8216, 0x821E,
+				0x8213, 0x8211, 0x8212, 0x8210, 0x2244, 0xE39E, 0x6404, 0xE4A1,
+				0x6404, 0xF515, 0xF507, 0xF518, 0x5010, 0x9010, 0x4000, 0x3005,
+				0x00E0, 0x1200, 0x00EE)));
+		programs.add(new Program("drawLoop", () -> InterpreterBenchmarks.createEmulator(
+				0x6000, 0x6100, 0xA050, 0x00E0, 0xD015, 0x7001, 0x7102, 0x8014, 0x1206)));
+		programs.add(new Program("timerWait", () -> InterpreterBenchmarks.createEmulator(
+				0x6F02, 0xFF15, 0xFF07, 0x3F00, 0x1204, 0x1200)));
+		for(String filename : args)
+			programs.add(new Program(filename, () -> loadEmulator(filename)));
+		
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		
+		boolean passed = true;
+		System.out.println(String.format(Locale.ROOT, "%-28s %-12s %16s", "Program", "Mode", "Bytes allocated"));
+		for(Program program : programs) {
+			for(Mode mode : Mode.values()) {
+				Keypad keypad = new Keypad();
+				keypad.pressKey(AllocationCheck.HELD_KEY);
+				
+				Chip8 system = program.setup.get();
+				system.attachKeypad(keypad);
+				system.setBlockCacheEnabled(mode == Mode.BLOCKS);
+				
+				run(system, mode, WARMUP_CYCLES);
+				
+				long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+				run(system, mode, MEASURED_CYCLES);
+				long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+				
+				passed &= allocated == 0;
+				System.out.println(String.format(Locale.ROOT, "%-28s %-12s %16d%s", program.name, mode, allocated, allocated == 0 ? "" : "  FAILED"));
+			}//end for
+		}//end for
+		
+		System.out.println(passed ? "Steady-state emulation is allocation-free" : "Steady-state emulation allocated");
+		if(!passed)
+			System.exit(1);
+	}//end method main
+	
+	/**Runs an emulator for a number of cycles.
+	 * @param system The emulator to be run
+	 * @param mode How the cycles are run
+	 * @param cycles The number of cycles to be run
+	 */
+	private static void run(Chip8 system, Mode mode, long cycles) {
+		if(mode == Mode.CYCLE) {
+			for(long i = 0; i < cycles; ++i)
+				system.cycle();
+		}//end if
+		else
+			system.runCycles(cycles);
+		
+		sink += system.getCycleCount();
+	}//end method run
+	
+	/**Creates a headless emulator with a ROM file loaded.
+	 * @param filename The location of the ROM file
+	 * @return The new emulator
+	 */
+	private static Chip8 loadEmulator(String filename) {
+		Chip8 system = new Chip8(EmulatorContext.QUIET);
+		
+		if(!system.loadROM(filename))
+			throw new IllegalStateException("Unable to load ROM " + filename);
+		
+		return system;
+	}//end method loadEmulator
+	
+}//end class AllocationCheck
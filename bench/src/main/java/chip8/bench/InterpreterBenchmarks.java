@@ -0,0 +1,293 @@
+package chip8.bench;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import chip8.emulator.Chip8;
+import chip8.emulator.DecodedInstruction;
+import chip8.emulator.InstructionMapper;
+import chip8.emulator.Keypad;
+import chip8.ui.DisplayPanel;
+
+/**JMH microbenchmarks for the hot paths of the interpreter loop: decoding, cycling, drawing, clearing, keypad queries and painting.<br>
+ * <p>Each benchmark runs in freshly forked JVMs, is warmed up, then measured over several fixed-length iterations, reporting the mean time per operation and its error.
+ * Every benchmark returns a value derived from its result, which JMH consumes, so the JIT cannot eliminate the work being measured.
+ * Draws are measured for every combination of sprite height and wraparound.</p>
+ * <p>Build the benchmark module, then run it from the project root, optionally passing regular expressions matching the benchmarks to run:<br>
+ * <code>mvn -f bench/pom.xml package</code><br>
+ * <code>java -jar bench/target/benchmarks.jar [drw cycle ...]</code></p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class InterpreterBenchmarks {
+	
+	/**Opcodes covering every instruction family, decoded in turn.*/
+	@State(Scope.Thread)
+	public static class DecodeState {
+		
+		private final short[] opcodes = new short[256];
+		private int next;
+		
+		@Setup
+		public void setup() {
+			for(int i = 0; i < this.opcodes.length; ++i)
+				this.opcodes[i] = (short) (i * 0x0101 * 37);
+		}//end method setup
+		
+	}//end class DecodeState
+	
+	/**An emulator running a looping program.*/
+	@State(Scope.Thread)
+	public static class CycleState {
+		
+		/** Whether the loop only does arithmetic, or also clears the display and draws a sprite each iteration */
+		@Param({"arithmetic", "draw"})
+		public String loop;
+		
+		private Chip8 system;
+		
+		@Setup
+		public void setup() {
+			this.system = this.loop.equals("draw")
+					? createEmulator(0x6000, 0x6100, 0xA050, 0x00E0, 0xD015, 0x7001, 0x7102, 0x8014, 0x1206)
+					: createEmulator(0x6000, 0x6101, 0x8014, 0x8105, 0x7003, 0x3010, 0x1204, 0x6000, 0x1204);
+		}//end method setup
+		
+	}//end class CycleState
+	
+	/**An emulator with I pointing at the font data and V0, V1 holding a sprite position.*/
+	@State(Scope.Thread)
+	public static class DrawState {
+		
+		/** The number of rows in the sprite drawn */
+		@Param({"1", "5", "15"})
+		public int height;
+		
+		/** Whether the sprite is drawn at the bottom-right corner, wrapping past both edges of the display, rather than wholly inside it */
+		@Param({"false", "true"})
+		public boolean wrapped;
+		
+		private Chip8 system;
+		private DecodedInstruction drw;
+		
+		@Setup
+		public void setup() {
+			int x = this.wrapped ? 60 : 10;
+			int y = this.wrapped ? 30 : 10;
+			
+			this.system = createEmulator(0x6000 | x, 0x6100 | y, 0xA050);
+			this.system.runCycles(3);
+			
+			this.drw = InstructionMapper.getInstruction((short) (0xD010 | this.height));
+		}//end method setup
+		
+	}//end class DrawState
+	
+	/**An emulator with I pointing at the font data, drawing a 5 row sprite in the top-left corner before clearing when the display must have pixels on.*/
+	@State(Scope.Thread)
+	public static class ClearState {
+		
+		private Chip8 system;
+		private DecodedInstruction drw;
+		private DecodedInstruction cls;
+		
+		@Setup
+		public void setup() {
+			this.system = createEmulator(0x6000, 0x6100, 0xA050);
+			this.system.runCycles(3);
+			
+			this.drw = InstructionMapper.getInstruction((short) 0xD015);
+			this.cls = InstructionMapper.getInstruction((short) 0x00E0);
+		}//end method setup
+		
+	}//end class ClearState
+	
+	/**A keypad with two keys held down.*/
+	@State(Scope.Thread)
+	public static class KeypadState {
+		
+		private final Keypad keypad = new Keypad();
+		private int next;
+		
+		@Setup
+		public void setup() {
+			this.keypad.pressKey((byte) 0x5);
+			this.keypad.pressKey((byte) 0xA);
+		}//end method setup
+		
+	}//end class KeypadState
+	
+	/**A display panel at 10 times scale showing an emulator's display, painted into an offscreen image.*/
+	@State(Scope.Thread)
+	public static class PaintState {
+		
+		private static final int SCALE = 10;
+		
+		private Chip8 system;
+		private DecodedInstruction drw;
+		private DisplayPanel panel;
+		private BufferedImage target;
+		private Graphics2D graphics;
+		
+		@Setup
+		public void setup() {
+			this.system = createEmulator(0x6000, 0x6100, 0xA050, 0x1206);
+			this.system.runCycles(3);
+			this.drw = InstructionMapper.getInstruction((short) 0xD015);
+			this.drw.execute(this.system);
+			this.system.runFrame();
+			
+			this.panel = new DisplayPanel(this.system);
+			this.panel.scale(SCALE);
+			this.panel.renderLatestFrame();
+			this.panel.setSize(SCALE * Chip8.DISPLAY_WIDTH, SCALE * Chip8.DISPLAY_HEIGHT);
+			
+			this.target = new BufferedImage(SCALE * Chip8.DISPLAY_WIDTH, SCALE * Chip8.DISPLAY_HEIGHT, BufferedImage.TYPE_INT_RGB);
+			this.graphics = this.target.createGraphics();
+		}//end method setup
+		
+	}//end class PaintState
+	
+	/**Creates a headless emulator with a program loaded and an idle keypad attached.
+	 * @param program The opcodes of the program, loaded from the ROM start address
+	 * @return The new emulator
+	 */
+	static Chip8 createEmulator(int... program) {
+		byte[] rom = new byte[program.length * 2];
+		for(int i = 0; i < program.length; ++i) {
+			rom[2 * i] = (byte) (program[i] >>> 8);
+			rom[2 * i + 1] = (byte) program[i];
+		}//end for
+		
+		Chip8 system = new Chip8();
+		system.attachKeypad(new Keypad());
+		
+		try {
+			Path romFile = Files.createTempFile("chip8-bench", ".ch8");
+			Files.write(romFile, rom);
+			boolean loaded = system.loadROM(romFile.toString());
+			Files.delete(romFile);
+			
+			if(!loaded)
+				throw new IllegalStateException("Unable to load benchmark program");
+		} catch(IOException io) {
+			throw new UncheckedIOException("Unable to write benchmark program", io);
+		}//end try-catch
+		
+		return system;
+	}//end method createEmulator
+	
+	/* Benchmarks */
+	
+	/**Decodes the next of a spread of opcodes covering every instruction family.
+	 * @param state The opcodes decoded
+	 * @return The decoded instruction
+	 */
+	@Benchmark
+	public DecodedInstruction decode(DecodeState state) {
+		return InstructionMapper.getInstruction(state.opcodes[state.next++ & 0xFF]);
+	}//end method decode
+	
+	/**Runs one full cycle of a looping program.
+	 * @param state The emulator running the program
+	 * @return The cycle count after the cycle
+	 */
+	@Benchmark
+	public long cycle(CycleState state) {
+		state.system.cycle();
+		return state.system.getCycleCount();
+	}//end method cycle
+	
+	/**Draws a sprite from the font data with DRW.
+	 * @param state The emulator drawn on, and the sprite's height and position
+	 * @return The display memory version after the draw
+	 */
+	@Benchmark
+	public long drw(DrawState state) {
+		state.drw.execute(state.system);
+		return state.system.getFrameVersion();
+	}//end method drw
+	
+	/**Clears a display which has no pixels on with CLS.
+	 * @param state The emulator cleared
+	 * @return The display memory version after the clear
+	 */
+	@Benchmark
+	public long clsClear(ClearState state) {
+		state.cls.execute(state.system);
+		return state.system.getFrameVersion();
+	}//end method clsClear
+	
+	/**Draws a sprite with DRW, then clears the display with CLS, so that the display has pixels on to clear.
+	 * @param state The emulator drawn on and cleared
+	 * @return The display memory version after the clear
+	 */
+	@Benchmark
+	public long clsAfterDrw(ClearState state) {
+		state.drw.execute(state.system);
+		state.cls.execute(state.system);
+		return state.system.getFrameVersion();
+	}//end method clsAfterDrw
+	
+	/**Queries whether the next key is pressed.
+	 * @param state The keypad queried
+	 * @return True, if the key is pressed
+	 */
+	@Benchmark
+	public boolean keypadIsKeyPressed(KeypadState state) {
+		return state.keypad.isKeyPressed((byte) (state.next++ & 0xF));
+	}//end method keypadIsKeyPressed
+	
+	/**Lists every pressed key.
+	 * @param state The keypad queried
+	 * @return The pressed keys
+	 */
+	@Benchmark
+	public byte[] keypadGetKeysPressed(KeypadState state) {
+		return state.keypad.getKeysPressed();
+	}//end method keypadGetKeysPressed
+	
+	/**Paints the display panel without a new frame to render.
+	 * @param state The panel painted
+	 * @return The color of the top-left pixel painted
+	 */
+	@Benchmark
+	public int paintUnchangedFrame(PaintState state) {
+		state.panel.paint(state.graphics);
+		return state.target.getRGB(0, 0);
+	}//end method paintUnchangedFrame
+	
+	/**Draws a sprite and completes its frame, then renders and paints the new frame.
+	 * @param state The emulator drawn on and the panel painted
+	 * @return The color of the top-left pixel painted
+	 */
+	@Benchmark
+	public int paintChangedFrame(PaintState state) {
+		state.drw.execute(state.system);
+		state.system.runFrame();
+		state.panel.renderLatestFrame();
+		state.panel.paint(state.graphics);
+		return state.target.getRGB(0, 0);
+	}//end method paintChangedFrame
+
+}//end class InterpreterBenchmarks
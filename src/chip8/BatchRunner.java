@@ -0,0 +1,391 @@
+package chip8;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import chip8.emulator.Chip8;
+import chip8.emulator.EmulatorContext;
+import chip8.emulator.Keypad;
+
+/**Runs every ROM in a directory headless, each in its own emulator, spread across a pool of threads, and reports how each ROM ended.<br>
+ * <p>Each ROM runs for the same cycle or frame budget with an idle keypad and the same random seed, so repeated sweeps of the same corpus are directly comparable.
+ * The report has one row per ROM, in path order: whether it ran to the end of its budget, its speed in MIPS, its final program counter,
+ * a CRC-32 of its final display and any error it failed with, such as a call stack overflow.</p>
+ */
+public class BatchRunner {
+	
+	/* Command line arguments */
+	private String romDirectory = "";
+	private String reportFilename = "";
+	private String format = "";
+	private int threads = -1;
+	private long cycleBudget = -1;
+	private long frameBudget = -1;
+	private long seed = 0;
+	private boolean blockTranslationFlag = false;
+	
+	/* Default options */
+	private static final long DEFAULT_FRAME_BUDGET = 600;
+	private static final String DEFAULT_FORMAT = "csv";
+	
+	/** The number of nanoseconds in a second */
+	private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+	
+	/**How a single ROM's run ended.*/
+	private static class RomResult {
+		
+		private final String rom;
+		private String status = "ok";
+		private long cycles;
+		private long frames;
+		private long wallNanos;
+		private int pc;
+		private long displayChecksum;
+		private String error = "";
+		
+		private RomResult(String rom) {
+			this.rom = rom;
+		}//end constructor method
+		
+		/**Gets the rate the ROM ran at.
+		 * @return The millions of cycles run per second of wall time, or 0 if no time passed
+		 */
+		private double getMips() {
+			return (this.wallNanos == 0) ? 0 : this.cycles * NANOS_PER_SECOND / this.wallNanos / 1_000_000;
+		}//end method getMips
+		
+	}//end class RomResult
+	
+	/**Runs the ROMs in the directory given by the supplied command line arguments, writing a report of how each ended.
+	 * @param args Command line arguments to be parsed
+	 */
+	public static void main(String[] args) {
+		new BatchRunner().launch(args);
+	}//end method main
+	
+	/**Parses the supplied command line arguments, then runs every ROM and writes the report.
+	 * @param args Command line arguments to be parsed
+	 */
+	private void launch(String[] args) {
+		parseOptions(args);
+		validateArguments();
+		
+		List<Path> roms;
+		try(Stream<Path> files = Files.walk(Paths.get(romDirectory))) {
+			roms = files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		} catch(IOException e) {
+			System.err.println("Error: Unable to list ROMs in " + romDirectory + ": " + e.getMessage());
+			System.exit(1);
+			return;
+		}//end try-catch
+		
+		long start = System.nanoTime();
+		List<RomResult> results = runAll(roms);
+		double seconds = (System.nanoTime() - start) / NANOS_PER_SECOND;
+		
+		PrintStream out = System.out;
+		if(!reportFilename.equals("")) {
+			try {
+				out = new PrintStream(reportFilename);
+			} catch(FileNotFoundException e) {
+				System.err.println("Error: Unable to create or open file \"" + reportFilename + "\"");
+				System.exit(1);
+			}//end try-catch
+		}//end if
+		
+		if(format.equals("json"))
+			writeJson(results, out);
+		else
+			writeCsv(results, out);
+		out.flush();
+		
+		long failed = results.stream().filter( (RomResult result) -> !result.status.equals("ok") ).count();
+		System.err.println(String.format(Locale.ROOT, "Ran %d ROMs on %d threads in %.2f s: %d ok, %d failed", results.size(), threads, seconds, results.size() - failed, failed));
+		System.exit(failed == 0 ? 0 : 2);
+	}//end method launch
+	
+	/**Runs every ROM on a fixed pool of threads, one emulator per ROM.
+	 * @param roms The locations of the ROMs
+	 * @return The results of each ROM, in the same order
+	 */
+	private List<RomResult> runAll(List<Path> roms) {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, (Runnable task) -> {
+			Thread thread = new Thread(task, "Chip8-Batch");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		List<Future<RomResult>> futures = new ArrayList<Future<RomResult>>();
+		for(Path rom : roms)
+			futures.add(pool.submit( () -> run(rom) ));
+		
+		List<RomResult> results = new ArrayList<RomResult>();
+		for(int i = 0; i < futures.size(); ++i) {
+			try {
+				results.add(futures.get(i).get());
+			} catch(InterruptedException | ExecutionException e) {
+				RomResult result = new RomResult(roms.get(i).toString());
+				result.status = "error";
+				result.error = e.toString();
+				results.add(result);
+			}//end try-catch
+		}//end for
+		
+		pool.shutdown();
+		return results;
+	}//end method runAll
+	
+	/**Runs a single ROM for the budget in a fresh emulator.
+	 * @param rom The location of the ROM
+	 * @return How the ROM's run ended
+	 */
+	private RomResult run(Path rom) {
+		RomResult result = new RomResult(rom.toString());
+		
+		Chip8 emulator = new Chip8(EmulatorContext.QUIET);
+		emulator.attachKeypad(new Keypad());
+		emulator.setBlockCacheEnabled(blockTranslationFlag);
+		emulator.setRandomSeed(seed);
+		
+		if(!emulator.loadROM(rom.toString())) {
+			result.status = "load-failed";
+			result.error = "Unable to load ROM";
+			return result;
+		}//end if
+		
+		long start = System.nanoTime();
+		try {
+			if(cycleBudget != -1)
+				emulator.runCycles(cycleBudget);
+			else
+				emulator.runFrames(frameBudget);
+		} catch(RuntimeException e) {
+			result.status = "error";
+			result.error = e.toString();
+		}//end try-catch
+		result.wallNanos = System.nanoTime() - start;
+		
+		result.cycles = emulator.getCycleCount();
+		result.frames = emulator.getFrameCount();
+		result.pc = emulator.getProgramCounter();
+		result.displayChecksum = displayChecksum(emulator);
+		return result;
+	}//end method run
+	
+	/**Computes a checksum of an emulator's display, which identifies the frame it shows.
+	 * @param emulator The emulator
+	 * @return The CRC-32 of the packed display rows
+	 */
+	private static long displayChecksum(Chip8 emulator) {
+		ByteBuffer rows = ByteBuffer.allocate(8 * Chip8.DISPLAY_HEIGHT);
+		rows.asLongBuffer().put(emulator.getCurrentDisplayBuffer());
+		
+		CRC32 checksum = new CRC32();
+		checksum.update(rows);
+		return checksum.getValue();
+	}//end method displayChecksum
+	
+	/**Writes the report as CSV, with a header row.
+	 * @param results The results of each ROM
+	 * @param out The stream the report is written to
+	 */
+	private static void writeCsv(List<RomResult> results, PrintStream out) {
+		out.println("rom,status,cycles,frames,wall_ms,mips,pc,display_crc32,error");
+		for(RomResult result : results)
+			out.println(String.format(Locale.ROOT, "%s,%s,%d,%d,%.3f,%.2f,%03X,%08X,%s", csv(result.rom), result.status, result.cycles, result.frames,
+					result.wallNanos / 1_000_000.0, result.getMips(), result.pc, result.displayChecksum, csv(result.error)));
+	}//end method writeCsv
+	
+	/**Writes the report as a JSON array, with one object per ROM.
+	 * @param results The results of each ROM
+	 * @param out The stream the report is written to
+	 */
+	private static void writeJson(List<RomResult> results, PrintStream out) {
+		out.println("[");
+		for(int i = 0; i < results.size(); ++i) {
+			RomResult result = results.get(i);
+			out.println(String.format(Locale.ROOT, "  {\"rom\": %s, \"status\": %s, \"cycles\": %d, \"frames\": %d, \"wall_ms\": %.3f, \"mips\": %.2f, \"pc\": \"%03X\", \"display_crc32\": \"%08X\", \"error\": %s}%s",
+					json(result.rom), json(result.status), result.cycles, result.frames, result.wallNanos / 1_000_000.0, result.getMips(), result.pc, result.displayChecksum,
+					json(result.error), (i + 1 < results.size()) ? "," : ""));
+		}//end for
+		out.println("]");
+	}//end method writeJson
+	
+	/**Quotes a value for a CSV field, if it holds a comma, quote or line break.
+	 * @param value The value
+	 * @return The CSV field
+	 */
+	private static String csv(String value) {
+		if(value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+			return value;
+		
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}//end method csv
+	
+	/**Quotes a value as a JSON string.
+	 * @param value The value
+	 * @return The JSON string, including its quotes
+	 */
+	private static String json(String value) {
+		StringBuilder string = new StringBuilder("\"");
+		for(char c : value.toCharArray()) {
+			if(c == '"' || c == '\\')
+				string.append('\\').append(c);
+			else if(c < 0x20)
+				string.append(String.format("\\u%04x", (int) c));
+			else
+				string.append(c);
+		}//end for
+		
+		return string.append('"').toString();
+	}//end method json
+	
+	/**Ensures provided arguments are valid, and sets any unprovided arguments to their default values*/
+	private void validateArguments() {
+		if(romDirectory.equals("")) {
+			System.err.println("Missing argument: DIRECTORY");
+			printUsage();
+			System.exit(1);
+		}//end if
+		
+		if(!Files.isDirectory(Paths.get(romDirectory))) {
+			System.err.println("Error: " + romDirectory + " is not a directory");
+			System.exit(1);
+		}//end if
+		
+		if(cycleBudget != -1 && frameBudget != -1) {
+			System.err.println("Only one of --cycles and --frames may be provided");
+			System.exit(1);
+		}//end if
+		
+		if(cycleBudget == -1 && frameBudget == -1)
+			frameBudget = DEFAULT_FRAME_BUDGET;
+		
+		if(threads == -1)
+			threads = Runtime.getRuntime().availableProcessors();
+		
+		//Infer the format from the report's extension, unless one was requested
+		if(format.equals(""))
+			format = reportFilename.toLowerCase(Locale.ROOT).endsWith(".json") ? "json" : DEFAULT_FORMAT;
+		
+		if(!format.equals("csv") && !format.equals("json")) {
+			System.err.println("--format requires one of the formats: csv, json");
+			System.exit(1);
+		}//end if
+	}//end method validateArguments
+	
+	/**Parses command line options.
+	 * @param args The array of input command line options
+	 */
+	private void parseOptions(String[] args) {
+		for(int i = 0; i < args.length; ++i) {
+			if(!args[i].startsWith("-")) {
+				romDirectory = args[i];
+				continue;
+			}//end if
+			
+			switch(args[i]) {
+				case "--help" :
+					printUsage();
+					System.exit(0);
+					break;
+					
+				case "--cycles" :
+					cycleBudget = parsePositive(args, i++);
+					break;
+					
+				case "--frames" :
+					frameBudget = parsePositive(args, i++);
+					break;
+					
+				case "--threads" :
+					threads = (int) Math.min(parsePositive(args, i++), Integer.MAX_VALUE);
+					break;
+					
+				case "--seed" :
+					try {
+						seed = Long.parseLong(args[++i]);
+					} catch(ArrayIndexOutOfBoundsException | NumberFormatException e) {
+						System.err.println("--seed requires an integer argument");
+						System.exit(1);
+					}//end try-catch
+					break;
+					
+				case "--format" :
+					try {
+						format = args[++i].toLowerCase(Locale.ROOT);
+					} catch(ArrayIndexOutOfBoundsException e) {
+						System.err.println("--format requires one of the formats: csv, json");
+						System.exit(1);
+					}//end try-catch
+					break;
+					
+				case "--jit" :
+					blockTranslationFlag = true;
+					break;
+					
+				case "-o" :
+					if(i + 1 >= args.length || args[i + 1].startsWith("-")) {
+						System.err.println("-o requires a filename argument");
+						System.exit(1);
+					}//end if
+					reportFilename = args[++i];
+					break;
+					
+				default :
+					System.err.println("Unexpected option: " + args[i]);
+					System.exit(1);
+			}//end switch
+		}//end for
+	}//end method parseOptions
+	
+	/**Parses the positive integer argument following an option.
+	 * @param args The array of input command line options
+	 * @param i The index of the option
+	 * @return The parsed value
+	 */
+	private long parsePositive(String[] args, int i) {
+		try {
+			long value = Long.parseLong(args[i + 1]);
+			if(value <= 0)
+				throw new IllegalArgumentException(args[i] + " requires a positive argument");
+			return value;
+		} catch(ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+			System.err.println(args[i] + " requires a positive integer argument");
+			System.exit(1);
+			return -1;
+		}//end try-catch
+	}//end method parsePositive
+	
+	/** Prints proper command line parameter usage message */
+	private static void printUsage() {
+		System.out.println("Usage: BatchRunner DIRECTORY [--cycles n | --frames n] [--threads n] [--seed n] [--jit] [-o report-file] [--format csv | json] [--help]");
+		
+		System.out.println("\tDIRECTORY : The directory of ROMs to be run, including its subdirectories.");
+		
+		System.out.println("Optional:");
+		System.out.println("\t[--cycles n | --frames n] : The budget each ROM runs for, in emulation cycles or 60 Hz frames. Default: " + DEFAULT_FRAME_BUDGET + " frames");
+		System.out.println("\t[--threads n] : The number of ROMs run at once. Default: the number of processors");
+		System.out.println("\t[--seed n] : The random seed every ROM runs with. Default: 0");
+		System.out.println("\t[--jit] : Runs cached, pre-decoded basic blocks instead of single instructions where possible.");
+		System.out.println("\t[-o report-file] : The file the report is written to. Default: Standard Out");
+		System.out.println("\t[--format csv | json] : The format of the report. Default: json if the report file ends in .json, else csv");
+		System.out.println("\t[--help] : Prints this help message, then exits.");
+	}//end method printUsage
+	
+}//end class BatchRunner
@@ -0,0 +1,112 @@
+package chip8;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import chip8.emulator.Chip8;
+import chip8.emulator.CyclePhaseTimes;
+import chip8.emulator.EmulatorContext;
+import chip8.emulator.InputRecording;
+import chip8.emulator.Keypad;
+
+/**Runs a ROM unthrottled, with no pacing and no rendering, and reports how fast the emulator ran it.<br>
+ * <p>Each benchmark runs the ROM three times, each on a fresh emulator:<br>
+ * 1. A warm-up run, so that the measured run is not dominated by JIT compilation.<br>
+ * 2. The measured run, reporting wall time, instructions executed per second and the allocation rate of the emulating thread.
+ * Cycles which executed no instruction, because an idle loop was fast-forwarded or the CPU was halted waiting for a key, are reported separately rather than counted as instructions.<br>
+ * 3. An instrumented run, timing the fetch, decode and execute phases of every cycle to report how the cycle time is split.</p>
+ * <p>If a recording is provided, each run replays it, so that a captured play session is benchmarked exactly as it was played.</p>
+ */
+public class Benchmark {
+	
+	/** The number of nanoseconds in a second */
+	private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+	
+	private final String romFilename;
+	private final long cycles;
+	private final boolean blockTranslation;
+	private final InputRecording replay;
+	
+	/**Creates a new benchmark of a ROM.
+	 * @param romFilename The location of the ROM to be run
+	 * @param cycles The number of cycles each run lasts
+	 * @param blockTranslation Whether the emulator should run translated basic blocks in the warm-up and measured runs
+	 * @param replay The recorded input replayed in each run, or null to run with an idle keypad
+	 */
+	public Benchmark(String romFilename, long cycles, boolean blockTranslation, InputRecording replay) {
+		this.romFilename = romFilename;
+		this.cycles = cycles;
+		this.blockTranslation = blockTranslation;
+		this.replay = replay;
+	}//end constructor method
+	
+	/**Runs the benchmark, printing its results.
+	 * @param out The stream results are printed to
+	 * @return True, if the ROM could be loaded and ran for every cycle. If not, false.
+	 */
+	public boolean run(PrintStream out) {
+		out.println("Benchmarking " + this.romFilename + " for " + this.cycles + " cycles" + (this.blockTranslation ? " with block translation" : "") + (this.replay != null ? " replaying recorded input" : ""));
+		
+		try {
+			//Warm-up
+			Chip8 warmUp = createEmulator();
+			warmUp.runCycles(this.cycles);
+			
+			//Measured run
+			Chip8 measured = createEmulator();
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			long threadId = Thread.currentThread().getId();
+			
+			long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			measured.runCycles(this.cycles);
+			long wallNanos = System.nanoTime() - start;
+			long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+			
+			long idle = measured.getMetrics().getIdleCycles();
+			long executed = this.cycles - idle;
+			
+			double seconds = wallNanos / NANOS_PER_SECOND;
+			out.println(String.format("Wall time:        %.3f ms", wallNanos / 1_000_000.0));
+			out.println(String.format("Instructions/sec: %.0f (%.2f MIPS, %d instructions executed)", executed / seconds, executed / seconds / 1_000_000, executed));
+			out.println(String.format("Idle cycles:      %d (%.1f%%, fast-forwarded or halted without executing, %.2f M emulated cycles/sec in total)",
+					idle, 100.0 * idle / this.cycles, this.cycles / seconds / 1_000_000));
+			out.println(String.format("Allocated:        %d bytes (%.2f MB/s, %.4f bytes/cycle)", allocated, allocated / seconds / (1024 * 1024), (double) allocated / this.cycles));
+			
+			//Instrumented run
+			Chip8 instrumented = createEmulator();
+			CyclePhaseTimes times = new CyclePhaseTimes();
+			instrumented.runTimedCycles(this.cycles, times);
+			
+			double total = times.getTotalNanos();
+			out.println(String.format("Phase split:      fetch %.1f%%, decode %.1f%%, execute %.1f%% (instrumented, %.1f ns/cycle)",
+					100 * times.getFetchNanos() / total, 100 * times.getDecodeNanos() / total, 100 * times.getExecuteNanos() / total, total / times.getCycles()));
+		} catch(IllegalStateException e) {
+			System.err.println("Error: " + e.getMessage());
+			return false;
+		} catch(RuntimeException e) {
+			System.err.println("Error: ROM failed during benchmark: " + e);
+			return false;
+		}//end try-catch
+		
+		return true;
+	}//end method run
+	
+	/**Creates a fresh, headless emulator with the benchmarked ROM loaded and an idle keypad attached, or the recorded input replaying.
+	 * @return The new emulator
+	 */
+	private Chip8 createEmulator() {
+		Chip8 emulator = new Chip8(EmulatorContext.QUIET);
+		emulator.attachKeypad(new Keypad());
+		emulator.setBlockCacheEnabled(this.blockTranslation);
+		
+		if(!emulator.loadROM(this.romFilename))
+			throw new IllegalStateException("Unable to load ROM " + this.romFilename);
+		
+		if(this.replay != null && !this.replay.startReplay(emulator))
+			throw new IllegalStateException("Unable to replay recording of another ROM");
+		
+		return emulator;
+	}//end method createEmulator
+	
+}//end class Benchmark
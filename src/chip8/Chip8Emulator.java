@@ -2,59 +2,187 @@ package chip8;
 
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
 
 import javax.swing.SwingUtilities;
 
 import chip8.emulator.Chip8;
+import chip8.emulator.EmulatorContext;
+import chip8.emulator.InputRecording;
+import chip8.emulator.Keypad;
+import chip8.emulator.RomProfiler;
+import chip8.emulator.TraceCategory;
+import chip8.emulator.TraceLevel;
+import chip8.ui.DisplayPanel;
 import chip8.ui.KeyboardAdapter;
 import chip8.ui.MainWindow;
 
 public class Chip8Emulator {
 	
 	/* Command line arguments */
-	private static String romFilename = "";
-	private static String outputFilename = "";
-	private static int displayScale = -1;
-	private static int cycleSpeed = -1;
-	private static Boolean verboseFlag;
+	private String romFilename = "";
+	private String outputFilename = "";
+	private int displayScale = -1;
+	private int cycleSpeed = -1;
+	private Boolean verboseFlag;
+	private TraceLevel traceLevel;
+	private Set<TraceCategory> traceCategories;
+	private boolean headlessFlag = false;
+	private boolean benchFlag = false;
+	private boolean blockTranslationFlag = false;
+	private long cycleBudget = -1;
+	private long frameBudget = -1;
+	private String recordFilename = "";
+	private String replayFilename = "";
+	private long metricsInterval = 0;
+	private String profileName = "";
+	private boolean overlayFlag = false;
 	
-	private static PrintStream traceStream;
+	private PrintStream traceStream;
+	private InputRecording replay;
 	
 	/* Default options */
 	private static final int DEFAULT_DISPLAY_SCALE = 10;
-	private static final int DEFAULT_CYCLE_SPEED = 10;
+	private static final int DEFAULT_CYCLE_SPEED = Chip8.DEFAULT_INSTRUCTIONS_PER_SECOND;
 	private static final PrintStream DEFAULT_TRACE_STREAM = System.out;
 	private static final boolean DEFAULT_VERBOSE_FLAG = false;
+	private static final long DEFAULT_FRAME_BUDGET = 600;
+	private static final long DEFAULT_BENCH_CYCLES = 10_000_000;
 
 	/**Creates a new CHIP-8 emulator using the supplied command line arguments to supply the location of the ROM to be loaded.
 	 * @param args Command line arguments to be parsed
 	 */
 	public static void main(String[] args) {
+		new Chip8Emulator().launch(args);
+	}//end method main
+	
+	/**Parses the supplied command line arguments, then creates and drives a CHIP-8 emulator configured by them.
+	 * @param args Command line arguments to be parsed
+	 */
+	private void launch(String[] args) {
 		parseFile(args);
 		parseOptions(args);
 		
 		validateArguments();
 		
-		openTraceStream();
-		Chip8 emulator = new Chip8();
-		if( emulator.loadROM(romFilename) ) {
-			KeyboardAdapter controller = new KeyboardAdapter();
-			emulator.attachKeypad(controller.getKeypad());
-			
-			emulator.getDisplay().scale(displayScale);
+		if(!replayFilename.equals("")) {
+			replay = InputRecording.load(replayFilename);
+			if(replay == null) {
+				System.err.println("Error: Unable to load recording " + replayFilename);
+				System.exit(1);
+			}//end if
+		}//end if
 		
-			SwingUtilities.invokeLater( () -> new MainWindow(emulator, controller) );
+		if(benchFlag) {
+			if(cycleBudget == -1)
+				cycleBudget = replay.getEndCycle();
 			
-			emulator.startEmulation(cycleSpeed);
+			boolean completed = new Benchmark(romFilename, cycleBudget, blockTranslationFlag, replay).run(System.out);
+			System.exit(completed ? 0 : 1);
+		}//end if
+		
+		openTraceStream();
+		EmulatorContext context = new EmulatorContext(traceLevel, traceCategories, traceStream);
+		Chip8 emulator = new Chip8(context);
+		emulator.setBlockCacheEnabled(blockTranslationFlag);
+		
+		//Expose the emulator's metrics to JMX clients such as JConsole
+		emulator.getMetrics().register(Paths.get(romFilename).getFileName().toString());
+		emulator.getMetrics().setSummaryInterval(metricsInterval);
+		
+		if(!profileName.equals(""))
+			emulator.attachProfiler(new RomProfiler());
+		
+		if( emulator.loadROM(romFilename) ) {
+			if(headlessFlag)
+				runHeadless(emulator);
+			else
+				runWindowed(emulator);
 		}//end if
 		else {
 			System.err.println("Error: Unable to load ROM " + romFilename);
 			System.exit(1);
 		}//end else
-	}//end method main
+	}//end method launch
+	
+	/**Drives the emulator through the GUI, creating its display and keyboard controls.
+	 * @param emulator The emulator to be driven, with its ROM already loaded
+	 */
+	private void runWindowed(Chip8 emulator) {
+		KeyboardAdapter controller = new KeyboardAdapter(new Keypad(emulator.getContext()));
+		emulator.attachKeypad(controller.getKeypad());
+		
+		DisplayPanel display = new DisplayPanel(emulator);
+		display.setOverlayVisible(overlayFlag);
+		emulator.attachDisplay(display);
+		emulator.getDisplay().scale(displayScale);
+	
+		//Save the recording once the window is closed and the emulator exits
+		if(!recordFilename.equals("")) {
+			emulator.setInstructionsPerSecond(cycleSpeed);
+			InputRecording recording = InputRecording.startRecording(emulator, controller.getKeypad());
+			
+			Runtime.getRuntime().addShutdownHook(new Thread( () -> {
+				emulator.stopEmulation();
+				recording.stopRecording();
+				recording.save(recordFilename);
+			}, "Chip8-Recording"));
+		}//end if
+		
+		//Save the profile once the window is closed and the emulator exits
+		if(emulator.getProfiler() != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread( () -> {
+				emulator.stopEmulation();
+				emulator.getProfiler().save(profileName);
+			}, "Chip8-Profile"));
+		}//end if
+		
+		SwingUtilities.invokeLater( () -> new MainWindow(emulator, controller) );
+		
+		emulator.startEmulation(cycleSpeed);
+	}//end method runWindowed
+	
+	/**Runs the emulator without any GUI for the requested cycle or frame budget, then prints its final state to standard out.<br>
+	 * When replaying a recording without a budget, runs until the end of the recording.
+	 * @param emulator The emulator to be run, with its ROM already loaded
+	 */
+	private void runHeadless(Chip8 emulator) {
+		Keypad keypad = new Keypad(emulator.getContext());
+		emulator.attachKeypad(keypad);
+		emulator.setInstructionsPerSecond(cycleSpeed);
+		
+		InputRecording recording = null;
+		if(replay != null) {
+			if(!replay.startReplay(emulator))
+				System.exit(1);
+		}//end if
+		else if(!recordFilename.equals(""))
+			recording = InputRecording.startRecording(emulator, keypad);
+		
+		if(cycleBudget != -1)
+			emulator.runCycles(cycleBudget);
+		else if(frameBudget != -1)
+			emulator.runFrames(frameBudget);
+		else
+			emulator.runCycles(replay.getEndCycle());
+		
+		if(recording != null) {
+			recording.stopRecording();
+			if(!recording.save(recordFilename))
+				System.exit(1);
+		}//end if
+		
+		if(emulator.getProfiler() != null && !emulator.getProfiler().save(profileName))
+			System.exit(1);
+		
+		emulator.printState(System.out);
+	}//end method runHeadless
 	
 	/**Ensures provided arguments are valid, and sets any unprovided arguments to their default values*/
-	private static void validateArguments() {
+	private void validateArguments() {
 		if(romFilename.equals(""))
 			missingROMFilename();
 		
@@ -67,12 +195,49 @@ public class Chip8Emulator {
 		if(verboseFlag == null)
 			verboseFlag = DEFAULT_VERBOSE_FLAG;
 		
+		//Verbose mode traces everything, unless a specific level was requested
+		if(traceLevel == null)
+			traceLevel = verboseFlag ? TraceLevel.TRACE : TraceLevel.OFF;
+		
+		if(traceCategories == null)
+			traceCategories = EnumSet.allOf(TraceCategory.class);
+		
 		if(outputFilename.equals(""))
 			traceStream = DEFAULT_TRACE_STREAM;
+		
+		if(cycleBudget != -1 && frameBudget != -1) {
+			System.err.println("Only one of --cycles and --frames may be provided");
+			System.exit(1);
+		}//end if
+		
+		if(benchFlag && frameBudget != -1) {
+			System.err.println("--bench requires a --cycles budget");
+			System.exit(1);
+		}//end if
+		
+		if(!recordFilename.equals("") && !replayFilename.equals("")) {
+			System.err.println("Only one of --record and --replay may be provided");
+			System.exit(1);
+		}//end if
+		
+		if(benchFlag && (!recordFilename.equals("") || !profileName.equals(""))) {
+			System.err.println("--bench cannot be combined with --record or --profile");
+			System.exit(1);
+		}//end if
+		
+		//Replays always run headless, and by default until the end of the recording
+		if(!replayFilename.equals(""))
+			headlessFlag = true;
+		
+		if(benchFlag && cycleBudget == -1 && replayFilename.equals(""))
+			cycleBudget = DEFAULT_BENCH_CYCLES;
+		
+		if(cycleBudget == -1 && frameBudget == -1 && replayFilename.equals(""))
+			frameBudget = DEFAULT_FRAME_BUDGET;
 	}//end method validateArguments
 	
 	/** Alerts the user that they are missing the required ROM filename argument, and exits.*/
-	private static void missingROMFilename() {
+	private void missingROMFilename() {
 		System.err.println("Missing argument: FILE");
 		printUsage();
 		System.exit(1);
@@ -81,7 +246,7 @@ public class Chip8Emulator {
 	/**Parses the first argument supplied as the ROM filename
 	 * @param args The array of input command line options
 	 */
-	private static void parseFile(String[] args) {
+	private void parseFile(String[] args) {
 		try {
 			if(!args[0].startsWith("-"))
 				romFilename = args[0];
@@ -90,17 +255,9 @@ public class Chip8Emulator {
 		}//end try-catch
 	}//end method parseFile
 
-	/**If verbose debugging mode is enabled, prints supplied debug statement to the trace output stream.
-	 * @param statement The statement to be printed to the output stream
-	 */
-	public static void debugLog(String statement) {
-		if(verboseFlag)
-			traceStream.println(statement);
-	}//end method debugLog
-	
 	/**Prepares the requested output stream for trace output
 	 * If one was not requested, or if an error occurs during the opening process, defaults to stdout.*/
-	private static void openTraceStream() {
+	private void openTraceStream() {
 		//If no output file provided, keep output stream as stdout
 		if(outputFilename.equals(""))
 			return;
@@ -116,7 +273,7 @@ public class Chip8Emulator {
 	/**Parses command line options.
 	 * @param args The array of input command line options
 	 */
-	private static void parseOptions(String[] args) {
+	private void parseOptions(String[] args) {
 		for(int i = 0; i < args.length; ++i) {
 			//Only standalone argument that shouldn't start with "-" should be argument 0: FILE
 			if(!args[i].startsWith("-") && i == 0)
@@ -132,6 +289,68 @@ public class Chip8Emulator {
 					verboseFlag = false;
 					break;
 					
+				case "--headless" :
+					headlessFlag = true;
+					break;
+					
+				case "--bench" :
+					benchFlag = true;
+					if(i + 1 < args.length && !args[i + 1].startsWith("-"))
+						romFilename = args[++i];
+					break;
+					
+				case "--jit" :
+					blockTranslationFlag = true;
+					break;
+					
+				case "--overlay" :
+					overlayFlag = true;
+					break;
+					
+				case "--trace-level" :
+					try {
+						traceLevel = TraceLevel.valueOf(args[++i].toUpperCase(Locale.ROOT));
+					} catch(ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+						System.err.println("--trace-level requires one of the levels: off, error, info, debug, trace");
+						System.exit(1);
+					}//end try-catch
+					break;
+					
+				case "--trace-categories" :
+					try {
+						traceCategories = EnumSet.noneOf(TraceCategory.class);
+						for(String category : args[++i].split(","))
+							traceCategories.add(TraceCategory.valueOf(category.trim().toUpperCase(Locale.ROOT)));
+					} catch(ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+						System.err.println("--trace-categories requires a comma-separated list of: cpu, display, keypad, timers, system");
+						System.exit(1);
+					}//end try-catch
+					break;
+					
+				case "--cycles" :
+					cycleBudget = parseBudget(args, i++);
+					break;
+					
+				case "--frames" :
+					frameBudget = parseBudget(args, i++);
+					break;
+					
+				case "--metrics" :
+					metricsInterval = parseBudget(args, i++);
+					break;
+					
+				case "--profile" :
+					profileName = parseFilename(args, i++);
+					break;
+					
+				case "--record" :
+					recordFilename = parseFilename(args, i++);
+					break;
+					
+				case "--replay" :
+					replayFilename = parseFilename(args, i++);
+					break;
+					
 				/* (Series of) non-wordy options */
 				default :
 					String simpleOptionSeries = args[i];
@@ -168,8 +387,10 @@ public class Chip8Emulator {
 									if(args[i + 1].startsWith("-"))
 										throw new IllegalArgumentException("-c requires an argument");
 									cycleSpeed = Integer.parseInt(args[++i]);
+									if(cycleSpeed < Chip8.FRAME_RATE)
+										throw new IllegalArgumentException("-c requires an argument of at least " + Chip8.FRAME_RATE);
 								} catch(ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
-									System.err.println("-c requires an integer argument");
+									System.err.println("-c requires an integer argument of at least " + Chip8.FRAME_RATE);
 									System.exit(1);
 								}//end try-catch
 								break;
@@ -183,17 +404,60 @@ public class Chip8Emulator {
 		}//end for
 	}//end method parseOptions
 
+	/**Parses the positive integer argument following a budget option.
+	 * @param args The array of input command line options
+	 * @param i The index of the budget option
+	 * @return The parsed budget
+	 */
+	private long parseBudget(String[] args, int i) {
+		try {
+			long budget = Long.parseLong(args[i + 1]);
+			if(budget <= 0)
+				throw new IllegalArgumentException(args[i] + " requires a positive argument");
+			return budget;
+		} catch(ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+			System.err.println(args[i] + " requires a positive integer argument");
+			System.exit(1);
+			return -1;
+		}//end try-catch
+	}//end method parseBudget
+
+	/**Parses the filename argument following a file option.
+	 * @param args The array of input command line options
+	 * @param i The index of the file option
+	 * @return The parsed filename
+	 */
+	private String parseFilename(String[] args, int i) {
+		if(i + 1 >= args.length || args[i + 1].startsWith("-")) {
+			System.err.println(args[i] + " requires a filename argument");
+			System.exit(1);
+		}//end if
+		
+		return args[i + 1];
+	}//end method parseFilename
+
 	/** Prints proper command line parameter usage message */
-	private static void printUsage() {
-		System.out.println("Usage: Chip8Emulator \"FILE\" [-c cycle-speed] [-d display-scale] [-v | --not-verbose] [-o output-file] [--help]");
+	private void printUsage() {
+		System.out.println("Usage: Chip8Emulator \"FILE\" [-c cycle-speed] [-d display-scale] [-v | --not-verbose] [-o output-file] [--trace-level level] [--trace-categories list] [--headless [--cycles n | --frames n]] [--bench [FILE] [--cycles n]] [--record input-file | --replay input-file] [--metrics n] [--profile name] [--jit] [--overlay] [--help]");
 		
 		System.out.println("\tFILE : The filename of the ROM to be loaded.");
 		
 		System.out.println("Optional:");
 		System.out.println("\t[-d display-scale] : Integer initial factor to scale the CHIP-8's 64x32 display. Default: " + DEFAULT_DISPLAY_SCALE);
-		System.out.println("\t[-c cycle-speed] : Integer delay between emulation cycles, in milliseconds. Default: " + DEFAULT_CYCLE_SPEED);
+		System.out.println("\t[-c cycle-speed] : Target number of emulation cycles (instructions) per second. Default: " + DEFAULT_CYCLE_SPEED);
 		System.out.println("\t[-v | --not-verbose] : Whether verbose debugging mode should be enabled. Default: " + DEFAULT_VERBOSE_FLAG);
 		System.out.println("\t[-o output-file] : Output file location for logging debug statements. Default: Standard Out");
+		System.out.println("\t[--trace-level level] : Most detailed level traced: off, error, info, debug or trace. Default: trace if verbose, else off");
+		System.out.println("\t[--trace-categories list] : Comma-separated categories traced: cpu, display, keypad, timers, system. Default: all");
+		System.out.println("\t[--headless] : Runs the ROM without a GUI for a cycle or frame budget, then prints the final system state.");
+		System.out.println("\t[--cycles n | --frames n] : The headless budget, in emulation cycles or 60 Hz frames. Default: " + DEFAULT_FRAME_BUDGET + " frames");
+		System.out.println("\t[--bench [FILE] [--cycles n]] : Runs the ROM unthrottled and reports instructions/sec, wall time, allocation rate and phase split. Default: " + DEFAULT_BENCH_CYCLES + " cycles");
+		System.out.println("\t[--record input-file] : Records the random seed and key presses to a file when the emulator exits, so the run can be replayed exactly.");
+		System.out.println("\t[--replay input-file] : Replays a recorded run headless, until the end of the recording unless a budget is given. Combine with --bench to benchmark it.");
+		System.out.println("\t[--metrics n] : Prints a summary of emulator metrics to the trace output every n frames. Metrics are always available over JMX.");
+		System.out.println("\t[--profile name] : Profiles where the ROM spends its cycles, writing a heat histogram of cycles per address to name.heat and collapsed call stacks for flamegraph tools to name.folded when the emulator exits.");
+		System.out.println("\t[--jit] : Runs cached, pre-decoded basic blocks instead of single instructions where possible.");
+		System.out.println("\t[--overlay] : Shows live frame time percentiles over the display. F3 also shows or hides them.");
 		System.out.println("\t[--help] : Prints this message.");
 	}//end method printUsageError
 	
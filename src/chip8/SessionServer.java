@@ -0,0 +1,561 @@
+package chip8;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import chip8.emulator.Chip8;
+import chip8.emulator.Display;
+import chip8.emulator.EmulationScheduler;
+import chip8.emulator.EmulatorContext;
+import chip8.emulator.Keypad;
+
+/**Hosts many emulator sessions in one JVM, one per client connected over a local TCP or Unix domain socket.<br>
+ * <p>Every session runs on the shared {@link EmulationScheduler}, and every connection is served by a single selector thread,
+ * so a session costs no thread of its own. A session waiting for a key press is not run at all, so thousands of idle sessions are cheap to hold.</p>
+ * <p>Messages are binary, with big-endian integers, and start with a one-byte type. A client first sends:</p>
+ * <ul>
+ * <li>{@link #MESSAGE_ROM}, a 2-byte length, then the ROM itself. The server replies with {@link #MESSAGE_SESSION} and a 4-byte session ID, then starts the session.</li>
+ * </ul>
+ * <p>After that, the client may send any number of:</p>
+ * <ul>
+ * <li>{@link #MESSAGE_KEY_DOWN} or {@link #MESSAGE_KEY_UP}, then the 1-byte value of the key pressed or released.</li>
+ * </ul>
+ * <p>Whenever the session's display changes, at most once per 60 Hz frame, the server sends:</p>
+ * <ul>
+ * <li>{@link #MESSAGE_FRAME}, a 4-byte mask of the rows changed since the last frame sent, where bit n is set if row n changed,
+ * then each changed row in order from the top, as 8 bytes with the leftmost pixel in the most-significant bit. The display is blank before the first frame.</li>
+ * </ul>
+ * <p>If a client sends an invalid message, or its session's ROM fails, such as by overflowing the call stack,
+ * the server sends {@link #MESSAGE_ERROR}, a 2-byte length and a UTF-8 description, then closes the connection.</p>
+ */
+public class SessionServer {
+	
+	/* Message types */
+	/** Client message loading a ROM into a new session */
+	public static final byte MESSAGE_ROM = 0x01;
+	
+	/** Client message pressing a key */
+	public static final byte MESSAGE_KEY_DOWN = 0x02;
+	
+	/** Client message releasing a key */
+	public static final byte MESSAGE_KEY_UP = 0x03;
+	
+	/** Server message identifying a started session */
+	public static final byte MESSAGE_SESSION = (byte) 0x81;
+	
+	/** Server message updating the changed rows of the display */
+	public static final byte MESSAGE_FRAME = (byte) 0x82;
+	
+	/** Server message describing an invalid client message or a failed session, sent before the connection is closed */
+	public static final byte MESSAGE_ERROR = (byte) 0x83;
+	
+	/* Command line arguments */
+	private String unixSocketPath = "";
+	private int port = -1;
+	private int cycleSpeed = -1;
+	private boolean blockTranslationFlag = false;
+	
+	/* Default options */
+	private static final int DEFAULT_PORT = 8642;
+	private static final int DEFAULT_CYCLE_SPEED = Chip8.DEFAULT_INSTRUCTIONS_PER_SECOND;
+	
+	/** The interval display changes are gathered over before being sent, in milliseconds, which is one 60 Hz frame */
+	private static final long FLUSH_INTERVAL_MILLIS = 1000 / 60;
+	
+	/** The largest message a client may send, which is a ROM filling all of memory */
+	private static final int MAX_MESSAGE_SIZE = 3 + Chip8.MAIN_MEMORY_SIZE - Chip8.ROM_START_ADDRESS;
+	
+	/** The largest message the server sends, which is a frame with every row changed */
+	private static final int MAX_FRAME_SIZE = 5 + 8 * Chip8.DISPLAY_HEIGHT;
+	
+	/** The selector serving every connection */
+	private Selector selector;
+	
+	/** Sessions whose display has changed since their last frame was sent, added by the threads running the sessions */
+	private final ConcurrentLinkedQueue<Session> changedSessions = new ConcurrentLinkedQueue<Session>();
+	
+	/** Sessions whose emulation failed, added by the threads running the sessions */
+	private final ConcurrentLinkedQueue<Session> failedSessions = new ConcurrentLinkedQueue<Session>();
+	
+	/** The ID given to the next session started */
+	private int nextSessionId = 1;
+	
+	/** The number of sessions currently connected */
+	private int sessionCount = 0;
+	
+	/**One client's connection, and the emulator session it started.*/
+	private class Session implements Display {
+		
+		private final SocketChannel channel;
+		private final ByteBuffer input = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+		private final ByteBuffer output = ByteBuffer.allocate(2 * MAX_FRAME_SIZE);
+		
+		private Chip8 emulator;
+		private Keypad keypad;
+		
+		/** The display as of the last frame sent */
+		private final long[] sentRows = new long[Chip8.DISPLAY_HEIGHT];
+		
+		/** Whether the session is queued to have its display changes sent, so that it is never queued twice */
+		private final AtomicBoolean changed = new AtomicBoolean();
+		
+		/** Whether a frame is waiting for the output to drain before it can be sent */
+		private boolean deferred = false;
+		
+		/** Whether the connection is closed once its output drains, after an error was sent */
+		private boolean closing = false;
+		
+		private Session(SocketChannel channel) {
+			this.channel = channel;
+		}//end constructor method
+		
+		/**Queues the session to have its changes sent with the next frame.<br>
+		 * Called by the thread running the session, whenever it has published a changed frame to its frame buffer.
+		 */
+		@Override
+		public void update() {
+			if(this.changed.compareAndSet(false, true))
+				changedSessions.add(this);
+		}//end method update
+		
+		/**Does nothing, as the client scales its own display.
+		 * @param factor The factor to scale the display pixels.
+		 */
+		@Override
+		public void scale(int factor) {}
+		
+		/**Queues the session to have its failure sent, and wakes the selector thread to send it.<br>
+		 * Called by the thread running the session, once its emulation loop has stopped on the failure.
+		 */
+		private void emulationFailed() {
+			failedSessions.add(this);
+			selector.wakeup();
+		}//end method emulationFailed
+		
+	}//end class Session
+	
+	/**Serves sessions on the socket given by the supplied command line arguments, until the JVM exits.
+	 * @param args Command line arguments to be parsed
+	 */
+	public static void main(String[] args) {
+		new SessionServer().launch(args);
+	}//end method main
+	
+	/**Parses the supplied command line arguments, then opens the socket and serves clients on the calling thread.
+	 * @param args Command line arguments to be parsed
+	 */
+	private void launch(String[] args) {
+		parseOptions(args);
+		validateArguments();
+		
+		try {
+			ServerSocketChannel server;
+			SocketAddress address;
+			if(!unixSocketPath.equals("")) {
+				Path socketPath = Paths.get(unixSocketPath);
+				Files.deleteIfExists(socketPath);
+				server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+				address = UnixDomainSocketAddress.of(socketPath);
+				
+				Runtime.getRuntime().addShutdownHook(new Thread( () -> {
+					try {
+						Files.deleteIfExists(socketPath);
+					} catch(IOException e) {
+						System.err.println("Socket removal failed: " + e.getMessage());
+					}//end try-catch
+				}, "Chip8-Socket"));
+			} else {
+				server = ServerSocketChannel.open(StandardProtocolFamily.INET);
+				address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+			}//end if
+			
+			server.bind(address);
+			server.configureBlocking(false);
+			selector = Selector.open();
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			
+			System.err.println("Serving sessions on " + server.getLocalAddress());
+			serve(server);
+		} catch(IOException e) {
+			System.err.println("Error: Unable to serve sessions: " + e.getMessage());
+			System.exit(1);
+		}//end try-catch
+	}//end method launch
+	
+	/**Serves every connection, sending the changes to each session's display once per frame.
+	 * @param server The listening socket
+	 * @throws IOException If the selector fails
+	 */
+	private void serve(ServerSocketChannel server) throws IOException {
+		long nextFlush = System.nanoTime();
+		
+		while(true) {
+			long timeout = Math.max(1, (nextFlush - System.nanoTime()) / 1_000_000);
+			
+			//With no sessions connected, there is nothing to send until a client connects
+			if(sessionCount == 0)
+				selector.select();
+			else
+				selector.select(timeout);
+			
+			for(SelectionKey key : selector.selectedKeys()) {
+				if(!key.isValid())
+					continue;
+				
+				if(key.isAcceptable()) {
+					accept(server);
+					continue;
+				}//end if
+				
+				Session session = (Session) key.attachment();
+				try {
+					if(key.isReadable())
+						read(session);
+					if(key.isValid() && key.isWritable())
+						write(session);
+				} catch(IOException e) {
+					close(session);
+				}//end try-catch
+			}//end for
+			selector.selectedKeys().clear();
+			
+			long now = System.nanoTime();
+			if(now - nextFlush >= 0) {
+				sendChangedFrames();
+				nextFlush = now + FLUSH_INTERVAL_MILLIS * 1_000_000;
+			}//end if
+			
+			sendFailures();
+		}//end while
+	}//end method serve
+	
+	/**Accepts a waiting connection, if there is one.
+	 * @param server The listening socket
+	 * @throws IOException If the connection cannot be registered with the selector
+	 */
+	private void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel channel = server.accept();
+		if(channel == null)
+			return;
+		
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Session(channel));
+		sessionCount++;
+	}//end method accept
+	
+	/**Reads from a connection, then handles every complete message received.
+	 * @param session The connection's session
+	 * @throws IOException If the connection fails, or was closed by the client
+	 */
+	private void read(Session session) throws IOException {
+		if(session.channel.read(session.input) < 0)
+			throw new IOException("Connection closed by client");
+		
+		session.input.flip();
+		while(!session.closing && session.input.hasRemaining()) {
+			int start = session.input.position();
+			if(!handleMessage(session)) {
+				session.input.position(start);
+				break;
+			}//end if
+		}//end while
+		session.input.compact();
+	}//end method read
+	
+	/**Handles the next message received from a client.
+	 * @param session The client's session
+	 * @return True, if a whole message was handled. If the rest of the message has not been received yet, false.
+	 * @throws IOException If the connection fails
+	 */
+	private boolean handleMessage(Session session) throws IOException {
+		ByteBuffer input = session.input;
+		byte type = input.get();
+		
+		switch(type) {
+			case MESSAGE_ROM :
+				if(input.remaining() < 2)
+					return false;
+				int length = Short.toUnsignedInt(input.getShort());
+				if(length > Chip8.MAIN_MEMORY_SIZE - Chip8.ROM_START_ADDRESS) {
+					sendError(session, "ROM too large to fit into CHIP-8 memory");
+					return true;
+				}//end if
+				if(input.remaining() < length)
+					return false;
+				
+				byte[] rom = new byte[length];
+				input.get(rom);
+				startSession(session, rom);
+				return true;
+			
+			case MESSAGE_KEY_DOWN :
+			case MESSAGE_KEY_UP :
+				if(input.remaining() < 1)
+					return false;
+				byte key = input.get();
+				
+				if(session.keypad == null)
+					sendError(session, "A ROM must be loaded before keys are sent");
+				else if(key < 0 || key >= Keypad.KEYS.length)
+					sendError(session, "Invalid key " + key);
+				else if(type == MESSAGE_KEY_DOWN)
+					session.keypad.pressKey(key);
+				else
+					session.keypad.releaseKey(key);
+				return true;
+			
+			default :
+				sendError(session, String.format("Unexpected message type 0x%02X", type));
+				return true;
+		}//end switch
+	}//end method handleMessage
+	
+	/**Starts a connection's session from a received ROM.
+	 * @param session The connection's session
+	 * @param rom The contents of the ROM
+	 * @throws IOException If the connection fails
+	 */
+	private void startSession(Session session, byte[] rom) throws IOException {
+		if(session.emulator != null) {
+			sendError(session, "A session has already been started on this connection");
+			return;
+		}//end if
+		
+		Chip8 emulator = new Chip8(EmulatorContext.QUIET);
+		emulator.loadROM(rom);
+		session.keypad = new Keypad();
+		emulator.attachKeypad(session.keypad);
+		emulator.attachDisplay(session);
+		emulator.setBlockCacheEnabled(blockTranslationFlag);
+		session.emulator = emulator;
+		
+		session.output.put(MESSAGE_SESSION).putInt(nextSessionId++);
+		write(session);
+		
+		emulator.startEmulation(cycleSpeed);
+		emulator.getEmulationLoop().setFailureListener(session::emulationFailed);
+	}//end method startSession
+	
+	/**Sends every changed session's display changes as a frame.*/
+	private void sendChangedFrames() {
+		Session session;
+		while((session = changedSessions.poll()) != null) {
+			try {
+				sendFrame(session);
+			} catch(IOException e) {
+				close(session);
+			}//end try-catch
+		}//end while
+	}//end method sendChangedFrames
+	
+	/**Sends every failed session's failure as an error, after its last frame, then closes its connection once the error has been sent.*/
+	private void sendFailures() {
+		Session session;
+		while((session = failedSessions.poll()) != null) {
+			if(session.closing || !session.channel.isOpen())
+				continue;
+			
+			try {
+				sendFrame(session);
+				sendError(session, "Emulation failed: " + session.emulator.getEmulationLoop().getFailure().getMessage());
+			} catch(IOException e) {
+				close(session);
+			}//end try-catch
+		}//end while
+	}//end method sendFailures
+	
+	/**Sends the rows of a session's display which changed since its last frame was sent.<br>
+	 * If the client has not yet received the last frame sent, the frame is deferred until it has, and then covers every change made in the meantime.
+	 * @param session The session
+	 * @throws IOException If the connection fails
+	 */
+	private void sendFrame(Session session) throws IOException {
+		if(session.closing || !session.channel.isOpen())
+			return;
+		
+		if(session.output.position() > 0) {
+			session.deferred = true;
+			return;
+		}//end if
+		session.deferred = false;
+		
+		//Changes made from here on queue the session again
+		session.changed.set(false);
+		
+		ByteBuffer output = session.output;
+		int maskPosition = output.put(MESSAGE_FRAME).position();
+		output.putInt(0);
+		
+		//The selector thread is the only reader of the session's frame buffer, so the frame taken is whole and stays unchanged
+		session.emulator.getFrameBuffer().acquire();
+		long[] frame = session.emulator.getFrameBuffer().getFrontFrame();
+		
+		int changedRows = 0;
+		for(int row = 0; row < Chip8.DISPLAY_HEIGHT; ++row) {
+			long rowPixels = frame[row];
+			if(rowPixels != session.sentRows[row]) {
+				changedRows |= 1 << row;
+				session.sentRows[row] = rowPixels;
+				output.putLong(rowPixels);
+			}//end if
+		}//end for
+		
+		if(changedRows == 0) {
+			output.clear();
+			return;
+		}//end if
+		
+		output.putInt(maskPosition, changedRows);
+		write(session);
+	}//end method sendFrame
+	
+	/**Sends a description of an invalid client message or a failed session, then closes the connection once it has been sent.<br>
+	 * The session is stopped straight away, and any further messages from the client are ignored.
+	 * @param session The client's session
+	 * @param message The description, which is cut short to fit the output if needed
+	 * @throws IOException If the connection fails
+	 */
+	private void sendError(Session session, String message) throws IOException {
+		if(session.emulator != null)
+			session.emulator.stopEmulation();
+		session.closing = true;
+		
+		byte[] description = message.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(description.length, session.output.remaining() - 3);
+		session.output.put(MESSAGE_ERROR).putShort((short) length).put(description, 0, length);
+		write(session);
+	}//end method sendError
+	
+	/**Writes as much of a connection's output as the connection accepts, watching for it to accept more if any is left over.
+	 * @param session The connection's session
+	 * @throws IOException If the connection fails
+	 */
+	private void write(Session session) throws IOException {
+		session.output.flip();
+		session.channel.write(session.output);
+		session.output.compact();
+		
+		SelectionKey key = session.channel.keyFor(selector);
+		if(session.output.position() > 0) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} else if(session.closing) {
+			close(session);
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+			
+			if(session.deferred)
+				sendFrame(session);
+		}//end if
+	}//end method write
+	
+	/**Closes a connection, and stops its session.
+	 * @param session The connection's session
+	 */
+	private void close(Session session) {
+		if(!session.channel.isOpen())
+			return;
+		
+		if(session.emulator != null)
+			session.emulator.stopEmulation();
+		
+		try {
+			session.channel.close();
+		} catch(IOException e) {
+			System.err.println("Connection close failed: " + e.getMessage());
+		}//end try-catch
+		sessionCount--;
+	}//end method close
+	
+	/**Ensures provided arguments are valid, and sets any unprovided arguments to their default values*/
+	private void validateArguments() {
+		if(!unixSocketPath.equals("") && port != -1) {
+			System.err.println("Only one of --port and --unix may be provided");
+			System.exit(1);
+		}//end if
+		
+		if(port == -1)
+			port = DEFAULT_PORT;
+		
+		if(cycleSpeed == -1)
+			cycleSpeed = DEFAULT_CYCLE_SPEED;
+	}//end method validateArguments
+	
+	/**Parses command line options.
+	 * @param args The array of input command line options
+	 */
+	private void parseOptions(String[] args) {
+		for(int i = 0; i < args.length; ++i) {
+			switch(args[i]) {
+				case "--help" :
+					printUsage();
+					System.exit(0);
+					break;
+				
+				case "--port" :
+					try {
+						port = Integer.parseInt(args[++i]);
+						if(port < 0 || port > 0xFFFF)
+							throw new IllegalArgumentException("--port requires a port number");
+					} catch(ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+						System.err.println("--port requires a port number argument, from 0 to 65535");
+						System.exit(1);
+					}//end try-catch
+					break;
+				
+				case "--unix" :
+					if(i + 1 >= args.length || args[i + 1].startsWith("-")) {
+						System.err.println("--unix requires a socket path argument");
+						System.exit(1);
+					}//end if
+					unixSocketPath = args[++i];
+					break;
+				
+				case "-c" :
+					try {
+						cycleSpeed = Integer.parseInt(args[++i]);
+						if(cycleSpeed <= 0)
+							throw new IllegalArgumentException("-c requires a positive argument");
+					} catch(ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+						System.err.println("-c requires a positive integer argument");
+						System.exit(1);
+					}//end try-catch
+					break;
+				
+				case "--jit" :
+					blockTranslationFlag = true;
+					break;
+				
+				default :
+					System.err.println("Unexpected option: " + args[i]);
+					System.exit(1);
+			}//end switch
+		}//end for
+	}//end method parseOptions
+	
+	/** Prints proper command line parameter usage message */
+	private static void printUsage() {
+		System.out.println("Usage: SessionServer [--port n | --unix socket-path] [-c n] [--jit] [--help]");
+		
+		System.out.println("Optional:");
+		System.out.println("\t[--port n | --unix socket-path] : The loopback TCP port, or the Unix domain socket, clients connect to. Default: port " + DEFAULT_PORT);
+		System.out.println("\t[-c n] : The number of instructions each session runs per second. Default: " + DEFAULT_CYCLE_SPEED);
+		System.out.println("\t[--jit] : Runs cached, pre-decoded basic blocks instead of single instructions where possible.");
+		System.out.println("\t[--help] : Prints this help message, then exits.");
+	}//end method printUsage
+
+}//end class SessionServer
@@ -0,0 +1,157 @@
+package chip8.emulator;
+
+import java.util.Arrays;
+
+/**Caches the basic blocks of a loaded ROM as runs of pre-decoded instructions, so that a cached block executes without fetching or decoding any of its opcodes.<br>
+ * A basic block starts at any address control reaches, and ends at the first opcode which can change the flow of control (JP, CALL, RET, JP V0 and the skips),
+ * wait on the keypad, or write to main memory. Writes to memory covered by cached blocks invalidate those blocks.
+ * Blocks which are run often enough are compiled by the {@link BlockCompiler} into bytecode of their own.
+ */
+final class BlockCache {
+	
+	/** The maximum number of instructions in a single basic block */
+	static final int MAX_BLOCK_LENGTH = 64;
+	
+	/** Log2 of the size in bytes of the memory pages used to track which memory holds cached code */
+	private static final int PAGE_SHIFT = 6;
+	
+	/** The emulated main memory blocks are translated from */
+	private final byte[] memory;
+	
+	/** Cached blocks, indexed by their starting address */
+	private final Block[] blocks = new Block[Chip8.MAIN_MEMORY_SIZE];
+	
+	/** The number of cached blocks overlapping each memory page */
+	private final int[] pageBlockCount = new int[Chip8.MAIN_MEMORY_SIZE >>> PAGE_SHIFT];
+	
+	/**A translated basic block of pre-decoded instructions.*/
+	static final class Block {
+		
+		/** The address of the first instruction in the block */
+		final int start;
+		
+		/** The address following the last instruction in the block */
+		final int end;
+		
+		/** The block's instructions, in execution order */
+		final DecodedInstruction[] instructions;
+		
+		/** The number of times the block has been interpreted, counted until it is compiled */
+		int runs;
+		
+		/** The block compiled into bytecode, or null until it has been interpreted {@link BlockCompiler#COMPILE_THRESHOLD} times, or if it could not be compiled */
+		BlockCompiler.CompiledBlock compiled;
+		
+		private Block(int start, DecodedInstruction[] instructions) {
+			this.start = start;
+			this.end = start + 2 * instructions.length;
+			this.instructions = instructions;
+		}//end constructor method
+		
+	}//end class Block
+	
+	/**Creates a new, empty block cache over the provided main memory.
+	 * @param memory The emulated CHIP-8 main memory holding the code to be cached
+	 */
+	BlockCache(byte[] memory) {
+		this.memory = memory;
+	}//end constructor method
+	
+	/**Gets the basic block starting at the provided address, translating it if it is not already cached.
+	 * @param address The address of the block's first instruction
+	 * @return The cached block, or null if no complete instruction can be fetched from the address
+	 */
+	Block getBlock(int address) {
+		if(address < 0 || address >= Chip8.MAIN_MEMORY_SIZE - 1)
+			return null;
+		
+		Block block = this.blocks[address];
+		if(block == null)
+			block = translate(address);
+		
+		return block;
+	}//end method getBlock
+	
+	/**Invalidates all cached blocks overlapping a range of memory which has been written to.
+	 * @param start The address of the first byte written
+	 * @param length The number of bytes written
+	 */
+	void invalidate(int start, int length) {
+		int end = Math.min(start + length, Chip8.MAIN_MEMORY_SIZE);
+		
+		//Skip the scan entirely if no written page holds cached code
+		boolean holdsCode = false;
+		for(int page = start >>> PAGE_SHIFT; page <= (end - 1) >>> PAGE_SHIFT; ++page)
+			holdsCode |= this.pageBlockCount[page] != 0;
+		if(!holdsCode)
+			return;
+		
+		//Any overlapping block must start within the maximum block size before the written range
+		for(int address = Math.max(0, start - 2 * MAX_BLOCK_LENGTH + 1); address < end; ++address) {
+			Block block = this.blocks[address];
+			if(block != null && block.end > start)
+				evict(block);
+		}//end for
+	}//end method invalidate
+	
+	/** Invalidates every cached block. */
+	void invalidateAll() {
+		Arrays.fill(this.blocks, null);
+		Arrays.fill(this.pageBlockCount, 0);
+	}//end method invalidateAll
+	
+	/**Translates the basic block starting at the provided address, and caches it.
+	 * @param address The address of the block's first instruction
+	 * @return The newly cached block
+	 */
+	private Block translate(int address) {
+		DecodedInstruction[] buffer = new DecodedInstruction[MAX_BLOCK_LENGTH];
+		int length = 0;
+		
+		for(int pc = address; pc < Chip8.MAIN_MEMORY_SIZE - 1 && length < MAX_BLOCK_LENGTH; pc += 2) {
+			short opcode = (short) (((this.memory[pc] << 8) & 0xFF00) | (this.memory[pc + 1] & 0x00FF));
+			buffer[length++] = InstructionMapper.getInstruction(opcode);
+			
+			if(endsBlock(opcode))
+				break;
+		}//end for
+		
+		Block block = new Block(address, Arrays.copyOf(buffer, length));
+		this.blocks[address] = block;
+		
+		for(int page = block.start >>> PAGE_SHIFT; page <= (block.end - 1) >>> PAGE_SHIFT; ++page)
+			this.pageBlockCount[page]++;
+		
+		return block;
+	}//end method translate
+	
+	/**Removes a block from the cache.
+	 * @param block The block to be removed
+	 */
+	private void evict(Block block) {
+		this.blocks[block.start] = null;
+		
+		for(int page = block.start >>> PAGE_SHIFT; page <= (block.end - 1) >>> PAGE_SHIFT; ++page)
+			this.pageBlockCount[page]--;
+	}//end method evict
+	
+	/**Gets whether the provided opcode must be the last instruction of a basic block.
+	 * @param opcode The opcode to be checked
+	 * @return True, if the opcode may change the flow of control or write to memory. If not, false.
+	 */
+	private static boolean endsBlock(short opcode) {
+		switch((opcode & 0xF000) >>> 12) {
+			case 0x0 :
+				return (opcode & 0x00FF) == 0xEE;					//RET, which is decoded from the low byte alone
+			case 0x1 : case 0x2 : case 0xB :						//JP, CALL, JP V0
+			case 0x3 : case 0x4 : case 0x5 : case 0x9 : case 0xE :	//Skips
+				return true;
+			case 0xF :
+				int lowByte = opcode & 0x00FF;
+				return lowByte == 0x0A || lowByte == 0x33 || lowByte == 0x55;	//Key wait and memory writes
+			default :
+				return false;
+		}//end switch
+	}//end method endsBlock
+	
+}//end class BlockCache
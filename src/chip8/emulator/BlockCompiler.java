@@ -0,0 +1,818 @@
+package chip8.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**Compiles hot basic blocks into hidden classes of straight-line bytecode, one class per block, which the JVM's JIT then compiles like any other method.<br>
+ * <p>Interpreting a block calls each of its instructions through the {@link Instruction} interface, a call site shared by every opcode family, which the JIT cannot inline.
+ * A compiled block instead holds the V registers it touches in local variables, loaded on first use and stored back only when the block ends or an instruction it does not inline needs them.
+ * Register, index and timer instructions (LD, ADD, the ALU ops, LD I, ADD I and the timer loads) are inlined as plain arithmetic on those locals.
+ * Every other instruction is a direct call to its method in {@link Chip8}, with the PC and cycle count brought up to date first, so it runs exactly as when interpreted.
+ * A block cut short by the end of a frame leaves through an exit at that instruction boundary, storing back only the registers written so far.</p>
+ * <p>Compiled classes are nestmates of {@link Chip8}, so they read and write its private state directly. A compiled block only depends on its address and opcodes,
+ * so one compiled instance is shared by every emulator running the same block, up to {@link #MAX_SHARED_BLOCKS} blocks.</p>
+ */
+final class BlockCompiler {
+	
+	/** The number of times a block is interpreted before it is compiled, so that code which only runs a few times is never compiled */
+	static final int COMPILE_THRESHOLD = 256;
+	
+	/** The maximum number of compiled blocks shared between emulators. Blocks compiled once this many are shared are used only by the block they were compiled for. */
+	static final int MAX_SHARED_BLOCKS = 4096;
+	
+	/** Lookup on the emulator, with the full privileges needed to define nestmates of it */
+	private static final MethodHandles.Lookup LOOKUP;
+	
+	/** The name of the method in {@link Chip8} carrying out each opcode family, indexed by the family's ordinal */
+	private static final String[] INSTRUCTION_METHODS = new String[OpcodeFamily.values().length];
+	
+	/** Compiled blocks shared between emulators, keyed by their address followed by their opcodes */
+	private static final Map<String, CompiledBlock> shared = new ConcurrentHashMap<String, CompiledBlock>();
+	
+	/* Internal names and descriptors of the classes and members compiled blocks use */
+		private static final String CHIP8 = "chip8/emulator/Chip8";
+		private static final String DECODED_INSTRUCTION = "chip8/emulator/DecodedInstruction";
+		private static final String COMPILED_BLOCK = "chip8/emulator/BlockCompiler$CompiledBlock";
+		private static final String INSTRUCTIONS_ARRAY = "[L" + DECODED_INSTRUCTION + ";";
+		private static final String RUN_DESCRIPTOR = "(L" + CHIP8 + ";" + INSTRUCTIONS_ARRAY + "I)V";
+		private static final String INSTRUCTION_DESCRIPTOR = "(L" + DECODED_INSTRUCTION + ";)V";
+	
+	/* Local variable slots of the compiled run method */
+		private static final int SYSTEM_SLOT = 1;
+		private static final int INSTRUCTIONS_SLOT = 2;
+		private static final int LENGTH_SLOT = 3;
+		private static final int COUNTS_SLOT = 4;
+		private static final int REGISTERS_SLOT = 5;
+		private static final int FIRST_REGISTER_SLOT = 6;
+		private static final int SUM_SLOT = FIRST_REGISTER_SLOT + Chip8.NUM_REGISTERS;
+		private static final int MAX_LOCALS = SUM_SLOT + 1;
+	
+	static {
+		try {
+			LOOKUP = MethodHandles.privateLookupIn(Chip8.class, MethodHandles.lookup());
+		} catch(IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}//end try-catch
+		
+		//Each family's method is named after its mnemonic and opcode pattern, such as ADD_8XY4 and add_8xy4
+		for(OpcodeFamily family : OpcodeFamily.values()) {
+			String name = (family == OpcodeFamily.INVALID) ? "nop_dummy"
+					: family.name().substring(0, family.name().indexOf('_')).toLowerCase() + "_" + family.pattern;
+			
+			try {
+				Chip8.class.getDeclaredMethod(name, DecodedInstruction.class);
+			} catch(NoSuchMethodException e) {
+				throw new ExceptionInInitializerError("No instruction method " + name + " for " + family);
+			}//end try-catch
+			
+			INSTRUCTION_METHODS[family.ordinal()] = name;
+		}//end for
+	}//end static initializer
+	
+	/**A basic block compiled into straight-line bytecode.*/
+	interface CompiledBlock {
+		
+		/**Runs the first instructions of the block, exactly as {@link Chip8#runCycles(long)} would interpret them, counting each cycle and opcode family.
+		 * The current PC must be the block's address, and the instructions run must fit before the end of the current frame.
+		 * @param system The emulator the block is run on
+		 * @param instructions The block's pre-decoded instructions, passed to the instructions which are not inlined
+		 * @param length The number of instructions to run, from 1 to the length of the block
+		 */
+		public void run(Chip8 system, DecodedInstruction[] instructions, int length);
+		
+	}//end interface CompiledBlock
+	
+	/** Not instantiable; compiled blocks are shared by all emulated systems */
+	private BlockCompiler() {}
+	
+	/**Compiles a basic block, or gets the block already compiled from the same address and opcodes.
+	 * @param start The address of the block's first instruction
+	 * @param instructions The block's instructions, in execution order
+	 * @return The compiled block
+	 * @throws IllegalStateException If the compiled class could not be defined
+	 */
+	static CompiledBlock compile(int start, DecodedInstruction[] instructions) {
+		StringBuilder key = new StringBuilder(instructions.length + 1).append((char) start);
+		for(DecodedInstruction instruction : instructions)
+			key.append((char) instruction.opcode);
+		
+		CompiledBlock block = shared.get(key.toString());
+		if(block != null)
+			return block;
+		
+		block = define(start, instructions);
+		if(shared.size() < MAX_SHARED_BLOCKS)
+			shared.putIfAbsent(key.toString(), block);
+		
+		return block;
+	}//end method compile
+	
+	/**Generates and defines the hidden class of a compiled block, and creates its instance.
+	 * @param start The address of the block's first instruction
+	 * @param instructions The block's instructions, in execution order
+	 * @return The compiled block
+	 */
+	private static CompiledBlock define(int start, DecodedInstruction[] instructions) {
+		try {
+			byte[] classFile = new BlockClassWriter(start, instructions).toByteArray();
+			Class<?> compiled = LOOKUP.defineHiddenClass(classFile, true, MethodHandles.Lookup.ClassOption.NESTMATE).lookupClass();
+			
+			return (CompiledBlock) compiled.getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException | LinkageError e) {
+			throw new IllegalStateException(String.format("Unable to compile block at %03X: %s", start, e), e);
+		}//end try-catch
+	}//end method define
+	
+	/**Writes the class file of a single compiled block: a final class implementing {@link CompiledBlock} with a no-argument constructor and one straight-line run method.<br>
+	 * The run method's only branches are to its exits, all of which have every local assigned, so they share the one stack map frame.
+	 */
+	private static final class BlockClassWriter {
+		
+		/* Class file constants */
+			private static final int MAGIC = 0xCAFEBABE;
+			private static final int JAVA_17 = 61;
+			private static final int ACC_PUBLIC = 0x0001;
+			private static final int ACC_FINAL = 0x0010;
+			private static final int ACC_SUPER = 0x0020;
+			private static final int CONSTANT_UTF8 = 1;
+			private static final int CONSTANT_INTEGER = 3;
+			private static final int CONSTANT_LONG = 5;
+			private static final int CONSTANT_CLASS = 7;
+			private static final int CONSTANT_FIELDREF = 9;
+			private static final int CONSTANT_METHODREF = 10;
+			private static final int CONSTANT_NAME_AND_TYPE = 12;
+			private static final int FULL_FRAME = 255;
+			private static final int ITEM_INTEGER = 1;
+			private static final int ITEM_OBJECT = 7;
+		
+		/* Bytecode instructions */
+			private static final int ICONST_0 = 0x03;
+			private static final int LCONST_1 = 0x0A;
+			private static final int BIPUSH = 0x10;
+			private static final int SIPUSH = 0x11;
+			private static final int LDC_W = 0x13;
+			private static final int LDC2_W = 0x14;
+			private static final int ILOAD = 0x15;
+			private static final int ALOAD = 0x19;
+			private static final int LALOAD = 0x2F;
+			private static final int AALOAD = 0x32;
+			private static final int BALOAD = 0x33;
+			private static final int ISTORE = 0x36;
+			private static final int ASTORE = 0x3A;
+			private static final int LASTORE = 0x50;
+			private static final int BASTORE = 0x54;
+			private static final int DUP = 0x59;
+			private static final int DUP2 = 0x5C;
+			private static final int IADD = 0x60;
+			private static final int LADD = 0x61;
+			private static final int ISUB = 0x64;
+			private static final int ISHL = 0x78;
+			private static final int IUSHR = 0x7C;
+			private static final int IAND = 0x7E;
+			private static final int IOR = 0x80;
+			private static final int IXOR = 0x82;
+			private static final int I2B = 0x91;
+			private static final int I2S = 0x93;
+			private static final int IF_ICMPEQ = 0x9F;
+			private static final int RETURN = 0xB1;
+			private static final int GETFIELD = 0xB4;
+			private static final int PUTFIELD = 0xB5;
+			private static final int INVOKEVIRTUAL = 0xB6;
+			private static final int INVOKESPECIAL = 0xB7;
+		
+		/** The deepest the operand stack of the run method can grow: an array and index duplicated, plus two longs */
+		private static final int MAX_STACK = 8;
+		
+		/* States of the V registers cached in local variables */
+			/** The register has not been loaded into its local */
+			private static final int UNLOADED = 0;
+			
+			/** The register's local holds the same value as the register */
+			private static final int CLEAN = 1;
+			
+			/** The register's local holds a newer value than the register, which must be stored back */
+			private static final int DIRTY = 2;
+		
+		private final int start;
+		private final DecodedInstruction[] instructions;
+		
+		/** The class file's constant pool entries, after the unused entry 0 */
+		private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+		
+		/** The index of each constant pool entry already written, keyed by its type and value */
+		private final Map<String, Integer> constantIndexes = new HashMap<String, Integer>();
+		
+		/** The index the next constant pool entry is written at */
+		private int nextConstant = 1;
+		
+		/** The bytecode of the run method being generated */
+		private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		
+		/** The state of each V register's local, as of the bytecode generated so far */
+		private final int[] registerStates = new int[Chip8.NUM_REGISTERS];
+		
+		/** The number of cycles the emulator's cycle count has been advanced by, as of the bytecode generated so far */
+		private int cyclesCounted;
+		
+		/* The exits of the run method, indexed by the number of instructions run before taking them */
+			/** The position of the branch to each exit */
+			private final int[] exitBranches;
+			
+			/** The position of each exit */
+			private final int[] exitTargets;
+			
+			/** Bit mask of the registers whose locals must be stored back at each exit */
+			private final int[] exitDirtyRegisters;
+			
+			/** The number of cycles already counted at each exit */
+			private final int[] exitCyclesCounted;
+		
+		/**Creates the class file writer of a compiled block.
+		 * @param start The address of the block's first instruction
+		 * @param instructions The block's instructions, in execution order
+		 */
+		private BlockClassWriter(int start, DecodedInstruction[] instructions) {
+			this.start = start;
+			this.instructions = instructions;
+			
+			this.exitBranches = new int[instructions.length];
+			this.exitTargets = new int[instructions.length];
+			this.exitDirtyRegisters = new int[instructions.length];
+			this.exitCyclesCounted = new int[instructions.length];
+		}//end constructor method
+		
+		/**Generates the whole class file.
+		 * @return The bytes of the class file
+		 */
+		private byte[] toByteArray() {
+			int thisClass = classConstant(String.format("chip8/emulator/CompiledBlock%03X", this.start));
+			int superClass = classConstant("java/lang/Object");
+			int blockInterface = classConstant(COMPILED_BLOCK);
+			int codeName = utf8Constant("Code");
+			
+			int constructorName = utf8Constant("<init>");
+			int constructorDescriptor = utf8Constant("()V");
+			int objectConstructor = memberConstant(CONSTANT_METHODREF, "java/lang/Object", "<init>", "()V");
+			byte[] constructorCode = {(byte) ALOAD, 0, (byte) INVOKESPECIAL, (byte) (objectConstructor >>> 8), (byte) objectConstructor, (byte) RETURN};
+			
+			int runName = utf8Constant("run");
+			int runDescriptor = utf8Constant(RUN_DESCRIPTOR);
+			byte[] runCode = generateRun();
+			int stackMapName = utf8Constant("StackMapTable");
+			byte[] stackMap = generateStackMap(thisClass, runCode);
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try(DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeInt(MAGIC);
+				out.writeShort(0);
+				out.writeShort(JAVA_17);
+				
+				out.writeShort(this.nextConstant);
+				this.constants.writeTo(out);
+				
+				out.writeShort(ACC_FINAL | ACC_SUPER);
+				out.writeShort(thisClass);
+				out.writeShort(superClass);
+				out.writeShort(1);
+				out.writeShort(blockInterface);
+				
+				out.writeShort(0);		//Fields
+				
+				out.writeShort(2);		//Methods
+				writeMethod(out, constructorName, constructorDescriptor, codeName, 1, 1, constructorCode, 0, null);
+				writeMethod(out, runName, runDescriptor, codeName, MAX_STACK, MAX_LOCALS, runCode, stackMapName, stackMap);
+				
+				out.writeShort(0);		//Attributes
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}//end try-catch
+			
+			return bytes.toByteArray();
+		}//end method toByteArray
+		
+		/**Writes a public method with a code attribute, no exception handlers, and a stack map table if it has any branches.
+		 * @param out The class file being written
+		 * @param name The constant pool index of the method's name
+		 * @param descriptor The constant pool index of the method's descriptor
+		 * @param codeName The constant pool index of "Code"
+		 * @param maxStack The deepest the method's operand stack grows
+		 * @param maxLocals The number of local variable slots the method uses, including its arguments
+		 * @param bytecode The method's bytecode
+		 * @param stackMapName The constant pool index of "StackMapTable"
+		 * @param stackMap The stack map table's frame count and frames, or null if the method has no branches
+		 * @throws IOException Never, as the class file is written to memory
+		 */
+		private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeName, int maxStack, int maxLocals, byte[] bytecode,
+				int stackMapName, byte[] stackMap) throws IOException {
+			out.writeShort(ACC_PUBLIC);
+			out.writeShort(name);
+			out.writeShort(descriptor);
+			out.writeShort(1);
+			
+			out.writeShort(codeName);
+			out.writeInt(12 + bytecode.length + (stackMap != null ? 6 + stackMap.length : 0));
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(bytecode.length);
+			out.write(bytecode);
+			out.writeShort(0);		//Exception table
+			
+			if(stackMap == null) {
+				out.writeShort(0);	//Attributes
+				return;
+			}//end if
+			
+			out.writeShort(1);
+			out.writeShort(stackMapName);
+			out.writeInt(stackMap.length);
+			out.write(stackMap);
+		}//end method writeMethod
+		
+		/**Generates the bytecode of the run method.
+		 * @return The method's bytecode
+		 */
+		private byte[] generateRun() {
+			emit(ALOAD, SYSTEM_SLOT);
+			emitField(GETFIELD, "opcodeCounts", "[J");
+			emit(ASTORE, COUNTS_SLOT);
+			
+			emit(ALOAD, SYSTEM_SLOT);
+			emitField(GETFIELD, "registers", "[B");
+			emit(ASTORE, REGISTERS_SLOT);
+			
+			//Assign every register local up front, so that every exit has the same frame
+			for(int slot = FIRST_REGISTER_SLOT; slot <= SUM_SLOT; ++slot) {
+				emit(ICONST_0);
+				emit(ISTORE, slot);
+			}//end for
+			
+			//Instructions which are not inlined are called, and only the last instruction of a block may change the PC
+			boolean endsWithCall = false;
+			for(int i = 0; i < this.instructions.length; ++i) {
+				if(i > 0)
+					generateExitBranch(i);
+				
+				DecodedInstruction instruction = this.instructions[i];
+				emit(ALOAD, COUNTS_SLOT);
+				pushInt(instruction.familyIndex);
+				emit(DUP2);
+				emit(LALOAD);
+				emit(LCONST_1);
+				emit(LADD);
+				emit(LASTORE);
+				
+				endsWithCall = !generateInline(instruction);
+				if(endsWithCall)
+					generateCall(i);
+			}//end for
+			
+			storeRegisters();
+			if(!endsWithCall)
+				storePC(this.start + 2 * this.instructions.length);
+			countCycles(this.instructions.length);
+			emit(RETURN);
+			
+			//Each exit stores back the registers written before it, and leaves the PC and cycle count after the instructions run
+			for(int i = 1; i < this.instructions.length; ++i) {
+				this.exitTargets[i] = this.code.size();
+				
+				for(int register = 0; register < Chip8.NUM_REGISTERS; ++register) {
+					if((this.exitDirtyRegisters[i] & (1 << register)) == 0)
+						continue;
+					
+					emit(ALOAD, REGISTERS_SLOT);
+					pushInt(register);
+					emit(ILOAD, FIRST_REGISTER_SLOT + register);
+					emit(BASTORE);
+				}//end for
+				
+				storePC(this.start + 2 * i);
+				advanceCycles(i - this.exitCyclesCounted[i]);
+				emit(RETURN);
+			}//end for
+			
+			//Branch offsets are relative to the branch instruction
+			byte[] bytecode = this.code.toByteArray();
+			for(int i = 1; i < this.instructions.length; ++i) {
+				int offset = this.exitTargets[i] - this.exitBranches[i];
+				bytecode[this.exitBranches[i] + 1] = (byte) (offset >>> 8);
+				bytecode[this.exitBranches[i] + 2] = (byte) offset;
+			}//end for
+			
+			return bytecode;
+		}//end method generateRun
+		
+		/**Generates an instruction inline, as arithmetic on the register locals and the emulator's index and timers, if it is one which can be inlined.
+		 * @param instruction The instruction
+		 * @return True, if the instruction was generated. If not, false, and nothing was generated.
+		 */
+		private boolean generateInline(DecodedInstruction instruction) {
+			int x = instruction.x;
+			int y = instruction.y;
+			
+			switch(instruction.getFamily()) {
+				case LD_6XKK :		//Vx = kk
+					pushInt(instruction.kk);
+					storeRegister(x);
+					return true;
+				case ADD_7XKK :		//Vx = (byte) (Vx + kk)
+					loadRegister(x);
+					pushInt(instruction.kk);
+					emit(IADD);
+					emit(I2B);
+					storeRegister(x);
+					return true;
+				case LD_8XY0 :		//Vx = Vy
+					loadRegister(y);
+					storeRegister(x);
+					return true;
+				case OR_8XY1 :		//Vx = (byte) (Vx op Vy)
+				case AND_8XY2 :
+				case XOR_8XY3 :
+					loadRegister(x);
+					loadRegister(y);
+					emit(instruction.getFamily() == OpcodeFamily.OR_8XY1 ? IOR : instruction.getFamily() == OpcodeFamily.AND_8XY2 ? IAND : IXOR);
+					emit(I2B);
+					storeRegister(x);
+					return true;
+				case ADD_8XY4 :		//sum = (short) (Vx + Vy), VF = sum > 0xFF, Vx = (byte) sum
+					loadRegister(x);
+					loadRegister(y);
+					emit(IADD);
+					emit(I2S);
+					emit(ISTORE, SUM_SLOT);
+					pushInt(0xFF);
+					emit(ILOAD, SUM_SLOT);
+					emit(ISUB);
+					pushInt(31);
+					emit(IUSHR);
+					storeRegister(0xF);
+					emit(ILOAD, SUM_SLOT);
+					emit(I2B);
+					storeRegister(x);
+					return true;
+				case SUB_8XY5 :		//VF = Vx > Vy, then Vx = (byte) (Vx - Vy)
+					generateBorrow(y, x);
+					generateDifference(x, x, y);
+					return true;
+				case SUBN_8XY7 :	//VF = Vy > Vx, then Vx = (byte) (Vy - Vx)
+					generateBorrow(x, y);
+					generateDifference(x, y, x);
+					return true;
+				case SHR_8XY6 :		//VF = Vx & 1, then Vx = (byte) (Vx >>> 1)
+					loadRegister(x);
+					pushInt(1);
+					emit(IAND);
+					storeRegister(0xF);
+					loadRegister(x);
+					pushInt(1);
+					emit(IUSHR);
+					emit(I2B);
+					storeRegister(x);
+					return true;
+				case SHL_8XYE :		//VF = (Vx & 0x80) >>> 7, then Vx = (byte) (Vx << 1)
+					loadRegister(x);
+					pushInt(0x80);
+					emit(IAND);
+					pushInt(7);
+					emit(IUSHR);
+					storeRegister(0xF);
+					loadRegister(x);
+					pushInt(1);
+					emit(ISHL);
+					emit(I2B);
+					storeRegister(x);
+					return true;
+				case LD_ANNN :		//I = nnn
+					emit(ALOAD, SYSTEM_SLOT);
+					pushInt(instruction.addr);
+					emitField(PUTFIELD, "index", "S");
+					return true;
+				case ADD_FX1E :		//I = (short) (I + Vx)
+					emit(ALOAD, SYSTEM_SLOT);
+					emit(DUP);
+					emitField(GETFIELD, "index", "S");
+					loadRegister(x);
+					emit(IADD);
+					emit(I2S);
+					emitField(PUTFIELD, "index", "S");
+					return true;
+				case LD_FX07 :		//Vx = DT
+					emit(ALOAD, SYSTEM_SLOT);
+					emitField(GETFIELD, "delayTimer", "B");
+					storeRegister(x);
+					return true;
+				case LD_FX15 :		//DT = Vx
+				case LD_FX18 :		//ST = Vx
+					emit(ALOAD, SYSTEM_SLOT);
+					loadRegister(x);
+					emitField(PUTFIELD, instruction.getFamily() == OpcodeFamily.LD_FX15 ? "delayTimer" : "soundTimer", "B");
+					return true;
+				default :
+					return false;
+			}//end switch
+		}//end method generateInline
+		
+		/**Generates VF = (Vgreater > Vlesser ? 1 : 0) without branching, as the sign bit of Vlesser - Vgreater, which cannot overflow for byte values.
+		 * @param lesser The register which must be less for VF to be set
+		 * @param greater The register which must be greater for VF to be set
+		 */
+		private void generateBorrow(int lesser, int greater) {
+			loadRegister(lesser);
+			loadRegister(greater);
+			emit(ISUB);
+			pushInt(31);
+			emit(IUSHR);
+			storeRegister(0xF);
+		}//end method generateBorrow
+		
+		/**Generates Vx = (byte) (Vminuend - Vsubtrahend), reading both registers after VF has been written, as the interpreter does.
+		 * @param x The register the difference is stored in
+		 * @param minuend The register subtracted from
+		 * @param subtrahend The register subtracted
+		 */
+		private void generateDifference(int x, int minuend, int subtrahend) {
+			loadRegister(minuend);
+			loadRegister(subtrahend);
+			emit(ISUB);
+			emit(I2B);
+			storeRegister(x);
+		}//end method generateDifference
+		
+		/**Generates a branch to the exit taken when only the instructions before an instruction are run, to be filled in once the exit is generated.
+		 * @param i The position of the instruction in the block
+		 */
+		private void generateExitBranch(int i) {
+			emit(ILOAD, LENGTH_SLOT);
+			pushInt(i);
+			this.exitBranches[i] = this.code.size();
+			emit(IF_ICMPEQ);
+			emitShort(0);
+			
+			for(int register = 0; register < Chip8.NUM_REGISTERS; ++register) {
+				if(this.registerStates[register] == DIRTY)
+					this.exitDirtyRegisters[i] |= 1 << register;
+			}//end for
+			
+			this.exitCyclesCounted[i] = this.cyclesCounted;
+		}//end method generateExitBranch
+		
+		/**Generates the run method's stack map table, with a full frame at each exit.
+		 * Every exit has the same locals, all assigned before the first branch, and an empty stack.
+		 * @param thisClass The constant pool index of the compiled block's class
+		 * @param bytecode The run method's bytecode
+		 * @return The table's frame count and frames, or null if the block has a single instruction and so no exits
+		 */
+		private byte[] generateStackMap(int thisClass, byte[] bytecode) {
+			if(this.instructions.length == 1)
+				return null;
+			
+			int chip8Class = classConstant(CHIP8);
+			int instructionsClass = classConstant(INSTRUCTIONS_ARRAY);
+			int countsClass = classConstant("[J");
+			int registersClass = classConstant("[B");
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try(DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeShort(this.instructions.length - 1);
+				
+				int previous = -1;
+				for(int i = 1; i < this.instructions.length; ++i) {
+					out.writeByte(FULL_FRAME);
+					out.writeShort(this.exitTargets[i] - previous - 1);		//Offsets after the first frame count from the frame before, plus one
+					previous = this.exitTargets[i];
+					
+					out.writeShort(MAX_LOCALS);
+					out.writeByte(ITEM_OBJECT);
+					out.writeShort(thisClass);
+					out.writeByte(ITEM_OBJECT);
+					out.writeShort(chip8Class);
+					out.writeByte(ITEM_OBJECT);
+					out.writeShort(instructionsClass);
+					out.writeByte(ITEM_INTEGER);
+					out.writeByte(ITEM_OBJECT);
+					out.writeShort(countsClass);
+					out.writeByte(ITEM_OBJECT);
+					out.writeShort(registersClass);
+					for(int slot = FIRST_REGISTER_SLOT; slot <= SUM_SLOT; ++slot)
+						out.writeByte(ITEM_INTEGER);
+					
+					out.writeShort(0);		//Stack
+				}//end for
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}//end try-catch
+			
+			return bytes.toByteArray();
+		}//end method generateStackMap
+		
+		/**Generates a direct call to the emulator's method for an instruction which is not inlined, with the registers, PC and cycle count as the interpreter would leave them.
+		 * @param i The position of the instruction in the block
+		 */
+		private void generateCall(int i) {
+			DecodedInstruction instruction = this.instructions[i];
+			
+			storeRegisters();
+			storePC(this.start + 2 * (i + 1));
+			countCycles(i);
+			
+			emit(ALOAD, SYSTEM_SLOT);
+			emit(ALOAD, INSTRUCTIONS_SLOT);
+			pushInt(i);
+			emit(AALOAD);
+			emitMethod(INVOKEVIRTUAL, CHIP8, INSTRUCTION_METHODS[instruction.familyIndex], INSTRUCTION_DESCRIPTOR);
+			
+			//The method may have read or written any register
+			Arrays.fill(this.registerStates, UNLOADED);
+		}//end method generateCall
+		
+		/**Generates a load of a V register's value onto the stack, loading the register into its local first if needed.
+		 * @param register The register
+		 */
+		private void loadRegister(int register) {
+			if(this.registerStates[register] == UNLOADED) {
+				emit(ALOAD, REGISTERS_SLOT);
+				pushInt(register);
+				emit(BALOAD);
+				emit(ISTORE, FIRST_REGISTER_SLOT + register);
+				this.registerStates[register] = CLEAN;
+			}//end if
+			
+			emit(ILOAD, FIRST_REGISTER_SLOT + register);
+		}//end method loadRegister
+		
+		/**Generates a store of the byte value on the stack into a V register's local, to be stored into the register later.
+		 * @param register The register
+		 */
+		private void storeRegister(int register) {
+			emit(ISTORE, FIRST_REGISTER_SLOT + register);
+			this.registerStates[register] = DIRTY;
+		}//end method storeRegister
+		
+		/** Generates stores of every register whose local holds a newer value back into the emulator's registers. */
+		private void storeRegisters() {
+			for(int register = 0; register < Chip8.NUM_REGISTERS; ++register) {
+				if(this.registerStates[register] != DIRTY)
+					continue;
+				
+				emit(ALOAD, REGISTERS_SLOT);
+				pushInt(register);
+				emit(ILOAD, FIRST_REGISTER_SLOT + register);
+				emit(BASTORE);
+				this.registerStates[register] = CLEAN;
+			}//end for
+		}//end method storeRegisters
+		
+		/**Generates a store of a constant address into the PC.
+		 * @param address The address
+		 */
+		private void storePC(int address) {
+			emit(ALOAD, SYSTEM_SLOT);
+			pushInt((short) address);
+			emitField(PUTFIELD, "pc", "S");
+		}//end method storePC
+		
+		/**Generates an advance of the emulator's cycle count, so that it counts the requested number of the block's cycles.
+		 * @param cycles The number of the block's cycles which should have been counted
+		 */
+		private void countCycles(int cycles) {
+			advanceCycles(cycles - this.cyclesCounted);
+			this.cyclesCounted = cycles;
+		}//end method countCycles
+		
+		/**Generates an advance of the emulator's cycle count by a constant.
+		 * @param cycles The number of cycles to advance by, which generates nothing if 0
+		 */
+		private void advanceCycles(int cycles) {
+			if(cycles == 0)
+				return;
+			
+			emit(ALOAD, SYSTEM_SLOT);
+			emit(DUP);
+			emitField(GETFIELD, "cycleCount", "J");
+			pushLong(cycles);
+			emit(LADD);
+			emitField(PUTFIELD, "cycleCount", "J");
+		}//end method advanceCycles
+		
+		/**Generates the shortest push of an int constant.
+		 * @param value The constant
+		 */
+		private void pushInt(int value) {
+			if(value >= -1 && value <= 5)
+				emit(ICONST_0 + value);
+			else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+				emit(BIPUSH, value);
+			else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				emit(SIPUSH);
+				emitShort(value);
+			} else {
+				emit(LDC_W);
+				emitShort(constant(CONSTANT_INTEGER, Integer.toString(value), out -> out.writeInt(value)));
+			}//end if
+		}//end method pushInt
+		
+		/**Generates the shortest push of a positive long constant.
+		 * @param value The constant
+		 */
+		private void pushLong(long value) {
+			if(value == 1)
+				emit(LCONST_1);
+			else {
+				emit(LDC2_W);
+				emitShort(constant(CONSTANT_LONG, Long.toString(value), out -> out.writeLong(value)));
+			}//end if
+		}//end method pushLong
+		
+		private void emitField(int opcode, String name, String descriptor) {
+			emit(opcode);
+			emitShort(memberConstant(CONSTANT_FIELDREF, CHIP8, name, descriptor));
+		}//end method emitField
+		
+		private void emitMethod(int opcode, String owner, String name, String descriptor) {
+			emit(opcode);
+			emitShort(memberConstant(CONSTANT_METHODREF, owner, name, descriptor));
+		}//end method emitMethod
+		
+		private void emit(int opcode) {
+			this.code.write(opcode);
+		}//end method emit
+		
+		private void emit(int opcode, int operand) {
+			this.code.write(opcode);
+			this.code.write(operand);
+		}//end method emit
+		
+		private void emitShort(int value) {
+			this.code.write(value >>> 8);
+			this.code.write(value);
+		}//end method emitShort
+		
+		/* Constant pool */
+		
+		/**A writer of the body of a constant pool entry.*/
+		private interface ConstantBody {
+			
+			public void write(DataOutputStream out) throws IOException;
+		
+		}//end interface ConstantBody
+		
+		/**Gets the index of a constant pool entry, writing it if it has not been written yet.
+		 * @param tag The entry's tag
+		 * @param key A unique description of the entry's value
+		 * @param body The writer of the entry's body, following its tag
+		 * @return The entry's index
+		 */
+		private int constant(int tag, String key, ConstantBody body) {
+			Integer index = this.constantIndexes.get(tag + ":" + key);
+			if(index != null)
+				return index;
+			
+			try {
+				DataOutputStream out = new DataOutputStream(this.constants);
+				out.writeByte(tag);
+				body.write(out);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}//end try-catch
+			
+			index = this.nextConstant;
+			this.nextConstant += (tag == CONSTANT_LONG) ? 2 : 1;		//Longs take up two entries
+			this.constantIndexes.put(tag + ":" + key, index);
+			return index;
+		}//end method constant
+		
+		private int utf8Constant(String value) {
+			return constant(CONSTANT_UTF8, value, out -> out.writeUTF(value));
+		}//end method utf8Constant
+		
+		private int classConstant(String internalName) {
+			int name = utf8Constant(internalName);
+			return constant(CONSTANT_CLASS, internalName, out -> out.writeShort(name));
+		}//end method classConstant
+		
+		private int memberConstant(int tag, String owner, String name, String descriptor) {
+			int ownerClass = classConstant(owner);
+			int memberName = utf8Constant(name);
+			int memberDescriptor = utf8Constant(descriptor);
+			int nameAndType = constant(CONSTANT_NAME_AND_TYPE, name + " " + descriptor, out -> {
+				out.writeShort(memberName);
+				out.writeShort(memberDescriptor);
+			});
+			
+			return constant(tag, owner + "." + name + " " + descriptor, out -> {
+				out.writeShort(ownerClass);
+				out.writeShort(nameAndType);
+			});
+		}//end method memberConstant
+		
+	}//end class BlockClassWriter
+	
+}//end class BlockCompiler
@@ -3,12 +3,15 @@ package chip8.emulator;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import chip8.Chip8Emulator;
-import chip8.ui.DisplayPanel;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
 
 /**Emulator/interpreter for the CHIP-8 virtual machine.
  * @author Douglas T. | GitHub: Pokepeople02
@@ -18,8 +21,8 @@ public class Chip8 {
 		/**4096-byte CHIP-8 main memory */
 		private byte[] memory = new byte[MAIN_MEMORY_SIZE];
 		
-		/**(64 * 32)-bit CHIP-8 display buffer memory */
-		private boolean[][] displayMemory = new boolean[DISPLAY_WIDTH][DISPLAY_HEIGHT];
+		/**(64 * 32)-bit CHIP-8 display buffer memory, packed as one 64-bit word per row. The leftmost pixel of a row is its most-significant bit. */
+		private final long[] displayMemory = new long[DISPLAY_HEIGHT];
 		
 		/**16 8-bit general purpose registers */
 		private byte[] registers = new byte[NUM_REGISTERS];
@@ -41,48 +44,103 @@ public class Chip8 {
 		
 		/**8-bit sound timer register */
 		private byte soundTimer;
+		
+		/**The register LD Vx, K loads the next key press into while the CPU is halted waiting for it, or -1 if the CPU is running */
+		private byte keyWaitRegister = -1;
 	
 	/* CHIP-8 external system components*/
 		/** Emulated CHIP-8 16-key system keypad */
 		private Keypad keypad;
 		
-		/** Emulated CHIP-8 64 * 32 pixel display screen */
-		private Display display = new DisplayPanel(this);
+		/** Emulated CHIP-8 64 * 32 pixel display screen. Headless until a display is attached. */
+		private Display display = new HeadlessDisplay();
+		
+		/** Version of the display memory, incremented whenever its contents change */
+		private long frameVersion;
+		
+		/** The version of the display memory last published as a completed frame */
+		private long publishedFrameVersion;
+		
+		/** Completed frames of the display memory, handed off to the display's renderer */
+		private final TripleFrameBuffer frameBuffer = new TripleFrameBuffer();
 	
 	/* Emulator components for driving CHIP-8 system processes and operations */
-		/** Timer to schedule delay timer decrement every 17 ms (roughly 60 Hz) */
-		private Timer delayTimerDecrementer = new Timer("DelayTimer", true);
+		/** Configuration and trace logging for this emulator */
+		private final EmulatorContext context;
 		
-		/** Timer to schedule sound timer decrement every 17 ms (roughly 60 Hz) */
-		private Timer soundTimerDecrementer = new Timer("SoundTimer", true);
+		/** Whether each executed instruction is traced */
+		private final boolean traceInstructions;
 		
-		/** Random number generator for use in rnd operation */
-		private Random rand = new Random();
+		/** Whether each pixel drawn is traced */
+		private final boolean tracePixels;
 		
-		/** Decodes opcodes from ROM loaded into memory into usable emulator instructions */
-		private InstructionMapper decoder = new InstructionMapper(this);
+		/** The seed the random number generator for the rnd operation was last seeded with */
+		private long randomSeed;
 		
-		/** The current opcode being executed */
-		private short opcode;
+		/** State of the random number generator for the rnd operation */
+		private long randomState;
 		
-		/* Possible arguments of the current opcode */
-		private byte x;
-		private byte y;
-		private byte n;
-		private byte kk;
-		private short addr;
+		/** Cache of translated basic blocks, or null if block translation is disabled */
+		private BlockCache blockCache;
 		
-	/** Timer to schedule automatic cycling of emulation */
-	private Timer cycleTimer = new Timer("CycleTimer", false);
-	
-	private TimerTask cycleEmulatorTask = new TimerTask() {
-		@Override
-		public void run() {
-			cycle();
-		}//end method run
-	};
+		/** History recorded at the end of every frame for rewinding, or null if rewinding is disabled */
+		private RewindBuffer rewindBuffer;
+		
+		/** Input being recorded or replayed at the end of every frame, or null if input comes straight from the keypad */
+		private InputRecording inputRecording;
+		
+		/** Profiler counting every cycle against the instruction and subroutine it ran in, or null if profiling is disabled */
+		private RomProfiler profiler;
+		
+		/** Whether frames are being passed by {@link #skipIdleFrames(long)}, during which recorded input is not sampled */
+		private boolean skippingIdleFrames;
+		
+		/** Counters of the work done by this emulator, always kept */
+		private final EmulatorMetrics metrics = new EmulatorMetrics(this);
+		
+		/** The metrics' count of instructions executed from each opcode family, held directly since it is updated every cycle */
+		private final long[] opcodeCounts = this.metrics.opcodeCounts;
+		
+	/** Loop driving automatic cycling of emulation in real time, or null if emulation has not been started */
+	private EmulationLoop emulationLoop;
 	
+	/** The number of cycles run */
 	private long cycleCount;
+	
+	/* Emulated time, measured in 60 Hz frames. The delay and sound timers count down once at the end of each frame. */
+		/** The number of instructions run per second of emulated time */
+		private int instructionsPerSecond = DEFAULT_INSTRUCTIONS_PER_SECOND;
+		
+		/** The number of frames completed */
+		private long frameCount;
+		
+		/** The cycle count that frame boundaries are measured from, since the instruction rate was last set */
+		private long frameOriginCycle;
+		
+		/** The frame count that frame boundaries are measured from, since the instruction rate was last set */
+		private long frameOriginFrame;
+		
+		/** The cycle count at which the current frame ends */
+		private long nextFrameCycle = DEFAULT_INSTRUCTIONS_PER_SECOND / FRAME_RATE;
+		
+		/** The cycle count the current call to {@link #runCycles(long)} runs until, or 0 outside of it. Idle loops are never fast-forwarded past it, so are only fast-forwarded while it runs. */
+		private long runLimit;
+	
+	/* Idle loop detection. A loop which can only wait on the delay timer or keypad is fast-forwarded by whole iterations to the end of the frame, once two iterations in a row have run identically. */
+		/** The address of the last backward jump taken, or -1 if none has been taken */
+		private short loopJumpAddress = -1;
+		
+		/** The cycle count when the last backward jump was taken */
+		private long loopJumpCycle;
+		
+		/** The frame count when the last backward jump was taken */
+		private long loopJumpFrame;
+		
+		/** The number of cycles between the last two backward jumps taken, if both were from the same address in the same frame. If not, 0. */
+		private long loopLength;
+		
+		/** The address of the last backward jump whose loop was found to do more than wait, so it is not checked again, or -1 if none has been found */
+		private short busyLoopJumpAddress = -1;
 
 	/** The number of bytes available in main memory */
 	public static final short MAIN_MEMORY_SIZE = 4096;
@@ -93,6 +151,12 @@ public class Chip8 {
 	/** The horizontal length of the emulated display */
 	public static final byte DISPLAY_WIDTH = 64;
 	
+	/** The rate, in Hz, at which the emulated display refreshes and the delay and sound timers count down */
+	public static final byte FRAME_RATE = 60;
+	
+	/** The default number of instructions run per second of emulated time */
+	public static final int DEFAULT_INSTRUCTIONS_PER_SECOND = 700;
+	
 	/** The maximum depth of the call stack */
 	public static final byte CALL_STACK_SIZE = 16;
 
@@ -105,6 +169,31 @@ public class Chip8 {
 	/** The starting address in main memory where a ROM is to be loaded */
 	public static final short ROM_START_ADDRESS = 0x200;
 	
+	/** The number of bytes in a snapshot of the emulator state, as written by {@link #snapshot(ByteBuffer)} */
+	public static final int SNAPSHOT_SIZE = 4 + 2					//Header
+			+ MAIN_MEMORY_SIZE + 8 * DISPLAY_HEIGHT					//Memory and display memory
+			+ NUM_REGISTERS + 2 + 2 + 2 * CALL_STACK_SIZE + 1 + 1 + 1 + 1	//Registers, index, PC, stack, SP, timers and key wait
+			+ 8 + 4 + 8 + 8 + 8 + 8									//Cycle count and emulated time
+			+ 8;													//Random number generator
+	
+	/** The offset of main memory within a snapshot */
+	static final int SNAPSHOT_MEMORY_OFFSET = 4 + 2;
+	
+	/** The offset of display memory within a snapshot */
+	static final int SNAPSHOT_DISPLAY_OFFSET = SNAPSHOT_MEMORY_OFFSET + MAIN_MEMORY_SIZE;
+	
+	/** The offset of the registers, stack, timers and emulated time within a snapshot, which run to its end */
+	static final int SNAPSHOT_REGISTERS_OFFSET = SNAPSHOT_DISPLAY_OFFSET + 8 * DISPLAY_HEIGHT;
+	
+	/** Identifies the start of a snapshot of the emulator state, spelling "C8SS" */
+	private static final int SNAPSHOT_MAGIC = 0x43385353;
+	
+	/** The version of the snapshot format written by this emulator */
+	private static final short SNAPSHOT_VERSION = 3;
+	
+	/** The maximum number of instructions in a loop that can be detected as idle */
+	private static final byte MAX_IDLE_LOOP_LENGTH = 16;
+	
 	/** The width of a CHIP-8 sprite */
 	private static final byte SPRITE_WIDTH = 8;
 	
@@ -132,11 +221,22 @@ public class Chip8 {
 			0xF0, 0x80, 0xF0, 0x80, 0x80  // F	
 		};
 	
-	/**Creates a new CHIP-8 emulator */
+	/**Creates a new CHIP-8 emulator with tracing disabled */
 	public Chip8() {
-		Chip8Emulator.debugLog("Creating new CHIP-8 emulator");
+		this(EmulatorContext.QUIET);
+	}//end constructor method
+	
+	/**Creates a new CHIP-8 emulator
+	 * @param context The configuration and trace logging for the emulator
+	 */
+	public Chip8(EmulatorContext context) {
+		this.context = context;
+		this.traceInstructions = context.isTracing(TraceLevel.TRACE, TraceCategory.CPU);
+		this.tracePixels = context.isTracing(TraceLevel.TRACE, TraceCategory.DISPLAY);
+		
+		this.context.trace(TraceLevel.INFO, TraceCategory.SYSTEM, "Creating new CHIP-8 emulator");
 		loadFont();
-		initTimers();
+		setRandomSeed(ThreadLocalRandom.current().nextLong());
 	}//end constructor method
 
 	/**Loads ROM data into memory from the provided file location.
@@ -148,7 +248,7 @@ public class Chip8 {
 		
 		try {
 			//Attempt reading supplied file contents
-			Chip8Emulator.debugLog("Attempting to load ROM data from file " + filename);
+			this.context.trace(TraceLevel.INFO, TraceCategory.SYSTEM, "Attempting to load ROM data from file %s", filename);
 			
 			FileInputStream fileReader = new FileInputStream(filename);
 			fileContents = fileReader.readAllBytes();
@@ -172,182 +272,960 @@ public class Chip8 {
 			return false;
 		}//end try-catch
 		
-		//Copy read content to main memory and return success
+		this.context.trace(TraceLevel.DEBUG, TraceCategory.SYSTEM, "ROM loaded successful, attempting copy to memory");
+		return loadROM(fileContents);
+	}//end method LoadROM
+	
+	/**Loads ROM data into memory from the provided bytes, such as a ROM received over a network connection.
+	 * @param rom The contents of the ROM
+	 * @return True, if the load was successful. If the ROM is too large to fit into memory, false.
+	 */
+	public boolean loadROM(byte[] rom) {
+		if(rom.length > Chip8.MAIN_MEMORY_SIZE - Chip8.ROM_START_ADDRESS) {
+			System.err.println("ROM load failed: Invalid file size for a CHIP-8 ROM.");
+			
+			return false;
+		}//end if
 		
-		Chip8Emulator.debugLog("ROM loaded successful, attempting copy to memory");
-		System.arraycopy(fileContents, 0, this.memory, Chip8.ROM_START_ADDRESS, fileContents.length);
+		//Copy ROM content to main memory and return success
+		System.arraycopy(rom, 0, this.memory, Chip8.ROM_START_ADDRESS, rom.length);
 		this.pc = Chip8.ROM_START_ADDRESS;
 		
-		Chip8Emulator.debugLog("ROM data successfully copied to memory");
+		if(this.blockCache != null)
+			this.blockCache.invalidateAll();
+		resetLoopDetection();
+		
+		this.context.trace(TraceLevel.INFO, TraceCategory.SYSTEM, "ROM data successfully copied to memory");
 		return true;
 	}//end method LoadROM
 	
+	/**Saves a snapshot of the emulator state to the provided file location, replacing any existing file.
+	 * @param filename String containing the name and location of the save state file
+	 * @return True, if the save was successful. If not, false.
+	 */
+	public boolean saveState(String filename) {
+		ByteBuffer buffer = ByteBuffer.allocate(Chip8.SNAPSHOT_SIZE);
+		snapshot(buffer);
+		buffer.flip();
+		
+		this.context.trace(TraceLevel.INFO, TraceCategory.SYSTEM, "Attempting to save state to file %s", filename);
+		
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+		} catch(IOException io) {
+			System.err.println("State save failed: IO Exception occurred during write.");
+			
+			return false;
+		}//end try-catch
+		
+		this.context.trace(TraceLevel.INFO, TraceCategory.SYSTEM, "State successfully saved");
+		return true;
+	}//end method saveState
+	
+	/**Restores the emulator state from a snapshot saved to the provided file location by {@link #saveState(String)}.
+	 * @param filename String containing the name and location of the save state file
+	 * @return True, if the load was successful. If not, false, and the emulator state is unchanged.
+	 */
+	public boolean loadState(String filename) {
+		ByteBuffer buffer = ByteBuffer.allocate(Chip8.SNAPSHOT_SIZE);
+		
+		this.context.trace(TraceLevel.INFO, TraceCategory.SYSTEM, "Attempting to load state from file %s", filename);
+		
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			if(channel.size() != Chip8.SNAPSHOT_SIZE)
+				throw new IllegalArgumentException("Save state file " + filename + " is " + channel.size() + " bytes, expected " + Chip8.SNAPSHOT_SIZE);
+			
+			while(buffer.hasRemaining())
+				if(channel.read(buffer) < 0)
+					throw new IOException("Unexpected end of save state file " + filename);
+			buffer.flip();
+			
+			restore(buffer);
+		} catch(NoSuchFileException nsf) {
+			System.err.println("State load failed: Requested file " + filename + " could not be found.");
+			
+			return false;
+		} catch(IOException io) {
+			System.err.println("State load failed: IO Exception occurred during read.");
+			
+			return false;
+		} catch(IllegalArgumentException iae) {
+			System.err.println("State load failed: " + iae.getMessage());
+			
+			return false;
+		}//end try-catch
+		
+		this.context.trace(TraceLevel.INFO, TraceCategory.SYSTEM, "State successfully loaded");
+		return true;
+	}//end method loadState
+	
 	/**Gets the emulated display of the emulator.
 	 * @return A reference to the Display visualizing this emulator's display memory.
 	 */
 	public Display getDisplay() {
-		Chip8Emulator.debugLog("Getting emulator display");
+		this.context.trace(TraceLevel.TRACE, TraceCategory.DISPLAY, "Getting emulator display");
 		return this.display;
 	}//end method getVisual
 	
+	/**Gets the configuration and trace logging for this emulator.
+	 * @return The emulator's context
+	 */
+	public EmulatorContext getContext() {
+		return this.context;
+	}//end method getContext
+	
+	/** Attaches a display to visualize the virtual CHIP-8 system's display memory, replacing the current display.
+	 * @param display The display to be attached to the CHIP-8.
+	 */
+	public void attachDisplay(Display display) {
+		this.context.trace(TraceLevel.DEBUG, TraceCategory.SYSTEM, "Attaching new emulated display");
+		this.display = display;
+	}//end method attachDisplay
+	
 	/** Attaches an emulated keypad to the virtual CHIP-8 system.
 	 * @param keypad The keypad to be attached to the CHIP-8.
 	 */
 	public void attachKeypad(Keypad keypad) {
-		Chip8Emulator.debugLog("Attaching new emulated keypad");
+		this.context.trace(TraceLevel.DEBUG, TraceCategory.SYSTEM, "Attaching new emulated keypad");
 		this.keypad = keypad;
 	}//end method attachKeypad
 	
-	/**Grabs the current state of the display memory buffer for the emulated CHIP-8 system.
-	 * @return An array containing boolean representations of each pixel, where true indicates the given screen pixel is on and false indicates it is off.
+	/**Attaches a rewind buffer, which records the emulator state at the end of every frame, replacing the current rewind buffer.
+	 * @param rewindBuffer The rewind buffer to be attached, which must have been created for this emulator, or null to stop recording
 	 */
-	public boolean[][] getCurrentDisplayBuffer() {
-		Chip8Emulator.debugLog("Grabbing the current display buffer");
-		return this.displayMemory;
+	public void attachRewindBuffer(RewindBuffer rewindBuffer) {
+		this.context.trace(TraceLevel.DEBUG, TraceCategory.SYSTEM, rewindBuffer != null ? "Attaching new rewind buffer" : "Detaching rewind buffer");
+		this.rewindBuffer = rewindBuffer;
+	}//end method attachRewindBuffer
+	
+	/**Gets the rewind buffer recording the emulator state.
+	 * @return The attached rewind buffer, or null if rewinding is disabled
+	 */
+	public RewindBuffer getRewindBuffer() {
+		return this.rewindBuffer;
+	}//end method getRewindBuffer
+	
+	/**Attaches a profiler, which counts every following cycle against the instruction and subroutine it ran in, replacing the current profiler.<br>
+	 * While a profiler is attached, {@link #runCycles(long)} runs single instructions instead of translated blocks, so that every instruction is counted.
+	 * @param profiler The profiler to be attached, or null to stop profiling
+	 */
+	public void attachProfiler(RomProfiler profiler) {
+		this.context.trace(TraceLevel.DEBUG, TraceCategory.SYSTEM, profiler != null ? "Attaching new profiler" : "Detaching profiler");
+		this.profiler = profiler;
+	}//end method attachProfiler
+	
+	/**Gets the profiler counting cycles.
+	 * @return The attached profiler, or null if profiling is disabled
+	 */
+	public RomProfiler getProfiler() {
+		return this.profiler;
+	}//end method getProfiler
+	
+	/**Gets the completed frames of the display memory, published at the end of every 60 Hz frame of emulated time in which the display memory changed.<br>
+	 * This is how threads other than the one running the emulator, such as a display's renderer, should read the display.
+	 * @return The triple buffer the emulator publishes its frames to
+	 */
+	public TripleFrameBuffer getFrameBuffer() {
+		return this.frameBuffer;
+	}//end method getFrameBuffer
+	
+	/**Grabs a copy of the current state of the display memory buffer for the emulated CHIP-8 system.<br>
+	 * The display memory may be part way through a frame, so this must only be called from the thread running the emulator, or while emulation is stopped.
+	 * @return An array of {@link #DISPLAY_HEIGHT} packed rows, where each set bit indicates the given screen pixel is on. The leftmost pixel of a row is its most-significant bit.
+	 */
+	public long[] getCurrentDisplayBuffer() {
+		long[] buffer = new long[Chip8.DISPLAY_HEIGHT];
+		copyDisplayBuffer(buffer);
+		return buffer;
 	}//end method getCurrentDisplayBuffer
 	
-	/** Completes one cycle of the emulator. Loads the next instruction from memory, decodes it, and executes it, then updates the display. */
+	/**Copies the current state of the display memory buffer for the emulated CHIP-8 system into the provided array, without allocating.
+	 * @param destination An array of at least {@link #DISPLAY_HEIGHT} packed rows, laid out as by {@link #getCurrentDisplayBuffer()}
+	 */
+	public void copyDisplayBuffer(long[] destination) {
+		this.context.trace(TraceLevel.TRACE, TraceCategory.DISPLAY, "Grabbing the current display buffer");
+		System.arraycopy(this.displayMemory, 0, destination, 0, Chip8.DISPLAY_HEIGHT);
+	}//end method copyDisplayBuffer
+	
+	/**Gets the version of the display memory, which is incremented whenever its contents change.<br>
+	 * Must only be called from the thread running the emulator, or while emulation is stopped.
+	 * @return The current display memory version
+	 */
+	public long getFrameVersion() {
+		return this.frameVersion;
+	}//end method getFrameVersion
+	
+	/**Gets whether a pixel of the emulated display is on.
+	 * @param column The pixel's column, from 0 at the left of the display
+	 * @param row The pixel's row, from 0 at the top of the display
+	 * @return True, if the pixel is on. If not, false.
+	 */
+	public boolean isPixelOn(int column, int row) {
+		return (this.displayMemory[row] & Chip8.pixelMask(column)) != 0;
+	}//end method isPixelOn
+	
+	/**Gets the bit of a packed display row representing a given column.
+	 * @param column The column of the pixel
+	 * @return The single-bit mask of the pixel within its row
+	 */
+	public static long pixelMask(int column) {
+		return Long.MIN_VALUE >>> column;
+	}//end method pixelMask
+	
+	/**Prints a summary of the current state of the emulated CHIP-8 system, including a text rendering of its display memory.
+	 * @param out The stream the summary is printed to
+	 */
+	public void printState(PrintStream out) {
+		out.println("Cycles: " + this.cycleCount);
+		out.println(String.format("PC: %03X  I: %03X  SP: %d  DT: %d  ST: %d",
+				Short.toUnsignedInt(this.pc), Short.toUnsignedInt(this.index), this.sp, Byte.toUnsignedInt(this.delayTimer), Byte.toUnsignedInt(this.soundTimer)));
+		
+		StringBuilder registerLine = new StringBuilder();
+		for(int i = 0; i < Chip8.NUM_REGISTERS; ++i)
+			registerLine.append(String.format("V%1X: %02X ", i, Byte.toUnsignedInt(this.registers[i])));
+		out.println(registerLine.toString().trim());
+		
+		StringBuilder stackLine = new StringBuilder("Stack:");
+		for(int i = 0; i < this.sp; ++i)
+			stackLine.append(String.format(" %03X", Short.toUnsignedInt(this.callStack[i])));
+		out.println(stackLine);
+		
+		for(int row = 0; row < Chip8.DISPLAY_HEIGHT; ++row) {
+			StringBuilder displayLine = new StringBuilder(Chip8.DISPLAY_WIDTH);
+			for(int column = 0; column < Chip8.DISPLAY_WIDTH; ++column)
+				displayLine.append(isPixelOn(column, row) ? '#' : '.');
+			out.println(displayLine);
+		}//end for
+	}//end method printState
+	
+	/**Writes a snapshot of the full emulator state to the provided buffer, starting at its position, without allocating.<br>
+	 * The snapshot is {@link #SNAPSHOT_SIZE} bytes in a versioned big-endian format, so buffers should use their default byte order.
+	 * Must be called from the thread running the emulator, or while emulation is stopped.
+	 * @param buffer The buffer the snapshot is written to, with at least {@link #SNAPSHOT_SIZE} bytes remaining
+	 */
+	public void snapshot(ByteBuffer buffer) {
+		if(buffer.remaining() < Chip8.SNAPSHOT_SIZE)
+			throw new IllegalArgumentException("Snapshot needs " + Chip8.SNAPSHOT_SIZE + " bytes, but only " + buffer.remaining() + " remain");
+		
+		buffer.putInt(Chip8.SNAPSHOT_MAGIC);
+		buffer.putShort(Chip8.SNAPSHOT_VERSION);
+		
+		buffer.put(this.memory);
+		for(long displayRow : this.displayMemory)
+			buffer.putLong(displayRow);
+		
+		buffer.put(this.registers);
+		buffer.putShort(this.index);
+		buffer.putShort(this.pc);
+		for(short address : this.callStack)
+			buffer.putShort(address);
+		buffer.put(this.sp);
+		buffer.put(this.delayTimer);
+		buffer.put(this.soundTimer);
+		buffer.put(this.keyWaitRegister);
+		
+		buffer.putLong(this.cycleCount);
+		buffer.putInt(this.instructionsPerSecond);
+		buffer.putLong(this.frameCount);
+		buffer.putLong(this.frameOriginCycle);
+		buffer.putLong(this.frameOriginFrame);
+		buffer.putLong(this.nextFrameCycle);
+		
+		buffer.putLong(this.randomState);
+	}//end method snapshot
+	
+	/**Restores the full emulator state from a snapshot written by {@link #snapshot(ByteBuffer)}, starting at the buffer's position, without allocating.<br>
+	 * The header, and every register and counter which could leave the emulator unable to run, are validated before any state is changed.
+	 * Must be called from the thread running the emulator, or while emulation is stopped.
+	 * @param buffer The buffer the snapshot is read from
+	 * @throws IllegalArgumentException If the snapshot is too short, is not a snapshot of a supported version, or holds an invalid state
+	 */
+	public void restore(ByteBuffer buffer) {
+		if(buffer.remaining() < Chip8.SNAPSHOT_SIZE)
+			throw new IllegalArgumentException("Snapshot needs " + Chip8.SNAPSHOT_SIZE + " bytes, but only " + buffer.remaining() + " remain");
+		
+		int magic = buffer.getInt(buffer.position());
+		short version = buffer.getShort(buffer.position() + 4);
+		if(magic != Chip8.SNAPSHOT_MAGIC)
+			throw new IllegalArgumentException("Not an emulator snapshot");
+		if(version != Chip8.SNAPSHOT_VERSION)
+			throw new IllegalArgumentException("Unsupported snapshot version " + version + ", expected " + Chip8.SNAPSHOT_VERSION);
+		validateSnapshot(buffer, buffer.position() + Chip8.SNAPSHOT_REGISTERS_OFFSET);
+		
+		buffer.position(buffer.position() + 6);
+		
+		buffer.get(this.memory);
+		for(int row = 0; row < Chip8.DISPLAY_HEIGHT; ++row)
+			this.displayMemory[row] = buffer.getLong();
+		
+		buffer.get(this.registers);
+		this.index = buffer.getShort();
+		this.pc = buffer.getShort();
+		for(int i = 0; i < Chip8.CALL_STACK_SIZE; ++i)
+			this.callStack[i] = buffer.getShort();
+		this.sp = buffer.get();
+		this.delayTimer = buffer.get();
+		this.soundTimer = buffer.get();
+		this.keyWaitRegister = buffer.get();
+		
+		this.cycleCount = buffer.getLong();
+		this.instructionsPerSecond = buffer.getInt();
+		this.frameCount = buffer.getLong();
+		this.frameOriginCycle = buffer.getLong();
+		this.frameOriginFrame = buffer.getLong();
+		this.nextFrameCycle = buffer.getLong();
+		
+		this.randomState = buffer.getLong();
+		
+		//Memory may hold different code, the call stack may differ, no run limit applies to the restored cycle count, and the display must redraw the restored frame
+		if(this.blockCache != null)
+			this.blockCache.invalidateAll();
+		resetLoopDetection();
+		this.runLimit = 0;
+		if(this.profiler != null)
+			this.profiler.resetCallStack();
+		this.frameVersion++;
+		publishFrame();
+		
+		if(this.context.isTracing(TraceLevel.DEBUG, TraceCategory.SYSTEM))
+			this.context.trace(TraceLevel.DEBUG, TraceCategory.SYSTEM, "Restored snapshot at cycle %d", this.cycleCount);
+	}//end method restore
+	
+	/**Checks that the registers, stack and emulated time of a snapshot describe a state the emulator can run from, without changing the buffer's position.<br>
+	 * The PC and return addresses must lie within memory, the stack pointer and key wait register within their ranges, and the instruction rate at least the frame rate.
+	 * The next frame must be due after the current cycle, where the emulated time since the frame origin puts it, so that frames and timers keep completing.
+	 * @param buffer The buffer the snapshot is read from
+	 * @param offset The absolute offset of the snapshot's registers within the buffer
+	 * @throws IllegalArgumentException If any of the values are out of range
+	 */
+	private static void validateSnapshot(ByteBuffer buffer, int offset) {
+		int pc = Short.toUnsignedInt(buffer.getShort(offset + Chip8.NUM_REGISTERS + 2));
+		if(pc > Chip8.MAIN_MEMORY_SIZE - 2)
+			throw new IllegalArgumentException(String.format("Invalid snapshot: PC %04X lies outside memory", pc));
+		
+		int stackOffset = offset + Chip8.NUM_REGISTERS + 4;
+		int timersOffset = stackOffset + 2 * Chip8.CALL_STACK_SIZE;
+		
+		byte sp = buffer.get(timersOffset);
+		if(sp < 0 || sp > Chip8.CALL_STACK_SIZE)
+			throw new IllegalArgumentException("Invalid snapshot: stack pointer " + sp + " outside 0 to " + Chip8.CALL_STACK_SIZE);
+		
+		for(int i = 0; i < sp; ++i) {
+			int address = Short.toUnsignedInt(buffer.getShort(stackOffset + 2 * i));
+			if(address > Chip8.MAIN_MEMORY_SIZE - 2)
+				throw new IllegalArgumentException(String.format("Invalid snapshot: return address %04X lies outside memory", address));
+		}//end for
+		
+		byte keyWaitRegister = buffer.get(timersOffset + 3);
+		if(keyWaitRegister < -1 || keyWaitRegister >= Chip8.NUM_REGISTERS)
+			throw new IllegalArgumentException("Invalid snapshot: key wait register " + keyWaitRegister + " is not a register");
+		
+		int timeOffset = timersOffset + 4;
+		long cycleCount = buffer.getLong(timeOffset);
+		int instructionsPerSecond = buffer.getInt(timeOffset + 8);
+		long frameCount = buffer.getLong(timeOffset + 12);
+		long frameOriginCycle = buffer.getLong(timeOffset + 20);
+		long frameOriginFrame = buffer.getLong(timeOffset + 28);
+		long nextFrameCycle = buffer.getLong(timeOffset + 36);
+		
+		if(instructionsPerSecond < Chip8.FRAME_RATE)
+			throw new IllegalArgumentException("Invalid snapshot: " + instructionsPerSecond + " instructions per second, below " + Chip8.FRAME_RATE);
+		
+		if(frameOriginCycle < 0 || frameOriginCycle > cycleCount || frameOriginFrame < 0 || frameOriginFrame > frameCount)
+			throw new IllegalArgumentException("Invalid snapshot: frame origin at cycle " + frameOriginCycle + ", frame " + frameOriginFrame
+					+ " lies after cycle " + cycleCount + ", frame " + frameCount);
+		
+		try {
+			long expectedNextFrameCycle = Math.addExact(frameOriginCycle, Math.multiplyExact(frameCount - frameOriginFrame + 1, (long) instructionsPerSecond) / Chip8.FRAME_RATE);
+			if(nextFrameCycle != expectedNextFrameCycle || nextFrameCycle <= cycleCount)
+				throw new IllegalArgumentException("Invalid snapshot: next frame due at cycle " + nextFrameCycle + ", expected " + expectedNextFrameCycle + " after cycle " + cycleCount);
+		} catch(ArithmeticException e) {
+			throw new IllegalArgumentException("Invalid snapshot: emulated time out of range");
+		}//end try-catch
+	}//end method validateSnapshot
+	
+	/** Completes one cycle of the emulator. Loads the next instruction from memory, decodes it, and executes it.<br>
+	 * While the CPU is halted waiting for a key press, the cycle passes without fetching anything.
+	 */
 	public void cycle() {
-		Chip8Emulator.debugLog("\nEmulator cycle " + this.cycleCount);
+		if(isHalted()) {
+			idleCycles(1);
+			return;
+		}//end if
+		
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "\nEmulator cycle %d", this.cycleCount);
 		
 		//Fetch
-		this.opcode = fetch();
-		fetchArguments();
+		short opcode = fetch();
 		incrementPC();
-		Chip8Emulator.debugLog("Fetched opcode " + String.format("%04X", this.opcode));
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Fetched opcode %04X", opcode);
 		
 		//Decode and execute
-		execute(decode(this.opcode));
-		
-		//Update display
-		display.update();
-		
-		//Iterate cycle count
-		this.cycleCount++;
+		DecodedInstruction instruction = decode(opcode);
+		if(this.profiler != null)
+			this.profiler.instructionExecuted(this.pc - 2, instruction);
+		execute(instruction);
+		
+		//Iterate cycle count, completing the frame if this was its last cycle
+		if(++this.cycleCount == this.nextFrameCycle)
+			completeFrame();
 	}//end method cycle
 	
-	/** Begins auto-cycling the emulation.
-	 * @param cycleDelay The delay between cycle executions, in milliseconds.
+	/**Runs the requested number of emulator cycles back-to-back.<br>
+	 * If block translation is enabled, whole basic blocks of pre-decoded instructions are run at once.
+	 * Loops which can only wait on the delay timer or keypad are fast-forwarded to the end of the frame, leaving the system in the same state as running them would.
+	 * @param cycles The number of cycles to be run
 	 */
-	public void startEmulation(int cycleDelay) {
-		Chip8Emulator.debugLog("Starting emulation with cycle delay " + cycleDelay);
+	public void runCycles(long cycles) {
+		long target = this.cycleCount + cycles;
+		this.runLimit = target;
 		
-		this.cycleTimer.scheduleAtFixedRate(this.cycleEmulatorTask, 0, cycleDelay);
+		//The limit is cleared however the run ends, so cycle() and runTimedCycles() never fast-forward against a stale one
+		try {
+			while(this.cycleCount < target) {
+				if(isHalted()) {
+					idleCycles(target - this.cycleCount);
+					continue;
+				}//end if
+				
+				BlockCache.Block block = (this.blockCache != null && this.profiler == null) ? this.blockCache.getBlock(Short.toUnsignedInt(this.pc)) : null;
+				
+				if(block != null)
+					runBlock(block, Math.min(target - this.cycleCount, this.nextFrameCycle - this.cycleCount));
+				else
+					cycle();
+			}//end while
+		} finally {
+			this.runLimit = 0;
+		}//end try-finally
+	}//end method runCycles
+	
+	/**Runs the requested number of emulator cycles one at a time, accumulating the time spent fetching, decoding and executing each instruction.<br>
+	 * Block translation is not used, so that every phase of every cycle is measured.
+	 * @param cycles The number of cycles to be run
+	 * @param times The accumulated phase times to be added to
+	 */
+	public void runTimedCycles(long cycles, CyclePhaseTimes times) {
+		for(long cycle = 0; cycle < cycles; ++cycle) {
+			if(isHalted()) {
+				idleCycles(1);
+				continue;
+			}//end if
+			
+			long fetchStart = System.nanoTime();
+			short opcode = fetch();
+			incrementPC();
+			
+			long decodeStart = System.nanoTime();
+			DecodedInstruction instruction = decode(opcode);
+			
+			long executeStart = System.nanoTime();
+			execute(instruction);
+			if(++this.cycleCount == this.nextFrameCycle)
+				completeFrame();
+			
+			long executeEnd = System.nanoTime();
+			
+			times.fetchNanos += decodeStart - fetchStart;
+			times.decodeNanos += executeStart - decodeStart;
+			times.executeNanos += executeEnd - executeStart;
+			times.cycles++;
+		}//end for
+	}//end method runTimedCycles
+	
+	/**Runs cycles until the end of the current 60 Hz frame of emulated time.*/
+	public void runFrame() {
+		runCycles(this.nextFrameCycle - this.cycleCount);
+	}//end method runFrame
+	
+	/**Runs cycles until the requested number of 60 Hz frames of emulated time have completed.
+	 * @param frames The number of frames to be run
+	 */
+	public void runFrames(long frames) {
+		for(long frame = 0; frame < frames; ++frame)
+			runFrame();
+	}//end method runFrames
+	
+	/**Sets the number of instructions run per second of emulated time, which determines how many cycles make up each 60 Hz frame.<br>
+	 * Takes effect from the current cycle; the frame in progress ends once the new rate's frame length has passed.
+	 * @param instructionsPerSecond The number of instructions per second. Must be at least {@link #FRAME_RATE}.
+	 */
+	public void setInstructionsPerSecond(int instructionsPerSecond) {
+		if(instructionsPerSecond < Chip8.FRAME_RATE)
+			throw new IllegalArgumentException("Instructions per second must be at least " + Chip8.FRAME_RATE + ": " + instructionsPerSecond);
+		
+		this.instructionsPerSecond = instructionsPerSecond;
+		this.frameOriginCycle = this.cycleCount;
+		this.frameOriginFrame = this.frameCount;
+		this.nextFrameCycle = this.cycleCount + instructionsPerSecond / Chip8.FRAME_RATE;
+	}//end method setInstructionsPerSecond
+	
+	/**Gets the number of instructions run per second of emulated time.
+	 * @return The number of instructions per second
+	 */
+	public int getInstructionsPerSecond() {
+		return this.instructionsPerSecond;
+	}//end method getInstructionsPerSecond
+	
+	/**Gets the address of the next instruction to be run.
+	 * @return The unsigned value of the program counter
+	 */
+	public int getProgramCounter() {
+		return Short.toUnsignedInt(this.pc);
+	}//end method getProgramCounter
+	
+	/**Gets the number of cycles run.
+	 * @return The cycle count
+	 */
+	public long getCycleCount() {
+		return this.cycleCount;
+	}//end method getCycleCount
+	
+	/**Gets whether the CPU is halted by LD Vx, K, waiting for a key to be pressed.
+	 * @return True, if the CPU is waiting for a key press. If not, false.
+	 */
+	public boolean isWaitingForKey() {
+		return this.keyWaitRegister >= 0;
+	}//end method isWaitingForKey
+	
+	/**Gets whether the system is idle, with nothing able to change until a key is pressed: the CPU is waiting for a key press and the delay and sound timers have run out.
+	 * @return True, if the system is idle. If not, false.
+	 */
+	public boolean isIdle() {
+		return this.keyWaitRegister >= 0 && this.delayTimer == 0 && this.soundTimer == 0;
+	}//end method isIdle
+	
+	/**Sets the action run after every key press on the keypad key presses currently come from, such as to wake the loop driving the system while it is idle.
+	 * @param waker The action to be run, which must be quick and must not block
+	 */
+	void wakeOnKeyPress(Runnable waker) {
+		Keypad source = getInputSource();
+		if(source != null)
+			source.setPressWaker(waker);
+	}//end method wakeOnKeyPress
+	
+	/**Gets whether any key is pressed on the attached keypad. May be called from any thread.
+	 * @return True, if a key is pressed. If not, or if no keypad is attached, false.
+	 */
+	boolean isKeyPressed() {
+		Keypad source = getInputSource();
+		return source != null && source.getKeyMask() != 0;
+	}//end method isKeyPressed
+	
+	/**Gets the keypad key presses come from.
+	 * @return The keypad being recorded while recording input, or else the attached keypad, or null if none is attached
+	 */
+	private Keypad getInputSource() {
+		//While recording, the attached keypad only changes at frame boundaries, so watch the keypad being recorded instead
+		return (this.inputRecording != null && this.inputRecording.getSource() != null) ? this.inputRecording.getSource() : this.keypad;
+	}//end method getInputSource
+	
+	/**Passes whole frames of emulated time while the CPU is halted, without checking for key presses, as when catching up on frames spent idle.
+	 * @param frames The maximum number of frames to pass
+	 * @return The number of frames passed, which is fewer than requested only if the CPU is not halted
+	 */
+	long skipIdleFrames(long frames) {
+		long framesSkipped = 0;
+		
+		//Recorded input is sampled from the frame in progress instead, when the key press that ended the wait is due
+		this.skippingIdleFrames = true;
+		while(framesSkipped < frames && this.keyWaitRegister >= 0) {
+			idleCycles(this.nextFrameCycle - this.cycleCount);
+			framesSkipped++;
+		}//end while
+		this.skippingIdleFrames = false;
+		
+		return framesSkipped;
+	}//end method skipIdleFrames
+	
+	/**Seeds the random number generator used by the rnd operation, so that the random numbers it draws can be reproduced.
+	 * @param seed The seed
+	 */
+	public void setRandomSeed(long seed) {
+		this.randomSeed = seed;
+		this.randomState = seed;
+	}//end method setRandomSeed
+	
+	/**Gets the seed the random number generator used by the rnd operation was last seeded with.
+	 * @return The seed
+	 */
+	public long getRandomSeed() {
+		return this.randomSeed;
+	}//end method getRandomSeed
+	
+	/**Computes a checksum of main memory, which identifies the loaded ROM before any cycles have run.
+	 * @return The CRC-32 of main memory
+	 */
+	int getMemoryChecksum() {
+		CRC32 checksum = new CRC32();
+		checksum.update(this.memory);
+		return (int) checksum.getValue();
+	}//end method getMemoryChecksum
+	
+	/**Attaches input being recorded or replayed, which is sampled at the end of every frame.
+	 * @param inputRecording The input recording, or null to take input straight from the keypad
+	 */
+	void attachInputRecording(InputRecording inputRecording) {
+		this.inputRecording = inputRecording;
+	}//end method attachInputRecording
+	
+	/**Gets the counters of the work done by this emulator, such as instructions executed per opcode family, which can be registered as a JMX MBean.
+	 * @return The emulator's metrics
+	 */
+	public EmulatorMetrics getMetrics() {
+		return this.metrics;
+	}//end method getMetrics
+	
+	/**Gets the number of 60 Hz frames of emulated time completed.
+	 * @return The frame count
+	 */
+	public long getFrameCount() {
+		return this.frameCount;
+	}//end method getFrameCount
+	
+	/**Enables or disables translating code into cached basic blocks when running cycles through {@link #runCycles(long)}.
+	 * @param enabled True, if block translation should be used. If not, false.
+	 */
+	public void setBlockCacheEnabled(boolean enabled) {
+		this.context.trace(TraceLevel.INFO, TraceCategory.SYSTEM, enabled ? "Enabling block translation" : "Disabling block translation");
+		
+		if(!enabled)
+			this.blockCache = null;
+		else if(this.blockCache == null)
+			this.blockCache = new BlockCache(this.memory);
+	}//end method setBlockCacheEnabled
+	
+	/** Begins auto-cycling the emulation in real time on the shared emulation scheduler. Does nothing if emulation has already been started.
+	 * @param instructionsPerSecond The target number of cycles to be run per second.
+	 */
+	public void startEmulation(int instructionsPerSecond) {
+		startEmulation(instructionsPerSecond, EmulationScheduler.getShared());
+	}//end method startEmulation
+	
+	/** Begins auto-cycling the emulation in real time on the provided emulation scheduler. Does nothing if emulation has already been started.
+	 * @param instructionsPerSecond The target number of cycles to be run per second.
+	 * @param scheduler The scheduler whose threads run the emulation
+	 */
+	public synchronized void startEmulation(int instructionsPerSecond, EmulationScheduler scheduler) {
+		if(this.emulationLoop != null)
+			return;
+		
+		this.context.trace(TraceLevel.INFO, TraceCategory.SYSTEM, "Starting emulation at %d instructions per second", instructionsPerSecond);
+		
+		setInstructionsPerSecond(instructionsPerSecond);
+		this.emulationLoop = new EmulationLoop(this, scheduler);
+		this.emulationLoop.start();
 	}//end method startEmulation
 	
 	/**Stops emulator auto-cycling.*/
-	public void stopEmulation() {
-		Chip8Emulator.debugLog("Stopping emulation");
+	public synchronized void stopEmulation() {
+		this.context.trace(TraceLevel.INFO, TraceCategory.SYSTEM, "Stopping emulation");
 		
-		this.cycleTimer.cancel();
-		this.cycleTimer.purge();
+		if(this.emulationLoop != null)
+			this.emulationLoop.stop();
 	}//end method stopEmulation
 	
+	/**Gets the loop driving automatic cycling of emulation.
+	 * @return The emulation loop, or null if emulation has not been started
+	 */
+	public synchronized EmulationLoop getEmulationLoop() {
+		return this.emulationLoop;
+	}//end method getEmulationLoop
+	
 	/**Loads the built-in font set into memory.*/
 	private void loadFont() {
-		Chip8Emulator.debugLog("Attempting to load font data into memory");
+		this.context.trace(TraceLevel.DEBUG, TraceCategory.SYSTEM, "Attempting to load font data into memory");
 		
 		for(int i = 0; i < Chip8.FONT_SET.length; ++i)
 			this.memory[Chip8.FONT_START_ADDRESS + i] = (byte) Chip8.FONT_SET[i];
 		
-		Chip8Emulator.debugLog("Font data successfully loaded to memory");
+		this.context.trace(TraceLevel.DEBUG, TraceCategory.SYSTEM, "Font data successfully loaded to memory");
 	}//end method LoadFont
 	
-	/** Initializes the sound and delay timers */
-	private void initTimers() {
-		//Initiate delay timer decrementer
-		Chip8Emulator.debugLog("Initializing delay timer");
-		TimerTask delayDecrement = new TimerTask() {
-			@Override
-			public void run() {
-				if(delayTimer != 0) {
-					delayTimer--;
-					Chip8Emulator.debugLog("Delay timer: " + delayTimer);
-				}//end if
-			}//end method run
-		};
-		this.delayTimerDecrementer.scheduleAtFixedRate(delayDecrement, 0, 17);
-		
-		//Initiate sound timer decrementer
-		Chip8Emulator.debugLog("Initializing sound timer");
-		TimerTask soundDecrement = new TimerTask() {
-			@Override
-			public void run() {
-				if(soundTimer != 0) {
-					//TODO implement simple tone when decrement takes place
-					soundTimer--;
-					Chip8Emulator.debugLog("Sound timer: " + delayTimer);
-				}//end if
-			}//end method run
-		};
-		this.soundTimerDecrementer.scheduleAtFixedRate(soundDecrement, 0, 17);
-	}//end method initTimers
+	/**Completes the current frame of emulated time, publishing the display, counting down the delay and sound timers, recording the frame for rewinding and summarizing metrics when due.*/
+	private void completeFrame() {
+		this.frameCount++;
+		this.nextFrameCycle = this.frameOriginCycle + (this.frameCount - this.frameOriginFrame + 1) * this.instructionsPerSecond / Chip8.FRAME_RATE;
+		
+		publishFrame();
+		
+		if(this.delayTimer != 0) {
+			this.delayTimer--;
+			this.metrics.delayTimerTicks++;
+			if(this.context.isTracing(TraceLevel.TRACE, TraceCategory.TIMERS))
+				this.context.trace(TraceLevel.TRACE, TraceCategory.TIMERS, "Delay timer: %d", Byte.toUnsignedInt(this.delayTimer));
+		}//end if
+		
+		if(this.soundTimer != 0) {
+			//TODO implement simple tone when decrement takes place
+			this.soundTimer--;
+			this.metrics.soundTimerTicks++;
+			if(this.context.isTracing(TraceLevel.TRACE, TraceCategory.TIMERS))
+				this.context.trace(TraceLevel.TRACE, TraceCategory.TIMERS, "Sound timer: %d", Byte.toUnsignedInt(this.soundTimer));
+		}//end if
+		
+		if(this.rewindBuffer != null)
+			this.rewindBuffer.record();
+		
+		if(this.inputRecording != null && !this.skippingIdleFrames)
+			this.inputRecording.frameCompleted(this.cycleCount);
+		
+		this.metrics.frameCompleted(this.frameCount);
+	}//end method completeFrame
 	
 	/**Fetches the next instruction from memory.
-	 * Stops emulation if end of memory is reached.
 	 * @return The next two bytes of instructions as a short
+	 * @throws IllegalStateException If the PC has run off the end of main memory, so no complete instruction can be fetched
 	 */
 	private short fetch() {
-		try {
-			return (short) (((this.memory[this.pc] << 8) & 0xFF00) | (this.memory[this.pc + 1] & 0x00FF));
-		} catch(ArrayIndexOutOfBoundsException oob) {
-			Chip8Emulator.debugLog("Handled OutOfBoundsException in main memory");
-			
-			this.stopEmulation();
-			return -1;
-		}//end try-catch
+		int address = Short.toUnsignedInt(this.pc);
+		if(address >= Chip8.MAIN_MEMORY_SIZE - 1)
+			throw new IllegalStateException(String.format("Fetch out of bounds: PC %03X is past the end of main memory", address));
+		
+		return (short) (((this.memory[address] << 8) & 0xFF00) | (this.memory[address + 1] & 0x00FF));
 	}//end method fetch
 
 	/**Decodes the given opcode.
 	 * @param opcode The encoded instruction to be decoded
-	 * @return The equivalent Instruction to be executed
+	 * @return The equivalent pre-decoded instruction to be executed
 	 */
-	private Instruction decode(short opcode) {
-		return decoder.getInstruction(opcode);
+	private DecodedInstruction decode(short opcode) {
+		return InstructionMapper.getInstruction(opcode);
 	}//end method decode
 
-	/**Executes the provided instruction
+	/**Executes the provided instruction, counting it towards its opcode family
 	 * @param instruction The instruction to be executed.
 	 */
-	private void execute(Instruction instruction) {
-		instruction.execute();
+	private void execute(DecodedInstruction instruction) {
+		this.opcodeCounts[instruction.familyIndex]++;
+		instruction.execute(this);
 	}//end method execute
 	
-	/**Fetches and sets the possible instruction arguments from the current opcode */
-	private void fetchArguments() {
-		this.x = (byte) ((this.opcode & 0x0F00) >>> 8);
-		this.y = (byte) ((this.opcode & 0x00F0) >>> 4);
-		this.n = (byte) (this.opcode & 0x000F);
-		this.kk = (byte) (this.opcode & 0x00FF);
-		this.addr = (short) (this.opcode & 0x0FFF);
-	}//end method fetchArguments
+	/**Runs the instructions of a translated basic block, which must start at the current PC.<br>
+	 * Blocks are interpreted until they have run {@link BlockCompiler#COMPILE_THRESHOLD} times, then compiled, and run compiled from then on, up to the end of the frame.
+	 * @param block The block to be run
+	 * @param maxCycles The maximum number of instructions of the block to run, which must not run past the end of the current frame
+	 */
+	private void runBlock(BlockCache.Block block, long maxCycles) {
+		DecodedInstruction[] instructions = block.instructions;
+		int length = (int) Math.min(instructions.length, maxCycles);
+		
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "\nEmulator cycle %d, running block at %03X", this.cycleCount, block.start);
+		
+		//A compiled block traces nothing, so a block being traced is interpreted
+		if(block.compiled != null && !this.traceInstructions)
+			block.compiled.run(this, instructions, length);
+		else {
+			//Only the final instruction of a block may change the PC, so each instruction runs as if fetched in turn
+			for(int i = 0; i < length; ++i) {
+				incrementPC();
+				this.opcodeCounts[instructions[i].familyIndex]++;
+				instructions[i].execute(this);
+				this.cycleCount++;
+			}//end for
+			
+			if(++block.runs == BlockCompiler.COMPILE_THRESHOLD)
+				compileBlock(block);
+		}//end if
+		
+		if(this.cycleCount == this.nextFrameCycle)
+			completeFrame();
+	}//end method runBlock
+	
+	/**Compiles a block which has been interpreted often enough, leaving it to be interpreted if it cannot be compiled.
+	 * @param block The block to be compiled
+	 */
+	private void compileBlock(BlockCache.Block block) {
+		try {
+			block.compiled = BlockCompiler.compile(block.start, block.instructions);
+			
+			if(this.context.isTracing(TraceLevel.DEBUG, TraceCategory.CPU))
+				this.context.trace(TraceLevel.DEBUG, TraceCategory.CPU, "Compiled block of %d instructions at %03X", block.instructions.length, block.start);
+		} catch(IllegalStateException e) {
+			this.context.trace(TraceLevel.ERROR, TraceCategory.CPU, "%s", e.getMessage());
+		}//end try-catch
+	}//end method compileBlock
+	
+	/**Checks whether the CPU is halted waiting for a key press, resuming it and loading the lowest pressed key if any key is now pressed.
+	 * @return True, if the CPU remains halted. If not, false.
+	 */
+	private boolean isHalted() {
+		if(this.keyWaitRegister < 0)
+			return false;
+		
+		byte key = (this.keypad != null) ? this.keypad.getLowestKeyPressed() : -1;
+		if(key < 0)
+			return true;
+		
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Key %X pressed, resuming", key);
+		
+		this.registers[this.keyWaitRegister] = key;
+		this.keyWaitRegister = -1;
+		return false;
+	}//end method isHalted
+	
+	/**Passes cycles while the CPU is halted, without fetching, up to the end of the current frame.
+	 * @param maxCycles The maximum number of cycles to pass
+	 * @return The number of cycles passed
+	 */
+	private long idleCycles(long maxCycles) {
+		long cycles = Math.min(maxCycles, this.nextFrameCycle - this.cycleCount);
+		
+		this.cycleCount += cycles;
+		this.metrics.idleCycles += cycles;
+		if(this.profiler != null)
+			this.profiler.idleCyclesPassed(this.pc - 2, cycles);
+		if(this.cycleCount == this.nextFrameCycle)
+			completeFrame();
+		
+		return cycles;
+	}//end method idleCycles
+	
+	/**Checks whether a backward jump closes an idle loop, fast-forwarding the loop by as many whole iterations as fit before the end of the frame if so.<br>
+	 * A loop is idle if its last two iterations ran within the same frame over the same number of cycles, and its body holds only instructions which load constants, load the delay timer,
+	 * or skip based on registers or the keypad. Such a loop repeats identically until the delay timer ticks at the end of the frame, or a key changes.
+	 * Must be called while the jump's own cycle is being run, before the cycle count is incremented for it.
+	 * @param jumpAddress The address of the jump
+	 * @param loopAddress The address jumped back to
+	 */
+	private void detectIdleLoop(short jumpAddress, short loopAddress) {
+		long length = this.cycleCount - this.loopJumpCycle;
+		boolean sameLoop = jumpAddress == this.loopJumpAddress && this.frameCount == this.loopJumpFrame && length <= Chip8.MAX_IDLE_LOOP_LENGTH;
+		boolean repeated = sameLoop && length == this.loopLength;
+		
+		this.loopJumpAddress = jumpAddress;
+		this.loopJumpCycle = this.cycleCount;
+		this.loopJumpFrame = this.frameCount;
+		this.loopLength = sameLoop ? length : 0;
+		
+		if(!repeated || jumpAddress == this.busyLoopJumpAddress)
+			return;
+		
+		if(!isIdleLoopBody(loopAddress, jumpAddress)) {
+			this.busyLoopJumpAddress = jumpAddress;
+			return;
+		}//end if
+		
+		//Leave room for the jump's own cycle, so the frame still ends on an instruction boundary
+		long cyclesAvailable = Math.min(this.nextFrameCycle, this.runLimit) - this.cycleCount - 1;
+		if(cyclesAvailable < length)
+			return;
+		
+		long cyclesSkipped = cyclesAvailable / length * length;
+		this.cycleCount += cyclesSkipped;
+		this.metrics.idleCycles += cyclesSkipped;
+		if(this.profiler != null)
+			this.profiler.idleCyclesPassed(jumpAddress, cyclesSkipped);
+		this.loopJumpCycle += cyclesSkipped;
+		
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Fast-forwarding %d cycles of idle loop at %03X", cyclesSkipped, loopAddress);
+	}//end method detectIdleLoop
+	
+	/**Gets whether every instruction in a loop's body can only wait: loading constants, loading the delay timer, or skipping based on registers or the keypad.
+	 * @param loopAddress The address of the loop's first instruction
+	 * @param jumpAddress The address of the jump closing the loop
+	 * @return True, if the loop body can only wait. If not, false.
+	 */
+	private boolean isIdleLoopBody(short loopAddress, short jumpAddress) {
+		if(jumpAddress - loopAddress >= 2 * Chip8.MAX_IDLE_LOOP_LENGTH)
+			return false;
+		
+		for(int address = loopAddress; address < jumpAddress; address += 2) {
+			int opcode = ((this.memory[address] & 0xFF) << 8) | (this.memory[address + 1] & 0xFF);
+			
+			switch(opcode >>> 12) {
+				case 0x3 :	//SE Vx, kk
+				case 0x4 :	//SNE Vx, kk
+				case 0x6 :	//LD Vx, kk
+					break;
+				case 0x5 :	//SE Vx, Vy
+				case 0x9 :	//SNE Vx, Vy
+					if((opcode & 0x000F) != 0)
+						return false;
+					break;
+				case 0xE :	//SKP Vx, SKNP Vx
+					if((opcode & 0x00FF) != 0x9E && (opcode & 0x00FF) != 0xA1)
+						return false;
+					break;
+				case 0xF :	//LD Vx, DT
+					if((opcode & 0x00FF) != 0x07)
+						return false;
+					break;
+				default :
+					return false;
+			}//end switch
+		}//end for
+		
+		return true;
+	}//end method isIdleLoopBody
+	
+	/**Draws the next number from the random number generator, a SplitMix64 generator whose whole state is one long.
+	 * @return The next random number
+	 */
+	private long nextRandom() {
+		long z = (this.randomState += 0x9E3779B97F4A7C15L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}//end method nextRandom
+	
+	/**Forgets all loops seen, as when memory may hold different code.*/
+	private void resetLoopDetection() {
+		this.loopJumpAddress = -1;
+		this.loopLength = 0;
+		this.busyLoopJumpAddress = -1;
+	}//end method resetLoopDetection
+	
+	/**Publishes the display memory as a completed frame and updates the display, if the display memory has changed since the last frame was published.*/
+	private void publishFrame() {
+		long version = this.frameVersion;
+		if(version != this.publishedFrameVersion) {
+			this.publishedFrameVersion = version;
+			this.frameBuffer.publish(this.displayMemory, version);
+			this.display.update();
+			this.metrics.framesRendered++;
+		}//end if
+	}//end method publishFrame
 	
 	/**Increments the PC by two bytes */
 	private void incrementPC() {
 		this.pc += 2;
 	}//end method incrementPC
 	
-	/**Decrements the PC by two bytes */
-	private void decrementPC() {
-		this.pc -= 2;
-	}//end method decrementPC
-	
 	/* CHIP-8 instruction methods */
 	
 	/**CLS:<br>
 	 * Clears the display memory
 	 */
-	protected void cls_00E0() {
-		Chip8Emulator.debugLog("Executing CLS");
-		
-		this.displayMemory = new boolean[Chip8.DISPLAY_WIDTH][Chip8.DISPLAY_HEIGHT];
+	protected void cls_00E0(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing CLS");
+		
+		//Only a display with pixels on changes when cleared
+		for(long displayRow : this.displayMemory)
+			if(displayRow != 0) {
+				Arrays.fill(this.displayMemory, 0L);
+				this.frameVersion++;
+				break;
+			}//end if
 	}//end method cls_00E0
 	
 	/**RET:<br>
 	 * Pops a return address off of the stack and returns to it.
+	 * @throws IllegalStateException If no subroutine has been called to return from
 	 */
-	protected void ret_00EE() {
-		Chip8Emulator.debugLog("Executing RET");
+	protected void ret_00EE(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing RET");
+		
+		if(this.sp == 0)
+			throw new IllegalStateException(String.format("Call stack underflow: RET at %03X with an empty call stack", this.pc - 2));
 		
 		this.pc = this.callStack[--this.sp];
 	}//end method ret_00EE
@@ -355,199 +1233,225 @@ public class Chip8 {
 	/**JP addr:<br>
 	 * Jumps to the address indicated by the lower 3 nibbles of the opcode.
 	 */
-	protected void jp_1nnn() {
-		Chip8Emulator.debugLog("Executing JP " + Short.toUnsignedInt(addr));
+	protected void jp_1nnn(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing JP %d", Short.toUnsignedInt(args.addr));
+		
+		short jumpAddress = (short) (this.pc - 2);
+		this.pc = args.addr;
 		
-		this.pc = addr;
+		if(args.addr <= jumpAddress)
+			detectIdleLoop(jumpAddress, args.addr);
 	}//end method jp_1nnn
 	
 	/**CALL addr:<br>
 	 * Calls the subroutine at the address indicated by the lower 3 nibbles of the opcode.
+	 * @throws IllegalStateException If {@link #CALL_STACK_SIZE} subroutines have already been called without returning
 	 */
-	protected void call_2nnn() {
-		Chip8Emulator.debugLog("Executing CALL " + Short.toUnsignedInt(addr));
+	protected void call_2nnn(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing CALL %d", Short.toUnsignedInt(args.addr));
+		
+		if(this.sp == Chip8.CALL_STACK_SIZE)
+			throw new IllegalStateException(String.format("Call stack overflow: CALL %03X at %03X with %d subroutines already called", args.addr, this.pc - 2, Chip8.CALL_STACK_SIZE));
 		
 		this.callStack[this.sp++] = this.pc;
-		this.pc = addr;
+		this.pc = args.addr;
 	}//end method call_2nnn
 	
 	/**SE Vx, kk:<br>
 	 * Skips the next instruction if the value in register Vx is equal to byte kk.
 	 */
-	protected void se_3xkk() {
-		Chip8Emulator.debugLog("Executing SE V" + String.format("%1X", x) + ", " + Byte.toUnsignedInt(kk));
+	protected void se_3xkk(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing SE V%X, %d", args.x, Byte.toUnsignedInt(args.kk));
 		
-		if(this.registers[x] == kk)
+		if(this.registers[args.x] == args.kk)
 			incrementPC();
 	}//end method se_3xkk
 	
 	/**SNE Vx, kk:<br>
 	 * Skips the next instruction if the value in register Vx is not equal to byte kk.
 	 */
-	protected void sne_4xkk() {
-		Chip8Emulator.debugLog("Executing SNE V" + String.format("%1X", x) + ", " + Byte.toUnsignedInt(kk));
+	protected void sne_4xkk(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing SNE V%X, %d", args.x, Byte.toUnsignedInt(args.kk));
 		
-		if(this.registers[x] != kk)
+		if(this.registers[args.x] != args.kk)
 			incrementPC();
 	}//end method sne_4xkk
 	
 	/**SE Vx, Vy:<br>
 	 * Skips the next instruction if the value in register Vx is equal to that in register Vy.
 	 */
-	protected void se_5xy0() {
-		Chip8Emulator.debugLog("Executing SE V" + String.format("%1X", x) + ", V" + String.format("%1X", y));
+	protected void se_5xy0(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing SE V%X, V%X", args.x, args.y);
 		
-		if(this.registers[x] == this.registers[y])
+		if(this.registers[args.x] == this.registers[args.y])
 			incrementPC();
 	}//end method se_5xy0
 	
 	/**LD Vx, kk:<br>
 	 * Loads the value of byte kk into register Vx.
 	 */
-	protected void ld_6xkk() {
-		Chip8Emulator.debugLog("Executing LD V" + String.format("%1X", x) + ", " + Byte.toUnsignedInt(kk));
+	protected void ld_6xkk(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD V%X, %d", args.x, Byte.toUnsignedInt(args.kk));
 		
-		this.registers[x] = kk;
+		this.registers[args.x] = args.kk;
 	}//end method ld_6xkk
 	
 	/**ADD Vx, kk:<br>
 	 * Adds the byte value kk to the value stored in register Vx.
 	 */
-	protected void add_7xkk() {
-		Chip8Emulator.debugLog("Executing ADD V" + String.format("%1X", x) + ", " + Byte.toUnsignedInt(kk));
+	protected void add_7xkk(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing ADD V%X, %d", args.x, Byte.toUnsignedInt(args.kk));
 		
-		this.registers[x] += kk;
+		this.registers[args.x] += args.kk;
 	}//end method add_7xkk
 	
 	/**LD Vx, Vy:<br>
 	 * Loads the value in register Vy into register Vx.
 	 */
-	protected void ld_8xy0() {
-		Chip8Emulator.debugLog("Executing LD V" + String.format("%1X", x) + ", V" + String.format("%1X", y));
+	protected void ld_8xy0(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD V%X, V%X", args.x, args.y);
 		
-		this.registers[x] = this.registers[y];
+		this.registers[args.x] = this.registers[args.y];
 	}//end method ld_8xy0
 	
 	/**OR Vx, Vy:<br>
 	 * Sets register Vx to the value of register Vx OR the value of register Vy.
 	 */
-	protected void or_8xy1() {
-		Chip8Emulator.debugLog("Executing OR V" + String.format("%1X", x) + ", V" + String.format("%1X", y));
+	protected void or_8xy1(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing OR V%X, V%X", args.x, args.y);
 		
-		this.registers[x] |= this.registers[y];
+		this.registers[args.x] |= this.registers[args.y];
 	}//end method or_8xy1
 	
 	/**AND Vx, Vy: <br>
 	 * Sets register Vx to the value of register Vx AND the value of register Vy.
 	 */
-	protected void and_8xy2() {
-		Chip8Emulator.debugLog("Executing AND V" + String.format("%1X", x) + ", V" + String.format("%1X", y));
+	protected void and_8xy2(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing AND V%X, V%X", args.x, args.y);
 		
-		this.registers[x] &= this.registers[y];
+		this.registers[args.x] &= this.registers[args.y];
 	}//end method and_8xy2
 	
 	/**XOR Vx, Vy: <br>
 	 * Sets register Vx to the value of register Vx XOR the value of register Vy.
 	 */
-	protected void xor_8xy3() {
-		Chip8Emulator.debugLog("Executing XOR V" + String.format("%1X", x) + ", V" + String.format("%1X", y));
+	protected void xor_8xy3(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing XOR V%X, V%X", args.x, args.y);
 		
-		this.registers[x] ^= this.registers[y];
+		this.registers[args.x] ^= this.registers[args.y];
 	}//end method xor_8xy3
 	
 	/**ADD Vx, Vy:<br>
 	 * Sets register Vx to the sum of the values in registers Vx and Vy.
 	 * Sets register VF to 1 if overflow occurred during the addition. Else, 0.
 	 */
-	protected void add_8xy4() {
-		Chip8Emulator.debugLog("Executing ADD V" + String.format("%1X", x) + ", V" + String.format("%1X", y));
+	protected void add_8xy4(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing ADD V%X, V%X", args.x, args.y);
 		
-		short sum = (short) (this.registers[x] + this.registers[y]);
+		short sum = (short) (this.registers[args.x] + this.registers[args.y]);
 		this.registers[0xF] = (byte) (sum > 0xFF ? 0x1 : 0x0);
-		this.registers[x] = (byte) sum;
+		this.registers[args.x] = (byte) sum;
 	}//end method add_8xy4
 	
 	/**SUB Vx, Vy:<br>
 	 * Sets register Vx to the value in register Vy subtracted from the value in register Vx.
 	 * Sets register VF to 1 if the value in register Vx is greater than that in Vy. Else, 0.
 	 */
-	protected void sub_8xy5() {
-		Chip8Emulator.debugLog("Executing SUB V" + String.format("%1X", x) + ", V" + String.format("%1X", y));
+	protected void sub_8xy5(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing SUB V%X, V%X", args.x, args.y);
 		
-		this.registers[0xF] = (byte) (registers[x] > registers[y] ? 0x1 : 0x0);
-		this.registers[x] -= this.registers[y];
+		this.registers[0xF] = (byte) (registers[args.x] > registers[args.y] ? 0x1 : 0x0);
+		this.registers[args.x] -= this.registers[args.y];
 	}//end method sub_8xy5
 	
 	/**SHR Vx: <br>
 	 * Shifts the value stored in register Vx right by 1.
 	 * Stores the least significant bit of Vx in register VF.
 	 */
-	protected void shr_8xy6() {
-		Chip8Emulator.debugLog("Executing SHR V" + String.format("%1X", x));
+	protected void shr_8xy6(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing SHR V%X", args.x);
 		
-		this.registers[0xF] = (byte) (registers[x] & 0x1) ;
-		this.registers[x] >>>= 1;
+		this.registers[0xF] = (byte) (registers[args.x] & 0x1) ;
+		this.registers[args.x] >>>= 1;
 	}//end method shr_8xy6
 	
 	/**SUBN Vx, Vy: <br>
 	 * Sets register Vx to the value of register Vx subtracted from the value of register Vy.
 	 * Sets register VF to 1 if the value in register Vy is greater than that in Vx. Else, 0.
 	 */
-	protected void subn_8xy7() {
-		Chip8Emulator.debugLog("Executing SUBN V" + String.format("%1X", x) + ", V" + String.format("%1X", y));
+	protected void subn_8xy7(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing SUBN V%X, V%X", args.x, args.y);
 		
-		this.registers[0xF] = (byte) (registers[y] > registers[x] ? 0x1 : 0x0);
-		this.registers[x] = (byte) (registers[y] - registers[x]);
+		this.registers[0xF] = (byte) (registers[args.y] > registers[args.x] ? 0x1 : 0x0);
+		this.registers[args.x] = (byte) (registers[args.y] - registers[args.x]);
 	}//end method subn_8xy7
 	
 	/**SHL Vx: <br>
 	 * Shifts the value stored in register Vx left by 1.
 	 * Stores the most significant bit of register Vx in register VF.
 	 */
-	protected void shl_8xyE() {
-		Chip8Emulator.debugLog("Executing SHL V" + String.format("%1X", x));
+	protected void shl_8xyE(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing SHL V%X", args.x);
 		
-		this.registers[0xF] = (byte) ((registers[x] & 0x80) >>> 7);
-		this.registers[x] <<= 1;
+		this.registers[0xF] = (byte) ((registers[args.x] & 0x80) >>> 7);
+		this.registers[args.x] <<= 1;
 	}//end method shl_8xyE
 	
 	/**SNE Vx, Vy: <br>
 	 * Skips the next instruction if the value in register Vx is not equal to that in register Vy.
 	 */
-	protected void sne_9xy0() {
-		Chip8Emulator.debugLog("Executing SNE V" + String.format("%1X", x) + ", V" + String.format("%1X", y));
+	protected void sne_9xy0(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing SNE V%X, V%X", args.x, args.y);
 		
-		if(this.registers[x] != this.registers[y])
+		if(this.registers[args.x] != this.registers[args.y])
 			incrementPC();
 	}//end method sne_9xy0
 	
 	/**LD I, addr: <br>
 	 * Stores the address supplied into the index register.
 	 */
-	protected void ld_Annn() {
-		Chip8Emulator.debugLog("Executing LD I, " + Short.toUnsignedInt(addr));
+	protected void ld_Annn(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD I, %d", Short.toUnsignedInt(args.addr));
 		
-		this.index = addr;
+		this.index = args.addr;
 	}//end method ld_Annn
 	
 	/**JP V0, addr: <br>
 	 * Sets the program counter to the sum of the address supplied and the value stored in register V0.
 	 */
-	protected void jp_Bnnn() {
-		Chip8Emulator.debugLog("Executing JP V0, " + Short.toUnsignedInt(addr));
+	protected void jp_Bnnn(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing JP V0, %d", Short.toUnsignedInt(args.addr));
 		
-		this.pc = (short) (this.registers[0x0] + addr);
+		this.pc = (short) (this.registers[0x0] + args.addr);
 	}//end method jp_Bnnn
 	
 	/**RND Vx, kk: <br>
 	 * Stores a random byte AND the supplied byte kk into register Vx.
 	 */
-	protected void rnd_Cxkk() {
-		Chip8Emulator.debugLog("Executing RND V" + String.format("%1X", x) + ", " + Byte.toUnsignedInt(kk));
+	protected void rnd_Cxkk(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing RND V%X, %d", args.x, Byte.toUnsignedInt(args.kk));
 		
-		byte[] randByte = new byte[1];
-		this.rand.nextBytes(randByte);
-		this.registers[x] = (byte) (randByte[0] & kk);
+		this.registers[args.x] = (byte) (nextRandom() & args.kk);
 	}//end method rnd_Cxkk
 	
 	/**DRW Vx, Vy, n:<br>
@@ -555,164 +1459,180 @@ public class Chip8 {
 	 * If the sprite drawn goes beyond the boundaries of the screen, it wraps.
 	 * Set the value in register VF to 1 if a sprite collision occurred while drawing. Else, 0.
 	 */
-	protected void drw_Dxyn() {
-		Chip8Emulator.debugLog("Executing DRW V" + String.format("%1X", x) + ", V" + String.format("%1X", y) + ", " + String.format("%1X", n));
+	protected void drw_Dxyn(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing DRW V%X, V%X, %X", args.x, args.y, args.n);
 		
 		//Get sprite x and y positions within the display boundaries, wrapping if beyond display bounds
-		byte xStartPos = (byte) (this.registers[x] % Chip8.DISPLAY_WIDTH);
-		byte yStartPos =  (byte) (this.registers[y] % Chip8.DISPLAY_HEIGHT);
-		
-		Chip8Emulator.debugLog("Sprite start position: (" + Byte.toUnsignedInt(xStartPos) + ", " + Byte.toUnsignedInt(yStartPos) + ")");
-		
-		this.registers[0xF] = 0x0;
-		//Iterate over 8 columns and n rows of sprite
-		for(int row = 0; row < n; ++row) {
-			byte spriteNextByte = this.memory[this.index + row];
+		int xStartPos = Byte.toUnsignedInt(this.registers[args.x]) % Chip8.DISPLAY_WIDTH;
+		int yStartPos = Byte.toUnsignedInt(this.registers[args.y]) % Chip8.DISPLAY_HEIGHT;
+		
+		if(this.tracePixels)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.DISPLAY, "Sprite start position: (%d, %d)", xStartPos, yStartPos);
+		
+		long collisions = 0;
+		long changedPixels = 0;
+		//XOR each 8-pixel sprite row into its display row, rotated so that columns past the right edge wrap to the left
+		for(int row = 0; row < args.n; ++row) {
+			int displayRow = (yStartPos + row) % Chip8.DISPLAY_HEIGHT;
+			long spriteRow = Long.rotateRight((this.memory[this.index + row] & 0xFFL) << (Long.SIZE - Chip8.SPRITE_WIDTH), xStartPos);
 			
-			for(int column = 0; column < Chip8.SPRITE_WIDTH; ++column) {
-//				Chip8Emulator.debugLog("Column: " + column + ", Row: " + row);
-//				Chip8Emulator.debugLog("Current sprite byte: " + String.format("%2X", spriteNextByte));
-				
-				//Isolate the next bit in the next byte of the sprite
-				byte spritePixel = (byte) ((spriteNextByte & (0x80 >>> column)) >>> (Chip8.SPRITE_WIDTH - column - 1));
-				
-//				Chip8Emulator.debugLog("Sprite byte current bit: " + spritePixel);
-				
-				//Get whether the isolated sprite pixel bit is on, and whether the screen pixel is already on.
-				boolean isSpritePixelOn = spritePixel == 0x1;
-				boolean isScreenPixelOn = this.displayMemory[(xStartPos + column) % Chip8.DISPLAY_WIDTH][(yStartPos + row) % Chip8.DISPLAY_HEIGHT];
-				
-				//Set screen pixel to be on if sprite pixel is on XOR screen pixel was already on
-				this.displayMemory[(xStartPos + column) % Chip8.DISPLAY_WIDTH][(yStartPos + row) % Chip8.DISPLAY_HEIGHT] = isSpritePixelOn ^ isScreenPixelOn;
-				
-				Chip8Emulator.debugLog("Setting pixel " + (xStartPos + column) + ", " + (yStartPos + row)
-						+ " to " + (this.displayMemory[(xStartPos + column) % Chip8.DISPLAY_WIDTH][(yStartPos + row) % Chip8.DISPLAY_HEIGHT] ? "ON" : "OFF"));
-				
-				//Set whether a sprite collision occurred
-				if(isSpritePixelOn && isScreenPixelOn)
-					registers[0xF] = 0x1;
-			}//end for
+			//Any sprite pixel landing on a pixel which is already on is a collision
+			collisions |= this.displayMemory[displayRow] & spriteRow;
+			changedPixels |= spriteRow;
+			this.displayMemory[displayRow] ^= spriteRow;
 			
+			if(this.tracePixels)
+				for(int column = 0; column < Chip8.SPRITE_WIDTH; ++column)
+					this.context.trace(TraceLevel.TRACE, TraceCategory.DISPLAY, "Setting pixel %d, %d to %s", xStartPos + column, yStartPos + row,
+							isPixelOn((xStartPos + column) % Chip8.DISPLAY_WIDTH, displayRow) ? "ON" : "OFF");
 		}//end for
 		
+		this.registers[0xF] = (byte) (collisions != 0 ? 0x1 : 0x0);
+		
+		this.metrics.drawCount++;
+		if(collisions != 0)
+			this.metrics.drawCollisions++;
+		
+		if(changedPixels != 0)
+			this.frameVersion++;
 	}//end method drw_Dxyn
 	
 	/**SKP Vx:<br>
 	 * Skips the next instruction if the keypad key with the value in register Vx is being pressed.
 	 */
-	protected void skp_Ex9E() {
-		Chip8Emulator.debugLog("Executing SKP V" + String.format("%1X", x));
+	protected void skp_Ex9E(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing SKP V%X", args.x);
 		
-		if(this.keypad != null && this.keypad.isKeyPressed(this.registers[x]))
+		if(this.keypad != null && this.keypad.isKeyPressed(this.registers[args.x]))
 			incrementPC();
 	}//end method skp_Ex9E
 	
 	/**SKNP Vx:<br>
 	 * Skips the next instruction if the keypad key with the value in register Vx is not being pressed.
 	 */
-	protected void sknp_ExA1() {
-		Chip8Emulator.debugLog("Executing SKNP V" + String.format("%1X", x));
+	protected void sknp_ExA1(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing SKNP V%X", args.x);
 		
-		if(this.keypad == null || !this.keypad.isKeyPressed(this.registers[x]))
+		if(this.keypad == null || !this.keypad.isKeyPressed(this.registers[args.x]))
 			incrementPC();
 	}//end method sknp_ExA1
 	
 	/**LD Vx, DT:<br>
 	 * Loads the current value of the delay timer into register Vx.
 	 */
-	protected void ld_Fx07() {
-		Chip8Emulator.debugLog("Executing LD V" + String.format("%1X", x) + ", DT");
+	protected void ld_Fx07(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD V%X, DT", args.x);
 		
-		this.registers[x] = this.delayTimer;
+		this.registers[args.x] = this.delayTimer;
 	}//end method ld_Fx07
 	
 	/**LD Vx, K:<br>
-	 * Waits for a keypad key to be pressed. Once a key is pressed, loads the byte value of the lowest value pressed key into register Vx.
+	 * Waits for a keypad key to be pressed. Once a key is pressed, loads the byte value of the lowest value pressed key into register Vx.<br>
+	 * If no key is pressed, the CPU halts until one is, passing cycles without fetching.
 	 */
-	protected void ld_Fx0A() {
-		Chip8Emulator.debugLog("Executing LD V" + String.format("%1X", x) + ", K");
-		
-		byte[] keysPressed = this.keypad.getKeysPressed();
-		//If no keys are pressed, re-run this instruction
-		if(keysPressed.length == 0)
-			decrementPC();
+	protected void ld_Fx0A(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD V%X, K", args.x);
+		
+		byte key = (this.keypad != null) ? this.keypad.getLowestKeyPressed() : -1;
+		//If no keys are pressed, halt until one is
+		if(key < 0)
+			this.keyWaitRegister = args.x;
 		else
-			this.registers[x] = keysPressed[0];
+			this.registers[args.x] = key;
 	}//end method ld_Fx0A
 	
 	/**LD DT, Vx:<br>
 	 * Loads the current value of register Vx into the delay timer.
 	 */
-	protected void ld_Fx15() {
-		Chip8Emulator.debugLog("Executing LD DT, V" + String.format("%1X", x));
+	protected void ld_Fx15(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD DT, V%X", args.x);
 		
-		this.delayTimer = this.registers[x];
+		this.delayTimer = this.registers[args.x];
 	}//end method ld_Fx15
 	
 	/**LD ST, Vx:<br>
 	 * Loads the current value of register Vx into the sound timer.
 	 */
-	protected void ld_Fx18() {
-		Chip8Emulator.debugLog("Executing LD ST, V" + String.format("%1X", x));
+	protected void ld_Fx18(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD ST, V%X", args.x);
 		
-		this.soundTimer = this.registers[x];
+		this.soundTimer = this.registers[args.x];
 	}//end method ld_Fx18
 	
 	/**ADD I, Vx:<br>
 	 * Adds the value in register Vx to that in the index register.
 	 */
-	protected void add_Fx1E() {
-		Chip8Emulator.debugLog("Executing LD I, V" + String.format("%1X", x));
+	protected void add_Fx1E(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD I, V%X", args.x);
 		
-		this.index += this.registers[x];
+		this.index += this.registers[args.x];
 	}//end method add_Fx1E
 	
 	/**LD F, Vx:<br>
 	 * Sets the index register to the address of the sprite for the digit held in register Vx.
 	 */
-	protected void ld_Fx29() {
-		Chip8Emulator.debugLog("Executing LD F, V" + String.format("%1X", x));
+	protected void ld_Fx29(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD F, V%X", args.x);
 		
-		this.index = (short) (Chip8.FONT_START_ADDRESS + (Chip8.FONT_WIDTH * this.registers[x]));
+		this.index = (short) (Chip8.FONT_START_ADDRESS + (Chip8.FONT_WIDTH * this.registers[args.x]));
 	}//end method ld_Fx29
 	
 	/**LD B, Vx:<br>
 	 * Stores the BCD representation of the value in register Vx into memory, beginning at the address stored in the index register.
 	 */
-	protected void ld_Fx33() {
-		Chip8Emulator.debugLog("Executing LD B, V" + String.format("%1X", x));
+	protected void ld_Fx33(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD B, V%X", args.x);
 		
-		short decimalValue = (short) Byte.toUnsignedInt(this.registers[x]);
+		short decimalValue = (short) Byte.toUnsignedInt(this.registers[args.x]);
 
 		for(int i = 2; i >= 0; i--) {
 			this.memory[this.index + i] = (byte) (decimalValue % 10);
 			decimalValue /= 10;
 		}//end for
+		
+		if(this.blockCache != null)
+			this.blockCache.invalidate(Short.toUnsignedInt(this.index), 3);
 	}//end method ld_Fx33
 	
 	/**LD [I], Vx:<br>
 	 * Loads the values in registers V0 through Vx into memory starting at the address stored in the index register.
 	 */
-	protected void ld_Fx55() {
-		Chip8Emulator.debugLog("Executing LD [I], V" + String.format("%1X", x));
+	protected void ld_Fx55(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD [I], V%X", args.x);
 		
-		for(int i = 0; i <= x; ++i)
+		for(int i = 0; i <= args.x; ++i)
 			this.memory[this.index + i] = this.registers[i];
+		
+		if(this.blockCache != null)
+			this.blockCache.invalidate(Short.toUnsignedInt(this.index), args.x + 1);
 	}//end method ld_Fx55
 	
 	/**LD Vx, [I]:<br>
 	 * Loads the values in memory starting at the address stored in the index register into registers V0 through Vx.
 	 */
-	protected void ld_Fx65() {
-		Chip8Emulator.debugLog("Executing LD V" + String.format("%1X", x) + ", [I]");
+	protected void ld_Fx65(DecodedInstruction args) {
+		if(this.traceInstructions)
+			this.context.trace(TraceLevel.TRACE, TraceCategory.CPU, "Executing LD V%X, [I]", args.x);
 		
-		for(int i = 0; i <= x; ++i)
+		for(int i = 0; i <= args.x; ++i)
 			this.registers[i] = this.memory[this.index + i];
 	}//end method ld_Fx65
 	
 	/**Dummy instruction for handling invalid opcode requests*/
-	protected void nop_dummy() {
-		Chip8Emulator.debugLog("Invalid opcode " + String.format("%04X", this.opcode));
+	protected void nop_dummy(DecodedInstruction args) {
+		if(this.context.isTracing(TraceLevel.DEBUG, TraceCategory.CPU))
+			this.context.trace(TraceLevel.DEBUG, TraceCategory.CPU, "Invalid opcode %04X", args.opcode);
 	}//end method nop_dummy
 	
 }//end class Chip8
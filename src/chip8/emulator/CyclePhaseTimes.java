@@ -0,0 +1,55 @@
+package chip8.emulator;
+
+/**Accumulated time spent in each phase of the emulator's cycles, as measured by {@link Chip8#runTimedCycles(long, CyclePhaseTimes)}.<br>
+ * Timing every phase of every cycle adds overhead of its own, so the totals are best read as a relative split rather than absolute costs.
+ */
+public class CyclePhaseTimes {
+	
+	/** The number of cycles timed */
+	long cycles;
+	
+	/** Nanoseconds spent fetching opcodes from memory */
+	long fetchNanos;
+	
+	/** Nanoseconds spent decoding opcodes into instructions */
+	long decodeNanos;
+	
+	/** Nanoseconds spent executing instructions, including updating the display and completing frames */
+	long executeNanos;
+	
+	/**Gets the number of cycles timed.
+	 * @return The cycle count
+	 */
+	public long getCycles() {
+		return this.cycles;
+	}//end method getCycles
+	
+	/**Gets the time spent fetching opcodes from memory.
+	 * @return The total fetch time, in nanoseconds
+	 */
+	public long getFetchNanos() {
+		return this.fetchNanos;
+	}//end method getFetchNanos
+	
+	/**Gets the time spent decoding opcodes into instructions.
+	 * @return The total decode time, in nanoseconds
+	 */
+	public long getDecodeNanos() {
+		return this.decodeNanos;
+	}//end method getDecodeNanos
+	
+	/**Gets the time spent executing instructions, including updating the display and completing frames.
+	 * @return The total execution time, in nanoseconds
+	 */
+	public long getExecuteNanos() {
+		return this.executeNanos;
+	}//end method getExecuteNanos
+	
+	/**Gets the total time spent across all phases.
+	 * @return The total time, in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return this.fetchNanos + this.decodeNanos + this.executeNanos;
+	}//end method getTotalNanos
+	
+}//end class CyclePhaseTimes
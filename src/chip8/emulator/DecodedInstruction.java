@@ -0,0 +1,65 @@
+package chip8.emulator;
+
+/**A 16-bit CHIP-8 opcode decoded ahead of time into the instruction it performs and all of its possible operands.<br>
+ * Decoded instructions are immutable, so a single decoded instance is shared by every emulated system executing the same opcode.
+ */
+public final class DecodedInstruction {
+
+	/** The opcode this instruction was decoded from */
+	final short opcode;
+	
+	/* Possible arguments of the opcode */
+	final byte x;
+	final byte y;
+	final byte n;
+	final byte kk;
+	final short addr;
+	
+	/** The family of instructions this opcode belongs to */
+	private final OpcodeFamily family;
+	
+	/** The ordinal of this opcode's family, indexing the counts of instructions executed per family */
+	final int familyIndex;
+	
+	/** The instruction carried out for this opcode */
+	private final Instruction instruction;
+	
+	/**Creates a new decoded instruction, extracting all possible arguments from the provided opcode.
+	 * @param opcode The opcode being decoded
+	 * @param family The family of the instruction the opcode maps to
+	 */
+	DecodedInstruction(short opcode, OpcodeFamily family) {
+		this.opcode = opcode;
+		this.family = family;
+		this.familyIndex = family.ordinal();
+		this.instruction = family.instruction;
+		
+		this.x = (byte) ((opcode & 0x0F00) >>> 8);
+		this.y = (byte) ((opcode & 0x00F0) >>> 4);
+		this.n = (byte) (opcode & 0x000F);
+		this.kk = (byte) (opcode & 0x00FF);
+		this.addr = (short) (opcode & 0x0FFF);
+	}//end constructor method
+	
+	/**Executes this instruction on the provided emulated CHIP-8 system.
+	 * @param system The system the instruction is carried out on
+	 */
+	public void execute(Chip8 system) {
+		this.instruction.execute(system, this);
+	}//end method execute
+	
+	/**Gets the opcode this instruction was decoded from.
+	 * @return The 16-bit opcode
+	 */
+	public short getOpcode() {
+		return this.opcode;
+	}//end method getOpcode
+	
+	/**Gets the family of instructions this opcode belongs to.
+	 * @return The instruction family
+	 */
+	public OpcodeFamily getFamily() {
+		return this.family;
+	}//end method getFamily
+	
+}//end class DecodedInstruction
@@ -0,0 +1,283 @@
+package chip8.emulator;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**Drives an emulated CHIP-8 system in real time, at its target rate of instructions per second, as one of the loops run by an {@link EmulationScheduler}.<br>
+ * The system's 60 Hz frames of emulated time are each due at one of the scheduler's ticks. At every tick with frames due, the scheduler runs them on one of its carrier threads.
+ * Frame deadlines are counted from the tick the loop started at, so rounding never accumulates into drift.
+ * After a stall, missed frames are caught up back-to-back, up to {@link #MAX_CATCH_UP_FRAMES}; any further missed frames are dropped.
+ * While the system is idle waiting for a key press, the loop is not run at all until a key is pressed. The press queues the loop on the scheduler straight away, rather than at the next tick,
+ * and the loop then passes the frames it was idle through at once.
+ * The loop can be paused and resumed, without catching up on the frames it was paused through.
+ * If running the system throws, the loop stops and notifies its failure listener, if one is set.
+ */
+public class EmulationLoop {
+
+	/** The maximum number of missed frames run back-to-back to catch up after a stall */
+	public static final int MAX_CATCH_UP_FRAMES = 5;
+
+	/** The number of nanoseconds in a second */
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+	/** The interval between reports of the achieved instruction rate, in nanoseconds */
+	private static final long REPORT_INTERVAL_NANOS = NANOS_PER_SECOND;
+
+	/** The emulated system being driven */
+	private final Chip8 system;
+
+	/** The scheduler running the loop */
+	private final EmulationScheduler scheduler;
+
+	/** Whether the loop is queued or running on the scheduler, so that it is never queued twice */
+	private final AtomicBoolean queued = new AtomicBoolean();
+
+	/** Queues the loop when a key is pressed while the system is idle, run by the keypad on the pressing thread */
+	private final Runnable keyPressWaker = this::keyPressed;
+
+	/** Whether the loop should keep running */
+	private volatile boolean running;
+
+	/** Whether the loop is paused */
+	private volatile boolean paused;
+
+	/** Whether frame deadlines should be moved on to the current tick before the next slice, after being paused */
+	private volatile boolean rebasing;
+
+	/** Whether the system was idle at the end of the last slice */
+	private volatile boolean idle;
+
+	/** The scheduler tick frame 0 was due at */
+	private volatile long startTick;
+
+	/** The number of frames run or dropped */
+	private volatile long frame;
+
+	/* Reports of the achieved instruction rate, made by the thread running the loop */
+		/** The time the current report interval started */
+		private long reportStartTime;
+
+		/** The cycle count when the current report interval started */
+		private long reportStartCycle;
+
+	/** The instruction rate achieved over the last report interval */
+	private volatile double achievedInstructionsPerSecond;
+
+	/** The total number of frames dropped after falling too far behind */
+	private volatile long droppedFrames;
+
+	/** The exception running the system failed with, or null if it has not failed */
+	private RuntimeException failure;
+
+	/** Run once if running the system fails, on the thread it failed on */
+	private Runnable failureListener;
+
+	/**Creates a new emulation loop run by the shared scheduler. The loop does not run until started.
+	 * @param system The emulated system to be driven, at its own rate of instructions per second
+	 */
+	public EmulationLoop(Chip8 system) {
+		this(system, EmulationScheduler.getShared());
+	}//end constructor method
+
+	/**Creates a new emulation loop. The loop does not run until started.
+	 * @param system The emulated system to be driven, at its own rate of instructions per second
+	 * @param scheduler The scheduler to run the loop
+	 */
+	public EmulationLoop(Chip8 system, EmulationScheduler scheduler) {
+		this.system = system;
+		this.scheduler = scheduler;
+	}//end constructor method
+
+	/** Starts running the loop on its scheduler, from the current tick. Does nothing if the loop has already been started. */
+	public synchronized void start() {
+		if(this.running)
+			return;
+
+		this.startTick = this.scheduler.getCurrentTick() - this.frame;
+		this.reportStartTime = System.nanoTime();
+		this.reportStartCycle = this.system.getCycleCount();
+
+		this.running = true;
+		this.scheduler.register(this);
+	}//end method start
+
+	/** Stops the loop once any slice already running completes. */
+	public synchronized void stop() {
+		if(!this.running)
+			return;
+
+		this.running = false;
+		this.scheduler.unregister(this);
+
+		this.system.getContext().trace(TraceLevel.INFO, TraceCategory.SYSTEM, "Emulation loop stopped after %d frames: achieved %.0f of target %d instructions per second, %d frames dropped",
+				this.frame, this.achievedInstructionsPerSecond, this.system.getInstructionsPerSecond(), this.droppedFrames);
+	}//end method stop
+
+	/** Pauses the loop once any slice already running completes. The system keeps its state, and no frames are due while paused. */
+	public void pause() {
+		this.paused = true;
+	}//end method pause
+
+	/** Resumes a paused loop from the current tick, without catching up on the frames it was paused through. Does nothing if the loop is not paused. */
+	public void resume() {
+		if(!this.paused)
+			return;
+
+		this.rebasing = true;
+		this.paused = false;
+	}//end method resume
+
+	/**Gets whether the loop is paused.
+	 * @return True, if the loop is paused. If not, false.
+	 */
+	public boolean isPaused() {
+		return this.paused;
+	}//end method isPaused
+
+	/**Queues the loop to be run if it has a frame due, and is not already queued or running.
+	 * @param tick The scheduler tick in progress
+	 * @return True, if the loop was queued and should be run. If not, false.
+	 */
+	boolean queueIfDue(long tick) {
+		if(!this.running || this.paused)
+			return false;
+
+		if(!this.rebasing && this.startTick + this.frame > tick)
+			return false;
+
+		//An idle system cannot change until a key is pressed
+		if(this.idle && !this.system.isKeyPressed())
+			return false;
+
+		return this.queued.compareAndSet(false, true);
+	}//end method queueIfDue
+
+	/** Queues the loop on the scheduler straight away when a key is pressed, if the system is idle and has a frame due, so that it wakes on the key press itself rather than at the next tick. */
+	private void keyPressed() {
+		if(!this.running || this.paused || !this.idle)
+			return;
+
+		if(!this.rebasing && this.startTick + this.frame > this.scheduler.getCurrentTick())
+			return;
+
+		if(this.queued.compareAndSet(false, true))
+			this.scheduler.queue(this);
+	}//end method keyPressed
+
+	/**Runs the frames due by a scheduler tick, as one time slice. Must only be run by the scheduler, after the loop was queued.
+	 * @param tick The scheduler tick in progress
+	 */
+	void runSlice(long tick) {
+		try {
+			if(this.rebasing) {
+				this.startTick = tick - this.frame;
+				this.rebasing = false;
+			}//end if
+
+			long framesDue = tick - (this.startTick + this.frame) + 1;
+
+			//Every frame the system was idle through passes at once, up to the one in progress
+			if(this.idle && framesDue > 1)
+				this.frame += this.system.skipIdleFrames(framesDue - 1);
+			framesDue = tick - (this.startTick + this.frame) + 1;
+
+			//Drop any frames missed beyond the catch-up limit, rather than running them all at once
+			if(framesDue > MAX_CATCH_UP_FRAMES + 1) {
+				this.droppedFrames += framesDue - 1 - MAX_CATCH_UP_FRAMES;
+				this.frame += framesDue - 1 - MAX_CATCH_UP_FRAMES;
+				framesDue = MAX_CATCH_UP_FRAMES + 1;
+			}//end if
+
+			for(; framesDue > 0 && this.running && !this.paused; --framesDue) {
+				this.system.runFrame();
+				this.frame++;
+			}//end for
+
+			//Wake on the next key press, which the ticker would otherwise only notice at the next tick
+			this.idle = this.system.isIdle();
+			if(this.idle)
+				this.system.wakeOnKeyPress(this.keyPressWaker);
+			report();
+		} catch(RuntimeException e) {
+			this.system.getContext().trace(TraceLevel.ERROR, TraceCategory.SYSTEM, "Emulation failed: %s", e);
+			System.err.println("Emulation failed: " + e);
+			stop();
+			fail(e);
+		} finally {
+			this.queued.set(false);
+		}//end try-catch
+	}//end method runSlice
+
+	/**Sets the listener run once if running the system fails, after the loop has stopped. If it has already failed, the listener is run straight away, on the calling thread.
+	 * @param listener The listener, run on the thread running the system when it failed
+	 */
+	public void setFailureListener(Runnable listener) {
+		boolean failed;
+		synchronized(this) {
+			this.failureListener = listener;
+			failed = this.failure != null;
+		}//end synchronized
+
+		if(failed)
+			listener.run();
+	}//end method setFailureListener
+
+	/**Gets the exception running the system failed with, which stopped the loop.
+	 * @return The exception, or null if the system has not failed
+	 */
+	public synchronized RuntimeException getFailure() {
+		return this.failure;
+	}//end method getFailure
+
+	/**Records the exception running the system failed with, and notifies the failure listener.
+	 * @param e The exception
+	 */
+	private void fail(RuntimeException e) {
+		Runnable listener;
+		synchronized(this) {
+			this.failure = e;
+			listener = this.failureListener;
+		}//end synchronized
+
+		if(listener != null)
+			listener.run();
+	}//end method fail
+
+	/**Gets the instruction rate achieved over the most recent report interval.
+	 * @return The achieved number of instructions per second, or 0 if no interval has completed yet
+	 */
+	public double getAchievedInstructionsPerSecond() {
+		return this.achievedInstructionsPerSecond;
+	}//end method getAchievedInstructionsPerSecond
+
+	/**Gets the target instruction rate.
+	 * @return The target number of instructions per second
+	 */
+	public int getInstructionsPerSecond() {
+		return this.system.getInstructionsPerSecond();
+	}//end method getInstructionsPerSecond
+
+	/**Gets the number of frames dropped after the loop fell further behind than it could catch up.
+	 * @return The total number of dropped frames
+	 */
+	public long getDroppedFrames() {
+		return this.droppedFrames;
+	}//end method getDroppedFrames
+
+	/** Updates the achieved instruction rate once a report interval has passed. */
+	private void report() {
+		long now = System.nanoTime();
+		if(now - this.reportStartTime < REPORT_INTERVAL_NANOS)
+			return;
+
+		long cycleCount = this.system.getCycleCount();
+		this.achievedInstructionsPerSecond = (double) (cycleCount - this.reportStartCycle) * NANOS_PER_SECOND / (now - this.reportStartTime);
+		this.reportStartTime = now;
+		this.reportStartCycle = cycleCount;
+
+		EmulatorContext context = this.system.getContext();
+		if(context.isTracing(TraceLevel.DEBUG, TraceCategory.SYSTEM))
+			context.trace(TraceLevel.DEBUG, TraceCategory.SYSTEM, "Achieved %.0f of target %d instructions per second, %d frames dropped",
+					this.achievedInstructionsPerSecond, this.system.getInstructionsPerSecond(), this.droppedFrames);
+	}//end method report
+
+}//end class EmulationLoop
@@ -0,0 +1,156 @@
+package chip8.emulator;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**Drives the emulation loops of any number of emulated CHIP-8 systems in real time, on a fixed set of threads shared by all of them.<br>
+ * <p>Time is divided into 60 Hz ticks, counted from when the scheduler was created. At every tick, a single ticker thread queues each registered loop with a frame due,
+ * and a small pool of carrier threads takes loops from the queue in turn, running each loop's due frames as one time slice. A loop is never queued again while it is queued or running,
+ * so each loop gets one slice per tick, in the order they fell due, however many loops are registered.</p>
+ * <p>Loops which are idle, waiting for a key press with both timers run out, are not queued until a key is pressed, so hosting many idle systems costs almost nothing.
+ * The key press queues the loop at once, from the thread pressing the key, without waiting for the next tick.
+ * When no loops are registered, the ticker sleeps until one is.</p>
+ * <p>Most emulators share the scheduler returned by {@link #getShared()}, whose threads are daemon threads, so they never keep the process alive on their own.</p>
+ */
+public class EmulationScheduler {
+	
+	/** The number of nanoseconds in a second */
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+	
+	/** The scheduler shared by all emulators, or null if it has not been needed yet */
+	private static EmulationScheduler shared;
+	
+	/** The time tick 0 started */
+	private final long startTime = System.nanoTime();
+	
+	/** The loops driven by the scheduler */
+	private final CopyOnWriteArrayList<EmulationLoop> loops = new CopyOnWriteArrayList<EmulationLoop>();
+	
+	/** Loops with a frame due, waiting for a carrier thread to run them */
+	private final BlockingQueue<EmulationLoop> ready = new LinkedBlockingQueue<EmulationLoop>();
+	
+	/** The thread queueing loops at every tick */
+	private final Thread ticker;
+	
+	/** The threads running queued loops */
+	private final Thread[] carriers;
+	
+	/** Whether the scheduler has been shut down */
+	private volatile boolean shutDown;
+	
+	/**Creates a new scheduler and starts its threads.
+	 * @param carrierThreads The number of threads running loops. Must be at least 1.
+	 */
+	public EmulationScheduler(int carrierThreads) {
+		if(carrierThreads < 1)
+			throw new IllegalArgumentException("A scheduler needs at least 1 carrier thread: " + carrierThreads);
+		
+		this.ticker = new Thread(this::tick, "Chip8-Ticker");
+		this.ticker.setDaemon(true);
+		
+		this.carriers = new Thread[carrierThreads];
+		for(int i = 0; i < carrierThreads; ++i) {
+			this.carriers[i] = new Thread(this::carry, "Chip8-Carrier-" + i);
+			this.carriers[i].setDaemon(true);
+			this.carriers[i].start();
+		}//end for
+		
+		this.ticker.start();
+	}//end constructor method
+	
+	/**Gets the scheduler shared by all emulators, creating it with one carrier thread per processor the first time it is needed.
+	 * @return The shared scheduler
+	 */
+	public static synchronized EmulationScheduler getShared() {
+		if(EmulationScheduler.shared == null)
+			EmulationScheduler.shared = new EmulationScheduler(Runtime.getRuntime().availableProcessors());
+		
+		return EmulationScheduler.shared;
+	}//end method getShared
+	
+	/**Stops the scheduler's threads once their current slices complete. Registered loops stop being run.*/
+	public void shutdown() {
+		this.shutDown = true;
+		
+		LockSupport.unpark(this.ticker);
+		for(Thread carrier : this.carriers)
+			carrier.interrupt();
+	}//end method shutdown
+	
+	/**Gets the number of threads running loops.
+	 * @return The number of carrier threads
+	 */
+	public int getCarrierThreads() {
+		return this.carriers.length;
+	}//end method getCarrierThreads
+	
+	/**Gets the number of loops driven by the scheduler.
+	 * @return The number of registered loops
+	 */
+	public int getLoopCount() {
+		return this.loops.size();
+	}//end method getLoopCount
+	
+	/**Gets the tick in progress.
+	 * @return The number of whole 60 Hz ticks since the scheduler was created
+	 */
+	public long getCurrentTick() {
+		return (System.nanoTime() - this.startTime) * Chip8.FRAME_RATE / NANOS_PER_SECOND;
+	}//end method getCurrentTick
+	
+	/**Starts driving a loop, from the next tick.
+	 * @param loop The loop to be driven
+	 */
+	void register(EmulationLoop loop) {
+		this.loops.add(loop);
+		LockSupport.unpark(this.ticker);
+	}//end method register
+	
+	/**Queues a loop to be run by a carrier thread before the next tick, such as when a key press wakes it. The loop must not already be queued or running.
+	 * @param loop The loop to be run
+	 */
+	void queue(EmulationLoop loop) {
+		this.ready.add(loop);
+	}//end method queue
+	
+	/**Stops driving a loop. A slice of the loop already running completes.
+	 * @param loop The loop to stop driving
+	 */
+	void unregister(EmulationLoop loop) {
+		this.loops.remove(loop);
+	}//end method unregister
+	
+	/** Queues every loop with a frame due at each tick, sleeping between ticks, and while no loops are registered. */
+	private void tick() {
+		while(!this.shutDown) {
+			if(this.loops.isEmpty()) {
+				LockSupport.park(this);
+				continue;
+			}//end if
+			
+			long tick = getCurrentTick();
+			for(EmulationLoop loop : this.loops)
+				if(loop.queueIfDue(tick))
+					this.ready.add(loop);
+			
+			//Sleep until the next tick starts
+			long nextTickStart = this.startTime + (tick + 1) * NANOS_PER_SECOND / Chip8.FRAME_RATE;
+			for(long now = System.nanoTime(); now < nextTickStart && !this.shutDown; now = System.nanoTime())
+				LockSupport.parkNanos(this, nextTickStart - now);
+		}//end while
+	}//end method tick
+	
+	/** Runs a slice of each queued loop in turn, waiting while none are queued. */
+	private void carry() {
+		while(!this.shutDown) {
+			try {
+				this.ready.take().runSlice(getCurrentTick());
+			} catch(InterruptedException e) {
+				//Interrupted by shutdown, which is checked by the loop
+			}//end try-catch
+		}//end while
+	}//end method carry
+	
+}//end class EmulationScheduler
@@ -0,0 +1,87 @@
+package chip8.emulator;
+
+import java.io.PrintStream;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**Configuration and trace logging scoped to a single emulated CHIP-8 system and its components.<br>
+ * Each emulator is given its own context, so any number of independent emulators can run in one process without sharing configuration or trace output.
+ * <p>Trace output is filtered by {@link TraceLevel} and {@link TraceCategory}. Statements which are expensive to build should be guarded by {@link #isTracing(TraceLevel, TraceCategory)},
+ * so that nothing is allocated or formatted while their tracing is disabled.</p>
+ */
+public class EmulatorContext {
+	
+	/** Context with tracing disabled, for emulators which need no configuration */
+	public static final EmulatorContext QUIET = new EmulatorContext(false, System.out);
+	
+	/** The ordinal of the most verbose level traced */
+	private final int traceLevel;
+	
+	/** The bits of all categories traced */
+	private final int traceCategories;
+	
+	/** The stream trace statements are printed to */
+	private final PrintStream traceStream;
+	
+	/**Creates a new emulator context tracing all categories.
+	 * @param verbose Whether verbose debugging mode should be enabled, tracing everything. If not, tracing is disabled.
+	 * @param traceStream The stream trace statements are to be printed to
+	 */
+	public EmulatorContext(boolean verbose, PrintStream traceStream) {
+		this(verbose ? TraceLevel.TRACE : TraceLevel.OFF, EnumSet.allOf(TraceCategory.class), traceStream);
+	}//end constructor method
+	
+	/**Creates a new emulator context.
+	 * @param traceLevel The most verbose level to be traced
+	 * @param traceCategories The categories to be traced
+	 * @param traceStream The stream trace statements are to be printed to
+	 */
+	public EmulatorContext(TraceLevel traceLevel, Set<TraceCategory> traceCategories, PrintStream traceStream) {
+		int categoryBits = 0;
+		for(TraceCategory category : traceCategories)
+			categoryBits |= category.mask;
+		
+		this.traceLevel = traceLevel.ordinal();
+		this.traceCategories = categoryBits;
+		this.traceStream = traceStream;
+	}//end constructor method
+	
+	/**Gets whether statements of the provided level and category are traced.
+	 * @param level The level of detail of the statements
+	 * @param category The category of the statements
+	 * @return True, if the statements would be printed to the trace output stream. If not, false.
+	 */
+	public boolean isTracing(TraceLevel level, TraceCategory category) {
+		return level.ordinal() <= this.traceLevel && (this.traceCategories & category.mask) != 0;
+	}//end method isTracing
+	
+	/**If the provided level and category are traced, prints the supplied statement to the trace output stream.
+	 * @param level The level of detail of the statement
+	 * @param category The category of the statement
+	 * @param statement The statement to be printed to the output stream
+	 */
+	public void trace(TraceLevel level, TraceCategory category, String statement) {
+		if(isTracing(level, category))
+			this.traceStream.println(statement);
+	}//end method trace
+	
+	/**If the provided level and category are traced, formats and prints the supplied statement to the trace output stream.<br>
+	 * The statement's arguments are still boxed by the caller while tracing is disabled, so calls on hot paths should be guarded by {@link #isTracing(TraceLevel, TraceCategory)}.
+	 * @param level The level of detail of the statement
+	 * @param category The category of the statement
+	 * @param format The format string of the statement
+	 * @param args The arguments referenced by the format string
+	 */
+	public void trace(TraceLevel level, TraceCategory category, String format, Object... args) {
+		if(isTracing(level, category))
+			this.traceStream.println(String.format(format, args));
+	}//end method trace
+	
+	/**Gets the stream trace statements are printed to.
+	 * @return The trace output stream
+	 */
+	public PrintStream getTraceStream() {
+		return this.traceStream;
+	}//end method getTraceStream
+	
+}//end class EmulatorContext
@@ -0,0 +1,302 @@
+package chip8.emulator;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**Counters of the work done by an emulated CHIP-8 system: instructions executed per opcode family, idle cycles, frames rendered, draws and collisions, and timer ticks,
+ * along with the frame times of the renderer presenting its frames.<br>
+ * <p>The counters are always kept. Each is a plain field written only by the thread running the emulator, so counting costs one increment and no synchronization.
+ * They are read without locking, so a reader on another thread, such as a JMX client, may see values a few cycles old.</p>
+ * <p>The metrics can be registered as a JMX MBean with {@link #register(String)}, and summarized on the emulator's trace stream every few frames with {@link #setSummaryInterval(long)}.</p>
+ */
+public class EmulatorMetrics implements EmulatorMetricsMXBean {
+	
+	/** Every opcode family, indexed by ordinal */
+	private static final OpcodeFamily[] FAMILIES = OpcodeFamily.values();
+	
+	/** The number of opcode families listed in each summary */
+	private static final int SUMMARY_FAMILIES = 5;
+	
+	/** The number of nanoseconds in a second */
+	private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+	
+	/** The minimum interval over which the cycle rate is measured, in nanoseconds */
+	private static final long RATE_INTERVAL_NANOS = 1_000_000_000L;
+	
+	/** The emulated system being measured */
+	private final Chip8 system;
+	
+	/* Counters, written only by the thread running the emulator */
+		/** The number of instructions executed from each opcode family, indexed by the family's ordinal */
+		final long[] opcodeCounts = new long[FAMILIES.length];
+		
+		/** The number of cycles passed without executing an instruction */
+		long idleCycles;
+		
+		/** The number of changed frames passed to the display */
+		long framesRendered;
+		
+		/** The number of DRW instructions executed */
+		long drawCount;
+		
+		/** The number of DRW instructions which collided with pixels already on */
+		long drawCollisions;
+		
+		/** The number of times the delay timer counted down */
+		long delayTimerTicks;
+		
+		/** The number of times the sound timer counted down */
+		long soundTimerTicks;
+	
+	/** Frame times of the renderer presenting the emulator's frames, recorded by the renderer */
+	private final FrameTimes frameTimes = new FrameTimes();
+	
+	/** The number of frames between summaries, or 0 if summaries are disabled */
+	private volatile long summaryInterval;
+	
+	/** The time the current summary interval started, or 0 if it has not started */
+	private long summaryStartNanos;
+	
+	/** The cycle count when the current summary interval started */
+	private long summaryStartCycle;
+	
+	/** The time the cycle rate was last measured from */
+	private long rateStartNanos = System.nanoTime();
+	
+	/** The cycle count the cycle rate was last measured from */
+	private long rateStartCycle;
+	
+	/** The cycle rate last measured */
+	private double cyclesPerSecond;
+	
+	/** The name the metrics are registered under, or null if they are not registered */
+	private ObjectName objectName;
+	
+	/**Creates new, zeroed metrics of an emulated system.
+	 * @param system The system being measured
+	 */
+	EmulatorMetrics(Chip8 system) {
+		this.system = system;
+	}//end constructor method
+	
+	/**Registers the metrics with the platform MBean server, replacing any previous registration of these metrics.
+	 * @param name The name identifying the emulator, such as its ROM's filename
+	 * @return True, if the metrics were registered. If not, false.
+	 */
+	public synchronized boolean register(String name) {
+		unregister();
+		
+		try {
+			ObjectName objectName = new ObjectName("chip8:type=Emulator,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			this.objectName = objectName;
+		} catch(JMException e) {
+			System.err.println("Metrics registration failed: " + e.getMessage());
+			return false;
+		}//end try-catch
+		
+		return true;
+	}//end method register
+	
+	/**Unregisters the metrics from the platform MBean server. Does nothing if they are not registered.*/
+	public synchronized void unregister() {
+		if(this.objectName == null)
+			return;
+		
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+		} catch(JMException e) {
+			System.err.println("Metrics unregistration failed: " + e.getMessage());
+		}//end try-catch
+		
+		this.objectName = null;
+	}//end method unregister
+	
+	@Override
+	public long getCycleCount() {
+		return this.system.getCycleCount();
+	}//end method getCycleCount
+	
+	@Override
+	public synchronized double getCyclesPerSecond() {
+		long now = System.nanoTime();
+		
+		//Keep the last rate until a long enough interval has passed to measure a new one
+		if(now - this.rateStartNanos >= EmulatorMetrics.RATE_INTERVAL_NANOS) {
+			long cycleCount = this.system.getCycleCount();
+			this.cyclesPerSecond = (cycleCount - this.rateStartCycle) * NANOS_PER_SECOND / (now - this.rateStartNanos);
+			this.rateStartNanos = now;
+			this.rateStartCycle = cycleCount;
+		}//end if
+		
+		return this.cyclesPerSecond;
+	}//end method getCyclesPerSecond
+	
+	@Override
+	public int getInstructionsPerSecond() {
+		return this.system.getInstructionsPerSecond();
+	}//end method getInstructionsPerSecond
+	
+	@Override
+	public long getIdleCycles() {
+		return this.idleCycles;
+	}//end method getIdleCycles
+	
+	@Override
+	public long getFrameCount() {
+		return this.system.getFrameCount();
+	}//end method getFrameCount
+	
+	@Override
+	public long getFramesRendered() {
+		return this.framesRendered;
+	}//end method getFramesRendered
+	
+	@Override
+	public long getDrawCount() {
+		return this.drawCount;
+	}//end method getDrawCount
+	
+	@Override
+	public long getDrawCollisions() {
+		return this.drawCollisions;
+	}//end method getDrawCollisions
+	
+	@Override
+	public double getDrawCollisionRate() {
+		long draws = this.drawCount;
+		return (draws == 0) ? 0 : (double) this.drawCollisions / draws;
+	}//end method getDrawCollisionRate
+	
+	@Override
+	public long getDelayTimerTicks() {
+		return this.delayTimerTicks;
+	}//end method getDelayTimerTicks
+	
+	@Override
+	public long getSoundTimerTicks() {
+		return this.soundTimerTicks;
+	}//end method getSoundTimerTicks
+	
+	/**Gets the frame times of the renderer presenting the emulator's frames, which a renderer such as a display panel records into.
+	 * @return The frame times, which are empty unless a renderer is presenting
+	 */
+	public FrameTimes getFrameTimes() {
+		return this.frameTimes;
+	}//end method getFrameTimes
+	
+	@Override
+	public long getFramesPresented() {
+		return this.frameTimes.getFramesPresented();
+	}//end method getFramesPresented
+	
+	@Override
+	public long getPresentTicksMissed() {
+		return this.frameTimes.getTicksMissed();
+	}//end method getPresentTicksMissed
+	
+	@Override
+	public double getFrameTimeP50() {
+		return this.frameTimes.getFrameTimePercentile(50);
+	}//end method getFrameTimeP50
+	
+	@Override
+	public double getFrameTimeP95() {
+		return this.frameTimes.getFrameTimePercentile(95);
+	}//end method getFrameTimeP95
+	
+	@Override
+	public double getFrameTimeP99() {
+		return this.frameTimes.getFrameTimePercentile(99);
+	}//end method getFrameTimeP99
+	
+	@Override
+	public double getRenderTimeP99() {
+		return this.frameTimes.getRenderTimePercentile(99);
+	}//end method getRenderTimeP99
+	
+	/**Gets the number of instructions executed from an opcode family.
+	 * @param family The opcode family
+	 * @return The execution count
+	 */
+	public long getOpcodeCount(OpcodeFamily family) {
+		return this.opcodeCounts[family.ordinal()];
+	}//end method getOpcodeCount
+	
+	@Override
+	public Map<String, Long> getOpcodeCounts() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for(OpcodeFamily family : FAMILIES)
+			counts.put(family.pattern, this.opcodeCounts[family.ordinal()]);
+		
+		return counts;
+	}//end method getOpcodeCounts
+	
+	@Override
+	public long getSummaryInterval() {
+		return this.summaryInterval;
+	}//end method getSummaryInterval
+	
+	@Override
+	public void setSummaryInterval(long frames) {
+		if(frames < 0)
+			throw new IllegalArgumentException("Summary interval must not be negative: " + frames);
+		
+		this.summaryInterval = frames;
+	}//end method setSummaryInterval
+	
+	/**Prints a one-line summary of the metrics: cycles and their rate since the last summary, frames, draws, timer ticks, frame times if frames are being presented, and the most executed opcode families.<br>
+	 * Should be called by the thread running the emulator, or while it is stopped.
+	 * @param out The stream the summary is printed to
+	 */
+	public void printSummary(PrintStream out) {
+		long now = System.nanoTime();
+		long cycleCount = this.system.getCycleCount();
+		double rate = (this.summaryStartNanos == 0) ? 0 : (cycleCount - this.summaryStartCycle) * NANOS_PER_SECOND / (now - this.summaryStartNanos);
+		this.summaryStartNanos = now;
+		this.summaryStartCycle = cycleCount;
+		
+		long executed = cycleCount - this.idleCycles;
+		StringBuilder summary = new StringBuilder(String.format("Metrics at frame %d: %d cycles (%.0f/s, %.1f%% idle), %d frames rendered, %d DRW (%.1f%% collided), %d delay and %d sound timer ticks",
+				this.system.getFrameCount(), cycleCount, rate, percent(this.idleCycles, cycleCount), this.framesRendered,
+				this.drawCount, 100 * getDrawCollisionRate(), this.delayTimerTicks, this.soundTimerTicks));
+		
+		if(this.frameTimes.getTicks() != 0)
+			summary.append(String.format(", frame time p50/p95/p99 %.1f/%.1f/%.1f ms (%d ticks missed)",
+					getFrameTimeP50(), getFrameTimeP95(), getFrameTimeP99(), getPresentTicksMissed()));
+		summary.append("; top opcodes:");
+		
+		OpcodeFamily[] families = FAMILIES.clone();
+		Arrays.sort(families, Comparator.comparingLong( (OpcodeFamily family) -> this.opcodeCounts[family.ordinal()] ).reversed());
+		for(int i = 0; i < EmulatorMetrics.SUMMARY_FAMILIES && this.opcodeCounts[families[i].ordinal()] != 0; ++i)
+			summary.append(String.format(" %s %.1f%%", families[i].pattern, percent(this.opcodeCounts[families[i].ordinal()], executed)));
+		
+		out.println(summary);
+	}//end method printSummary
+	
+	/**Prints a summary to the emulator's trace stream if the frame just completed ends a summary interval.
+	 * @param frameCount The number of frames completed
+	 */
+	void frameCompleted(long frameCount) {
+		long interval = this.summaryInterval;
+		if(interval > 0 && frameCount % interval == 0)
+			printSummary(this.system.getContext().getTraceStream());
+	}//end method frameCompleted
+	
+	/**Computes a count as a percentage of a total.
+	 * @param count The count
+	 * @param total The total
+	 * @return The percentage, or 0 if the total is 0
+	 */
+	private static double percent(long count, long total) {
+		return (total == 0) ? 0 : 100.0 * count / total;
+	}//end method percent
+	
+}//end class EmulatorMetrics
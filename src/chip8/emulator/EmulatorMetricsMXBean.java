@@ -0,0 +1,108 @@
+package chip8.emulator;
+
+import java.util.Map;
+
+/**Management interface of an emulator's {@link EmulatorMetrics}, registered with the platform MBean server as <code>chip8:type=Emulator,name="..."</code>.*/
+public interface EmulatorMetricsMXBean {
+	
+	/**Gets the number of cycles run.
+	 * @return The cycle count
+	 */
+	public long getCycleCount();
+	
+	/**Gets the rate cycles were run at, measured over roughly the last second.
+	 * @return The number of cycles run per second of real time
+	 */
+	public double getCyclesPerSecond();
+	
+	/**Gets the target number of instructions run per second of emulated time.
+	 * @return The number of instructions per second
+	 */
+	public int getInstructionsPerSecond();
+	
+	/**Gets the number of cycles passed without executing an instruction, while halted waiting for a key press or fast-forwarding an idle loop.
+	 * @return The idle cycle count
+	 */
+	public long getIdleCycles();
+	
+	/**Gets the number of 60 Hz frames of emulated time completed.
+	 * @return The frame count
+	 */
+	public long getFrameCount();
+	
+	/**Gets the number of times a changed frame was passed to the display.
+	 * @return The number of frames rendered
+	 */
+	public long getFramesRendered();
+	
+	/**Gets the number of new frames presented by the renderer, on its steady presentation tick.
+	 * @return The number of frames presented, or 0 if no renderer is presenting
+	 */
+	public long getFramesPresented();
+	
+	/**Gets the number of presentation ticks skipped because the renderer was too late for them, such as while the event dispatch thread was busy.
+	 * @return The number of missed ticks
+	 */
+	public long getPresentTicksMissed();
+	
+	/**Gets the median interval between the renderer's most recent presentation ticks.
+	 * @return The 50th percentile frame time in milliseconds, or 0 if no renderer is presenting
+	 */
+	public double getFrameTimeP50();
+	
+	/**Gets the 95th percentile interval between the renderer's most recent presentation ticks.
+	 * @return The 95th percentile frame time in milliseconds, or 0 if no renderer is presenting
+	 */
+	public double getFrameTimeP95();
+	
+	/**Gets the 99th percentile interval between the renderer's most recent presentation ticks.
+	 * @return The 99th percentile frame time in milliseconds, or 0 if no renderer is presenting
+	 */
+	public double getFrameTimeP99();
+	
+	/**Gets the 99th percentile time the renderer spent rendering and painting each of its most recent new frames.
+	 * @return The 99th percentile render time in milliseconds, or 0 if no frame has been presented
+	 */
+	public double getRenderTimeP99();
+	
+	/**Gets the number of DRW instructions executed.
+	 * @return The draw count
+	 */
+	public long getDrawCount();
+	
+	/**Gets the number of DRW instructions which collided with pixels already on.
+	 * @return The collision count
+	 */
+	public long getDrawCollisions();
+	
+	/**Gets the fraction of DRW instructions which collided with pixels already on.
+	 * @return The collision rate, from 0 to 1
+	 */
+	public double getDrawCollisionRate();
+	
+	/**Gets the number of times the delay timer counted down.
+	 * @return The delay timer tick count
+	 */
+	public long getDelayTimerTicks();
+	
+	/**Gets the number of times the sound timer counted down.
+	 * @return The sound timer tick count
+	 */
+	public long getSoundTimerTicks();
+	
+	/**Gets the number of instructions executed from each opcode family.
+	 * @return The execution counts, keyed by the opcode pattern of each family, such as "8xy4"
+	 */
+	public Map<String, Long> getOpcodeCounts();
+	
+	/**Gets the number of frames between summaries printed to the trace stream.
+	 * @return The summary interval in frames, or 0 if summaries are disabled
+	 */
+	public long getSummaryInterval();
+	
+	/**Sets the number of frames between summaries printed to the trace stream.
+	 * @param frames The summary interval in frames, or 0 to disable summaries
+	 */
+	public void setSummaryInterval(long frames);
+	
+}//end interface EmulatorMetricsMXBean
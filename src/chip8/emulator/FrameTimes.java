@@ -0,0 +1,111 @@
+package chip8.emulator;
+
+import java.util.Arrays;
+
+/**Statistics of how steadily a renderer presents an emulator's frames, over a rolling window of the most recent presentation ticks.<br>
+ * <p>A renderer presents on a steady tick, such as 60 Hz, and reports the time between ticks with {@link #tickCompleted(long, long)},
+ * and the time spent rendering and painting whenever a tick presented a new frame with {@link #framePresented(long)}.
+ * Ticks the renderer was too late for are skipped rather than run back-to-back, and counted as missed.</p>
+ * <p>Recording and reading never allocate, so the statistics can be read live, such as by an overlay or a JMX client, from any thread.</p>
+ */
+public class FrameTimes {
+	
+	/** The number of most recent samples percentiles are taken over, which is just over 4 seconds of ticks at 60 Hz */
+	public static final int WINDOW = 256;
+	
+	/** The number of nanoseconds in a millisecond */
+	private static final double NANOS_PER_MILLI = 1_000_000.0;
+	
+	/** Ring of the most recent intervals between ticks, in nanoseconds */
+	private final long[] frameNanos = new long[WINDOW];
+	
+	/** Ring of the most recent times spent presenting a new frame, in nanoseconds */
+	private final long[] renderNanos = new long[WINDOW];
+	
+	/** Scratch space the samples are sorted in to take percentiles */
+	private final long[] sorted = new long[WINDOW];
+	
+	/** The number of intervals between ticks recorded */
+	private long ticks;
+	
+	/** The number of new frames presented */
+	private long framesPresented;
+	
+	/** The number of ticks skipped because the renderer was too late for them */
+	private long ticksMissed;
+	
+	/**Records a completed tick.
+	 * @param intervalNanos The time since the previous tick, in nanoseconds
+	 * @param missedTicks The number of ticks skipped since the previous tick
+	 */
+	public synchronized void tickCompleted(long intervalNanos, long missedTicks) {
+		this.frameNanos[(int) (this.ticks++ % WINDOW)] = intervalNanos;
+		this.ticksMissed += missedTicks;
+	}//end method tickCompleted
+	
+	/**Records a new frame presented on the current tick.
+	 * @param nanos The time spent rendering and painting the frame, in nanoseconds
+	 */
+	public synchronized void framePresented(long nanos) {
+		this.renderNanos[(int) (this.framesPresented++ % WINDOW)] = nanos;
+	}//end method framePresented
+	
+	/**Gets a percentile of the intervals between the most recent ticks.
+	 * @param percentile The percentile, from 0 to 100
+	 * @return The interval in milliseconds, or 0 if no interval has been recorded
+	 */
+	public synchronized double getFrameTimePercentile(double percentile) {
+		return percentile(this.frameNanos, this.ticks, percentile);
+	}//end method getFrameTimePercentile
+	
+	/**Gets a percentile of the times spent presenting the most recent new frames.
+	 * @param percentile The percentile, from 0 to 100
+	 * @return The time in milliseconds, or 0 if no frame has been presented
+	 */
+	public synchronized double getRenderTimePercentile(double percentile) {
+		return percentile(this.renderNanos, this.framesPresented, percentile);
+	}//end method getRenderTimePercentile
+	
+	/**Gets the number of intervals between ticks recorded.
+	 * @return The tick count
+	 */
+	public synchronized long getTicks() {
+		return this.ticks;
+	}//end method getTicks
+	
+	/**Gets the number of new frames presented.
+	 * @return The presented frame count
+	 */
+	public synchronized long getFramesPresented() {
+		return this.framesPresented;
+	}//end method getFramesPresented
+	
+	/**Gets the number of ticks skipped because the renderer was too late for them.
+	 * @return The missed tick count
+	 */
+	public synchronized long getTicksMissed() {
+		return this.ticksMissed;
+	}//end method getTicksMissed
+	
+	/**Takes a percentile of a ring of samples, by the nearest-rank method.
+	 * @param samples The ring of samples
+	 * @param count The total number of samples recorded into the ring
+	 * @param percentile The percentile, from 0 to 100
+	 * @return The sample at the percentile, in milliseconds, or 0 if no samples have been recorded
+	 */
+	private double percentile(long[] samples, long count, double percentile) {
+		if(percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile must be from 0 to 100: " + percentile);
+		
+		int size = (int) Math.min(count, WINDOW);
+		if(size == 0)
+			return 0;
+		
+		System.arraycopy(samples, 0, this.sorted, 0, size);
+		Arrays.sort(this.sorted, 0, size);
+		
+		int rank = (int) Math.ceil(percentile / 100 * size);
+		return this.sorted[Math.max(rank, 1) - 1] / NANOS_PER_MILLI;
+	}//end method percentile
+
+}//end class FrameTimes
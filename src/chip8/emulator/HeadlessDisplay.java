@@ -0,0 +1,18 @@
+package chip8.emulator;
+
+/**Display which presents nothing, for running an emulated CHIP-8 system without a GUI.<br>
+ * The system's display memory is still updated as normal, and can be inspected through {@link Chip8#getCurrentDisplayBuffer()}.
+ */
+public class HeadlessDisplay implements Display {
+	
+	/**Does nothing, as there is no screen to update.*/
+	@Override
+	public void update() {}
+	
+	/**Does nothing, as there is no screen to scale.
+	 * @param factor The factor to scale the display pixels.
+	 */
+	@Override
+	public void scale(int factor) {}
+	
+}//end class HeadlessDisplay
@@ -0,0 +1,339 @@
+package chip8.emulator;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**Keypad input recorded during a run, which can be replayed to reproduce the run exactly.<br>
+ * <p>While recording, the emulator's keypad is replaced by one which only changes at the end of each frame. At that point the keys held on the recorded keypad are copied to it,
+ * and each change is logged against the current cycle count. Keys pressed and released within a single frame are held for that frame, so no press is lost.
+ * Together with the seed of the random number generator and the instruction rate, the logged key changes determine every cycle of the run.</p>
+ * <p>Replaying applies the logged key changes to a fresh emulator at the same cycles. Recording and replaying must both begin before the first cycle, with the same ROM loaded,
+ * and replays are meant to be run headless, through {@link Chip8#runCycles(long)} or {@link Chip8#runFrames(long)}.</p>
+ * <p>Recordings are saved in a compact binary format: a header holding the instruction rate, seed, memory checksum, final cycle and number of key changes,
+ * followed by each key change as the variable-length number of cycles since the previous change, then a byte holding whether the key was pressed and the key.</p>
+ */
+public class InputRecording {
+
+	/** Identifies the start of a recording file, spelling "C8IR" */
+	private static final int MAGIC = 0x43384952;
+
+	/** The version of the recording format written by this emulator */
+	private static final short VERSION = 1;
+
+	/** The size in bytes of a recording file's header */
+	private static final int HEADER_SIZE = 4 + 2 + 4 + 8 + 4 + 8 + 4;
+
+	/** The maximum size in bytes of a single saved key change */
+	private static final int MAX_CHANGE_SIZE = 10 + 1;
+
+	/** The number of key changes space is initially reserved for */
+	private static final int INITIAL_CAPACITY = 256;
+
+	/* Recorded run */
+		/** The number of instructions run per second of emulated time */
+		private final int instructionsPerSecond;
+
+		/** The seed of the random number generator */
+		private final long randomSeed;
+
+		/** Checksum of main memory before the first cycle, identifying the ROM */
+		private final int memoryChecksum;
+
+		/** The cycle count at the end of the last frame recorded */
+		private long endCycle;
+
+		/** Logged key changes in order, each packing its cycle count above bit 5, whether the key was pressed at bit 4, and the key in the low nibble */
+		private long[] changes;
+
+		/** The number of logged key changes */
+		private int changeCount;
+
+	/* State of the recording or replay in progress */
+		/** The emulator being recorded or replayed, or null if neither is in progress */
+		private Chip8 system;
+
+		/** The keypad being recorded, or null if the recording is being replayed */
+		private Keypad source;
+
+		/** The keypad attached to the emulator, which only changes at the end of each frame */
+		private Keypad keypad;
+
+		/** The sequence number of the next edge event to be read from the keypad being recorded */
+		private long eventSequence;
+
+		/** Bit mask of the keys pressed on the keypad being recorded since the end of the last frame */
+		private int pressedSinceLastFrame;
+
+		/** The index of the next key change to be replayed */
+		private int nextChange;
+
+	/** Collects the keys pressed on the keypad being recorded, so that presses shorter than a frame are still seen */
+	private final KeyEventListener pressListener = (key, pressed, timestamp) -> {
+		if(pressed)
+			this.pressedSinceLastFrame |= 1 << key;
+	};
+
+	/**Creates a recording of a run.
+	 * @param instructionsPerSecond The number of instructions run per second of emulated time
+	 * @param randomSeed The seed of the random number generator
+	 * @param memoryChecksum Checksum of main memory before the first cycle
+	 * @param endCycle The cycle count at the end of the last frame recorded
+	 * @param changes The logged key changes
+	 * @param changeCount The number of logged key changes
+	 */
+	private InputRecording(int instructionsPerSecond, long randomSeed, int memoryChecksum, long endCycle, long[] changes, int changeCount) {
+		this.instructionsPerSecond = instructionsPerSecond;
+		this.randomSeed = randomSeed;
+		this.memoryChecksum = memoryChecksum;
+		this.endCycle = endCycle;
+		this.changes = changes;
+		this.changeCount = changeCount;
+	}//end constructor method
+
+	/**Starts recording the input to an emulator, replacing its keypad with one which only changes at the end of each frame.<br>
+	 * The emulator's instruction rate must already be set, and must not change while recording.
+	 * @param system The emulator to be recorded, which must not have run any cycles
+	 * @param source The keypad whose input is to be recorded
+	 * @return The recording in progress
+	 */
+	public static InputRecording startRecording(Chip8 system, Keypad source) {
+		if(system.getCycleCount() != 0)
+			throw new IllegalStateException("Recording must start before the first cycle");
+
+		InputRecording recording = new InputRecording(system.getInstructionsPerSecond(), system.getRandomSeed(), system.getMemoryChecksum(), 0, new long[INITIAL_CAPACITY], 0);
+		recording.system = system;
+		recording.source = source;
+		recording.keypad = new Keypad(system.getContext());
+		recording.eventSequence = source.getEventCount();
+
+		system.attachKeypad(recording.keypad);
+		system.attachInputRecording(recording);
+
+		system.getContext().trace(TraceLevel.INFO, TraceCategory.SYSTEM, "Started recording input");
+		return recording;
+	}//end method startRecording
+
+	/**Stops recording, returning the emulator to taking input straight from the recorded keypad.*/
+	public synchronized void stopRecording() {
+		if(this.system == null || this.source == null)
+			return;
+
+		this.system.attachInputRecording(null);
+		this.system.attachKeypad(this.source);
+		this.system.getContext().trace(TraceLevel.INFO, TraceCategory.SYSTEM, "Stopped recording input after %d cycles and %d key changes", this.endCycle, this.changeCount);
+		this.system = null;
+	}//end method stopRecording
+
+	/**Starts replaying the recorded input to an emulator, setting its instruction rate and random seed to those recorded and replacing its keypad.
+	 * @param system The emulator to replay to, which must not have run any cycles, with the recorded ROM loaded
+	 * @return True, if the replay was started. If not, as the loaded ROM differs from the one recorded, false.
+	 */
+	public synchronized boolean startReplay(Chip8 system) {
+		if(system.getCycleCount() != 0)
+			throw new IllegalStateException("Replay must start before the first cycle");
+
+		if(system.getMemoryChecksum() != this.memoryChecksum) {
+			System.err.println("Replay failed: The loaded ROM differs from the one recorded.");
+
+			return false;
+		}//end if
+
+		system.setInstructionsPerSecond(this.instructionsPerSecond);
+		system.setRandomSeed(this.randomSeed);
+
+		this.system = system;
+		this.source = null;
+		this.keypad = new Keypad(system.getContext());
+		this.nextChange = 0;
+
+		system.attachKeypad(this.keypad);
+		system.attachInputRecording(this);
+
+		system.getContext().trace(TraceLevel.INFO, TraceCategory.SYSTEM, "Started replaying %d cycles and %d key changes", this.endCycle, this.changeCount);
+		return true;
+	}//end method startReplay
+
+	/**Gets the cycle count at the end of the last frame recorded, which a replay runs until.
+	 * @return The final cycle count
+	 */
+	public synchronized long getEndCycle() {
+		return this.endCycle;
+	}//end method getEndCycle
+
+	/**Gets the number of key changes recorded.
+	 * @return The number of key changes
+	 */
+	public synchronized int getChangeCount() {
+		return this.changeCount;
+	}//end method getChangeCount
+
+	/**Gets the keypad being recorded.
+	 * @return The keypad being recorded, or null if the recording is being replayed
+	 */
+	Keypad getSource() {
+		return this.source;
+	}//end method getSource
+
+	/**Samples the input at the end of a frame. While recording, copies the keys held on the recorded keypad to the emulator's keypad, logging each change.
+	 * While replaying, applies the changes logged up to the current cycle.
+	 * @param cycle The cycle count at the end of the frame
+	 */
+	synchronized void frameCompleted(long cycle) {
+		if(this.source == null) {
+			while(this.nextChange < this.changeCount && (this.changes[this.nextChange] >>> 5) <= cycle)
+				apply(this.changes[this.nextChange++]);
+			return;
+		}//end if
+
+		this.endCycle = cycle;
+
+		this.eventSequence = this.source.readEvents(this.eventSequence, this.pressListener);
+		int mask = this.source.getKeyMask() | this.pressedSinceLastFrame;
+		this.pressedSinceLastFrame = 0;
+
+		for(int changed = mask ^ this.keypad.getKeyMask(); changed != 0; changed &= changed - 1) {
+			int key = Integer.numberOfTrailingZeros(changed);
+			long change = (cycle << 5) | ((mask & (1 << key)) != 0 ? 0x10 : 0) | key;
+
+			if(this.changeCount == this.changes.length)
+				this.changes = Arrays.copyOf(this.changes, 2 * this.changes.length);
+			this.changes[this.changeCount++] = change;
+
+			apply(change);
+		}//end for
+	}//end method frameCompleted
+
+	/**Saves the recording to the provided file location, replacing any existing file.
+	 * @param filename String containing the name and location of the recording file
+	 * @return True, if the save was successful. If not, false.
+	 */
+	public synchronized boolean save(String filename) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + this.changeCount * MAX_CHANGE_SIZE);
+		buffer.putInt(InputRecording.MAGIC);
+		buffer.putShort(InputRecording.VERSION);
+		buffer.putInt(this.instructionsPerSecond);
+		buffer.putLong(this.randomSeed);
+		buffer.putInt(this.memoryChecksum);
+		buffer.putLong(this.endCycle);
+		buffer.putInt(this.changeCount);
+
+		long previousCycle = 0;
+		for(int i = 0; i < this.changeCount; ++i) {
+			long cycle = this.changes[i] >>> 5;
+			putVarLong(buffer, cycle - previousCycle);
+			buffer.put((byte) (this.changes[i] & 0x1F));
+			previousCycle = cycle;
+		}//end for
+		buffer.flip();
+
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+		} catch(IOException io) {
+			System.err.println("Recording save failed: IO Exception occurred during write.");
+
+			return false;
+		}//end try-catch
+
+		return true;
+	}//end method save
+
+	/**Loads a recording from the provided file location.
+	 * @param filename String containing the name and location of the recording file
+	 * @return The loaded recording, or null if the load failed
+	 */
+	public static InputRecording load(String filename) {
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Recording file " + filename + " is too large");
+
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while(buffer.hasRemaining())
+				if(channel.read(buffer) < 0)
+					throw new IOException("Unexpected end of recording file " + filename);
+			buffer.flip();
+
+			if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != InputRecording.MAGIC)
+				throw new IllegalArgumentException("Not an input recording");
+			short version = buffer.getShort();
+			if(version != InputRecording.VERSION)
+				throw new IllegalArgumentException("Unsupported recording version " + version + ", expected " + InputRecording.VERSION);
+
+			int instructionsPerSecond = buffer.getInt();
+			long randomSeed = buffer.getLong();
+			int memoryChecksum = buffer.getInt();
+			long endCycle = buffer.getLong();
+			int changeCount = buffer.getInt();
+			if(changeCount < 0 || changeCount > buffer.remaining() / 2)
+				throw new IllegalArgumentException("Recording is truncated");
+
+			long[] changes = new long[Math.max(changeCount, INITIAL_CAPACITY)];
+			long cycle = 0;
+			for(int i = 0; i < changeCount; ++i) {
+				cycle += getVarLong(buffer);
+				changes[i] = (cycle << 5) | (buffer.get() & 0x1F);
+			}//end for
+
+			return new InputRecording(instructionsPerSecond, randomSeed, memoryChecksum, endCycle, changes, changeCount);
+		} catch(NoSuchFileException nsf) {
+			System.err.println("Recording load failed: Requested file " + filename + " could not be found.");
+		} catch(IOException io) {
+			System.err.println("Recording load failed: IO Exception occurred during read.");
+		} catch(BufferUnderflowException bue) {
+			System.err.println("Recording load failed: Recording is truncated");
+		} catch(IllegalArgumentException iae) {
+			System.err.println("Recording load failed: " + iae.getMessage());
+		}//end try-catch
+
+		return null;
+	}//end method load
+
+	/**Applies a logged key change to the emulator's keypad.
+	 * @param change The packed key change
+	 */
+	private void apply(long change) {
+		byte key = (byte) (change & 0xF);
+
+		if((change & 0x10) != 0)
+			this.keypad.pressKey(key);
+		else
+			this.keypad.releaseKey(key);
+	}//end method apply
+
+	/**Writes an unsigned number in as few bytes as it needs, seven bits per byte, with the high bit of each byte set if more bytes follow.
+	 * @param buffer The buffer the number is written to
+	 * @param value The number, treated as unsigned
+	 */
+	private static void putVarLong(ByteBuffer buffer, long value) {
+		while((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}//end while
+
+		buffer.put((byte) value);
+	}//end method putVarLong
+
+	/**Reads an unsigned number written by {@link #putVarLong(ByteBuffer, long)}.
+	 * @param buffer The buffer the number is read from
+	 * @return The number
+	 */
+	private static long getVarLong(ByteBuffer buffer) {
+		long value = 0;
+
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}//end for
+
+		throw new IllegalArgumentException("Recording holds a malformed cycle count");
+	}//end method getVarLong
+
+}//end class InputRecording
@@ -1,7 +1,10 @@
 package chip8.emulator;
 
+/**An emulated CHIP-8 operation, carried out on a system using the operands of a pre-decoded opcode.
+ * @author Douglas T. | GitHub: Pokepeople02
+ */
 public interface Instruction {
 	
-	public void execute();
+	public void execute(Chip8 system, DecodedInstruction args);
 
 }//end interface Instruction
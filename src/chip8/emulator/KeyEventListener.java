@@ -0,0 +1,13 @@
+package chip8.emulator;
+
+/**Receives the edge events recorded by a {@link Keypad}.*/
+public interface KeyEventListener {
+
+	/**Receives a single key press or release.
+	 * @param key The byte value of the key
+	 * @param pressed True, if the key was pressed. If it was released, false.
+	 * @param timestamp The value of {@link System#nanoTime()} when the event was recorded
+	 */
+	public void keyEvent(byte key, boolean pressed, long timestamp);
+
+}//end interface KeyEventListener
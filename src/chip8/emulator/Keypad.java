@@ -1,20 +1,16 @@
 package chip8.emulator;
 
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-import chip8.Chip8Emulator;
-
-/**Virtual keypad for emulated CHIP-8 system. Handles key press/release queries. 
+/**Virtual keypad for emulated CHIP-8 system. Handles key press/release queries.<br>
+ * The state of all 16 keys is held in one atomic bit mask, so presses and releases made on the UI thread are immediately visible to the emulator thread, and queries never allocate.
+ * Every press and release is also recorded as a timestamped edge event, the most recent {@link #EVENT_CAPACITY} of which can be read back with {@link #readEvents(long, KeyEventListener)}.
  * @author Douglas T. | GitHub: Pokepeople02
  */
 public class Keypad {
 
-	/** Mapping of keys and their associated byte value */
-	private HashMap<Byte, Key> keys = new HashMap<Byte, Key>(Keypad.KEYS.length);
-	
-	/** Nonexistent default dummy key to handle invalid key requests */
-	private static final Key dummyKey = new Key();
-	
 	/** Table of all keys' associated byte values */
 	public static final byte[] KEYS = {
 			0x0, 0x1, 0x2, 0x3,
@@ -22,65 +18,195 @@ public class Keypad {
 			0x8, 0x9, 0xA, 0xB,
 			0xC, 0xD, 0xE, 0xF
 	};
+
+	/** The number of most recent edge events kept */
+	public static final int EVENT_CAPACITY = 64;
+
+	/** Marks an edge event slot which has not been published */
+	private static final long UNPUBLISHED = -1;
+
+	/** Bit mask of the keys currently pressed, where bit n is set if the key with byte value n is pressed */
+	private final AtomicInteger keyMask = new AtomicInteger();
+
+	/**Ring of recorded edge events, two elements per event: its timestamp, then its marker.<br>
+	 * A marker packs the event's sequence number above bit 5, whether it was a press at bit 4, and the key in the low nibble. Markers are written after timestamps, publishing their events.
+	 */
+	private final AtomicLongArray events = new AtomicLongArray(2 * EVENT_CAPACITY);
+
+	/** The number of edge events recorded, which is also the sequence number of the next event */
+	private final AtomicLong eventCount = new AtomicLong();
+
+	/** Run on the pressing thread after every key press, to wake the emulation loop of an idle emulator, or null if nothing needs waking */
+	private volatile Runnable pressWaker;
 	
-	/** Creates a new CHIP-8 keypad */
+	/** Configuration and trace logging for the emulator this keypad belongs to */
+	private final EmulatorContext context;
+
+	/** Creates a new CHIP-8 keypad with tracing disabled */
 	public Keypad() {
-		for(byte keyByte : Keypad.KEYS)
-			this.keys.put(keyByte, new Key());
+		this(EmulatorContext.QUIET);
 	}//end constructor method
-	
+
+	/**Creates a new CHIP-8 keypad
+	 * @param context The configuration and trace logging for the emulator the keypad belongs to
+	 */
+	public Keypad(EmulatorContext context) {
+		this.context = context;
+
+		for(int i = 0; i < EVENT_CAPACITY; ++i)
+			this.events.set(2 * i + 1, Keypad.UNPUBLISHED);
+	}//end constructor method
+
 	/**Presses the key associated with the provided byte value.
 	 * If no such key exists, or if the requested key is already being pressed, does nothing.
 	 * @param key The byte value of the key to be pressed.
 	 */
 	public void pressKey(byte key) {
-		Chip8Emulator.debugLog("Pressing key " + Byte.toUnsignedInt(key));
-		
-		this.keys.getOrDefault(key, dummyKey).press();
+		if(this.context.isTracing(TraceLevel.DEBUG, TraceCategory.KEYPAD))
+			this.context.trace(TraceLevel.DEBUG, TraceCategory.KEYPAD, "Pressing key %d", Byte.toUnsignedInt(key));
+
+		if(!isKey(key))
+			return;
+
+		int mask;
+		do {
+			mask = this.keyMask.get();
+			if((mask & (1 << key)) != 0)
+				return;
+		} while(!this.keyMask.compareAndSet(mask, mask | (1 << key)));
+
+		recordEvent(key, true);
+
+		Runnable waker = this.pressWaker;
+		if(waker != null)
+			waker.run();
 	}//end method pressKey
-	
+
 	/**Releases the key associated with the provided byte value.
 	 * If no such key exists, or if the requested key is not being pressed, does nothing.
 	 * @param key The byte value of the key to be released.
 	 */
 	public void releaseKey(byte key) {
-		Chip8Emulator.debugLog("Releasing key " + Byte.toUnsignedInt(key));
-		
-		this.keys.getOrDefault(key, dummyKey).release();
+		if(this.context.isTracing(TraceLevel.DEBUG, TraceCategory.KEYPAD))
+			this.context.trace(TraceLevel.DEBUG, TraceCategory.KEYPAD, "Releasing key %d", Byte.toUnsignedInt(key));
+
+		if(!isKey(key))
+			return;
+
+		int mask;
+		do {
+			mask = this.keyMask.get();
+			if((mask & (1 << key)) == 0)
+				return;
+		} while(!this.keyMask.compareAndSet(mask, mask & ~(1 << key)));
+
+		recordEvent(key, false);
 	}//end method releaseKey
-	
+
 	/**Gets whether the key associated with the provided byte value is currently pressed.
 	 * @param requestedKey The byte value of the key to be queried
 	 * @return True, if the requested key is being pressed. If not, or if no such key exists, returns false.
 	 */
-	public boolean isKeyPressed(byte requestedKey) {	
-		Key result = this.keys.getOrDefault(requestedKey, Keypad.dummyKey);
-		return (result != Keypad.dummyKey && result.isPressed());
+	public boolean isKeyPressed(byte requestedKey) {
+		return isKey(requestedKey) && (this.keyMask.get() & (1 << requestedKey)) != 0;
 	}//end method isKeyPressed
-	
 
-	/**Gets all of the keys currently being pressed.
-	 * @return A byte array containing all of the byte values for all currently pressed keys. If no keys are currently pressed, returns an empty array.
+	/**Gets the state of all keys at once.
+	 * @return A bit mask of the keys currently pressed, where bit n is set if the key with byte value n is pressed
+	 */
+	public int getKeyMask() {
+		return this.keyMask.get();
+	}//end method getKeyMask
+
+	/**Gets the lowest value key currently being pressed.
+	 * @return The byte value of the lowest pressed key, or -1 if no keys are currently pressed
+	 */
+	public byte getLowestKeyPressed() {
+		int mask = this.keyMask.get();
+		return (mask == 0) ? -1 : (byte) Integer.numberOfTrailingZeros(mask);
+	}//end method getLowestKeyPressed
+
+	/**Gets all of the keys currently being pressed.<br>
+	 * Allocates a new array on every call; prefer {@link #getKeyMask()} or {@link #isKeyPressed(byte)} where allocation matters.
+	 * @return A byte array containing all of the byte values for all currently pressed keys, in ascending order. If no keys are currently pressed, returns an empty array.
 	 * */
 	public byte[] getKeysPressed() {
-		byte[] pressedKeysBuffer = new byte[Keypad.KEYS.length];
-		int numKeysPressed = 0;
-		
-		for(byte keyByte : Keypad.KEYS) {
-			if(isKeyPressed(keyByte)) {
-				Chip8Emulator.debugLog("Key " + keyByte + " is pressed");
-				
-				pressedKeysBuffer[numKeysPressed++] = keyByte;
-			}//end if
-			else
-				Chip8Emulator.debugLog("Key " + keyByte + " is not pressed");
+		int mask = this.keyMask.get();
+		if(this.context.isTracing(TraceLevel.TRACE, TraceCategory.KEYPAD))
+			this.context.trace(TraceLevel.TRACE, TraceCategory.KEYPAD, "Keys pressed: %04X", mask);
+
+		byte[] pressedKeys = new byte[Integer.bitCount(mask)];
+		for(int i = 0; mask != 0; ++i) {
+			pressedKeys[i] = (byte) Integer.numberOfTrailingZeros(mask);
+			mask &= mask - 1;
 		}//end for
-				
-		
-		byte[] pressedKeys = new byte[numKeysPressed];
-		System.arraycopy(pressedKeysBuffer, 0, pressedKeys, 0, numKeysPressed);
-		
+
 		return pressedKeys;
 	}//end method queryKeyboard
 
+	/**Sets the action run after every key press, replacing any set before. It runs on the thread pressing the key, so must be quick and must not block.
+	 * @param waker The action to be run, or null to run none
+	 */
+	void setPressWaker(Runnable waker) {
+		this.pressWaker = waker;
+	}//end method setPressWaker
+
+	/**Gets the number of edge events recorded since the keypad was created.
+	 * @return The sequence number the next edge event will be recorded with
+	 */
+	public long getEventCount() {
+		return this.eventCount.get();
+	}//end method getEventCount
+
+	/**Passes recorded edge events to a listener in the order they were recorded, without allocating.<br>
+	 * Events older than the most recent {@link #EVENT_CAPACITY} have been overwritten and are skipped.
+	 * @param fromSequence The sequence number of the first event to be read, usually the value returned by the previous call
+	 * @param listener The listener receiving each event
+	 * @return The sequence number following the last event read, from which reading should continue
+	 */
+	public long readEvents(long fromSequence, KeyEventListener listener) {
+		long end = this.eventCount.get();
+		long sequence = Math.max(fromSequence, end - EVENT_CAPACITY);
+
+		for(; sequence < end; ++sequence) {
+			int slot = 2 * (int) (sequence % EVENT_CAPACITY);
+
+			//Stop at an event whose recording has not finished
+			long marker = this.events.get(slot + 1);
+			if(marker == Keypad.UNPUBLISHED || (marker >>> 5) < sequence)
+				break;
+
+			//Skip an event overwritten by a newer one, even if it is overwritten while being read
+			long timestamp = this.events.get(slot);
+			if((marker >>> 5) != sequence || this.events.get(slot + 1) != marker)
+				continue;
+
+			listener.keyEvent((byte) (marker & 0xF), (marker & 0x10) != 0, timestamp);
+		}//end for
+
+		return sequence;
+	}//end method readEvents
+
+	/**Records a press or release as the newest edge event.
+	 * @param key The byte value of the key
+	 * @param pressed True, if the key was pressed. If it was released, false.
+	 */
+	private void recordEvent(byte key, boolean pressed) {
+		long timestamp = System.nanoTime();
+		long sequence = this.eventCount.getAndIncrement();
+		int slot = 2 * (int) (sequence % EVENT_CAPACITY);
+
+		this.events.set(slot + 1, Keypad.UNPUBLISHED);
+		this.events.set(slot, timestamp);
+		this.events.set(slot + 1, (sequence << 5) | (pressed ? 0x10 : 0) | key);
+	}//end method recordEvent
+
+	/**Gets whether a byte value is associated with a key.
+	 * @param value The byte value
+	 * @return True, if a key has the byte value. If not, false.
+	 */
+	private static boolean isKey(byte value) {
+		return (value & 0xF0) == 0;
+	}//end method isKey
+
 }//end class Keypad
@@ -0,0 +1,64 @@
+package chip8.emulator;
+
+/**The families of CHIP-8 opcodes, one for each emulated instruction, as resolved by the {@link InstructionMapper} from an opcode's most-significant nibble and, for $0xxx, $8xxx, $Exxx and $Fxxx opcodes, its sub-mapping.<br>
+ * Each emulator counts how many times it has executed an instruction of each family, which is reported through its {@link EmulatorMetrics}.
+ */
+public enum OpcodeFamily {
+	
+	CLS_00E0("00E0", Chip8::cls_00E0),
+	RET_00EE("00EE", Chip8::ret_00EE),
+	JP_1NNN("1nnn", Chip8::jp_1nnn),
+	CALL_2NNN("2nnn", Chip8::call_2nnn),
+	SE_3XKK("3xkk", Chip8::se_3xkk),
+	SNE_4XKK("4xkk", Chip8::sne_4xkk),
+	SE_5XY0("5xy0", Chip8::se_5xy0),
+	LD_6XKK("6xkk", Chip8::ld_6xkk),
+	ADD_7XKK("7xkk", Chip8::add_7xkk),
+	LD_8XY0("8xy0", Chip8::ld_8xy0),
+	OR_8XY1("8xy1", Chip8::or_8xy1),
+	AND_8XY2("8xy2", Chip8::and_8xy2),
+	XOR_8XY3("8xy3", Chip8::xor_8xy3),
+	ADD_8XY4("8xy4", Chip8::add_8xy4),
+	SUB_8XY5("8xy5", Chip8::sub_8xy5),
+	SHR_8XY6("8xy6", Chip8::shr_8xy6),
+	SUBN_8XY7("8xy7", Chip8::subn_8xy7),
+	SHL_8XYE("8xyE", Chip8::shl_8xyE),
+	SNE_9XY0("9xy0", Chip8::sne_9xy0),
+	LD_ANNN("Annn", Chip8::ld_Annn),
+	JP_BNNN("Bnnn", Chip8::jp_Bnnn),
+	RND_CXKK("Cxkk", Chip8::rnd_Cxkk),
+	DRW_DXYN("Dxyn", Chip8::drw_Dxyn),
+	SKP_EX9E("Ex9E", Chip8::skp_Ex9E),
+	SKNP_EXA1("ExA1", Chip8::sknp_ExA1),
+	LD_FX07("Fx07", Chip8::ld_Fx07),
+	LD_FX0A("Fx0A", Chip8::ld_Fx0A),
+	LD_FX15("Fx15", Chip8::ld_Fx15),
+	LD_FX18("Fx18", Chip8::ld_Fx18),
+	ADD_FX1E("Fx1E", Chip8::add_Fx1E),
+	LD_FX29("Fx29", Chip8::ld_Fx29),
+	LD_FX33("Fx33", Chip8::ld_Fx33),
+	LD_FX55("Fx55", Chip8::ld_Fx55),
+	LD_FX65("Fx65", Chip8::ld_Fx65),
+	
+	/** Every opcode which maps to no instruction, executed as a NOP */
+	INVALID("invalid", Chip8::nop_dummy);
+	
+	/** The opcode pattern of the family, with its operands as the lowercase letters x, y, k and n */
+	final String pattern;
+	
+	/** The instruction carried out for opcodes of the family */
+	final Instruction instruction;
+	
+	private OpcodeFamily(String pattern, Instruction instruction) {
+		this.pattern = pattern;
+		this.instruction = instruction;
+	}//end constructor method
+	
+	/**Gets the opcode pattern of the family, such as "8xy4".
+	 * @return The opcode pattern, or "invalid" for the family of invalid opcodes
+	 */
+	public String getPattern() {
+		return this.pattern;
+	}//end method getPattern
+	
+}//end enum OpcodeFamily
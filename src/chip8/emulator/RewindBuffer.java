@@ -0,0 +1,364 @@
+package chip8.emulator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**A bounded history of the emulator state at the end of every frame, which emulation can be rewound through.<br>
+ * Every {@link #getKeyframeInterval() keyframe interval} frames, a full snapshot is stored as a keyframe. Frames in between store only the memory pages and display rows
+ * which differ from the latest keyframe, plus the registers, so rewinding to any frame restores one keyframe and applies one delta.
+ * History is kept in a fixed-size byte array; once it is full, the oldest keyframe and its deltas are discarded together to make room.<br>
+ * Frames are recorded while the buffer is attached with {@link Chip8#attachRewindBuffer(RewindBuffer)}. Rewinding must be done from the thread running the emulator, or while emulation is stopped.
+ */
+public class RewindBuffer {
+
+	/** The default number of frames between keyframes */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = Chip8.FRAME_RATE;
+
+	/** The size in bytes of the memory pages compared between frames */
+	private static final int PAGE_SIZE = 64;
+
+	/** The number of memory pages compared between frames, one per bit of a delta's page mask */
+	private static final int PAGE_COUNT = Chip8.MAIN_MEMORY_SIZE / PAGE_SIZE;
+
+	/** The size in bytes of a packed display row */
+	private static final int ROW_SIZE = 8;
+
+	/** The size in bytes of the registers, stack, timers and emulated time, which every delta stores in full */
+	private static final int REGISTERS_SIZE = Chip8.SNAPSHOT_SIZE - Chip8.SNAPSHOT_REGISTERS_OFFSET;
+
+	/** The size in bytes of a delta's page and row masks */
+	private static final int DELTA_HEADER_SIZE = 8 + 4;
+
+	/** The number of frames recorded per minute of emulated time */
+	private static final int FRAMES_PER_MINUTE = 60 * Chip8.FRAME_RATE;
+
+	/** The emulator whose state is recorded */
+	private final Chip8 system;
+
+	/** The number of frames between keyframes */
+	private final int keyframeInterval;
+
+	/** Recorded keyframes and deltas, stored as a ring of variable-length entries */
+	private final byte[] history;
+
+	/** View of the history, used to read and write delta masks */
+	private final ByteBuffer historyBuffer;
+
+	/* Recorded entries, stored as a ring of slots from the oldest entry */
+		/** The offset in the history of each entry */
+		private final int[] entryOffset;
+
+		/** The length in bytes of each entry */
+		private final int[] entryLength;
+
+		/** The slot of the keyframe each entry is a delta of, or the entry's own slot if it is a keyframe */
+		private final int[] entryKeyframe;
+
+		/** The slot of the oldest recorded entry */
+		private int oldestEntry;
+
+		/** The number of recorded entries */
+		private int entryCount;
+
+		/** The offset in the history the next entry is written after */
+		private int writeOffset;
+
+		/** The number of bytes of history held by recorded entries */
+		private int bytesUsed;
+
+	/* State of the keyframe deltas are currently recorded against */
+		/** The latest keyframe's snapshot */
+		private final byte[] keyframe = new byte[Chip8.SNAPSHOT_SIZE];
+
+		/** The slot of the latest keyframe, or -1 if none has been recorded */
+		private int keyframeSlot = -1;
+
+		/** The number of entries recorded since the latest keyframe, including the keyframe itself */
+		private int framesSinceKeyframe;
+
+	/** Snapshot of the frame being recorded or restored */
+	private final byte[] frame = new byte[Chip8.SNAPSHOT_SIZE];
+
+	/** View of the snapshot of the frame being recorded or restored */
+	private final ByteBuffer frameBuffer = ByteBuffer.wrap(this.frame);
+
+	/**Creates a new, empty rewind buffer recording a keyframe every {@link #DEFAULT_KEYFRAME_INTERVAL} frames.
+	 * @param system The emulator whose state is to be recorded
+	 * @param capacity The maximum number of bytes of history to be kept. Must be at least two full snapshots.
+	 */
+	public RewindBuffer(Chip8 system, int capacity) {
+		this(system, capacity, DEFAULT_KEYFRAME_INTERVAL);
+	}//end constructor method
+
+	/**Creates a new, empty rewind buffer.
+	 * @param system The emulator whose state is to be recorded
+	 * @param capacity The maximum number of bytes of history to be kept. Must be at least two full snapshots.
+	 * @param keyframeInterval The number of frames between keyframes. Must be at least 1.
+	 */
+	public RewindBuffer(Chip8 system, int capacity, int keyframeInterval) {
+		if(capacity < 2 * Chip8.SNAPSHOT_SIZE)
+			throw new IllegalArgumentException("Rewind capacity must be at least " + 2 * Chip8.SNAPSHOT_SIZE + " bytes: " + capacity);
+		if(keyframeInterval < 1)
+			throw new IllegalArgumentException("Keyframe interval must be at least 1: " + keyframeInterval);
+
+		this.system = system;
+		this.keyframeInterval = keyframeInterval;
+		this.history = new byte[capacity];
+		this.historyBuffer = ByteBuffer.wrap(this.history);
+
+		//Every entry holds at least a delta's masks and registers
+		int maxEntries = capacity / (DELTA_HEADER_SIZE + REGISTERS_SIZE) + 1;
+		this.entryOffset = new int[maxEntries];
+		this.entryLength = new int[maxEntries];
+		this.entryKeyframe = new int[maxEntries];
+	}//end constructor method
+
+	/**Records the current emulator state as the newest frame of history, without allocating.<br>
+	 * Called by the emulator at the end of every frame while this buffer is attached.
+	 */
+	public void record() {
+		this.frameBuffer.clear();
+		this.system.snapshot(this.frameBuffer);
+
+		if(this.keyframeSlot < 0 || this.framesSinceKeyframe >= this.keyframeInterval || !recordDelta())
+			recordKeyframe();
+	}//end method record
+
+	/**Rewinds the emulator to the state recorded a number of frames before the newest frame, discarding all newer frames of history.
+	 * @param frames The number of frames to rewind by, where 0 restores the newest frame. Must be less than {@link #getFramesAvailable()}.
+	 */
+	public void rewind(int frames) {
+		if(frames < 0 || frames >= this.entryCount)
+			throw new IllegalArgumentException("Cannot rewind " + frames + " frames with " + this.entryCount + " frames of history");
+
+		int slot = slotAt(this.entryCount - 1 - frames);
+		int baseSlot = this.entryKeyframe[slot];
+
+		System.arraycopy(this.history, this.entryOffset[baseSlot], this.keyframe, 0, Chip8.SNAPSHOT_SIZE);
+		System.arraycopy(this.keyframe, 0, this.frame, 0, Chip8.SNAPSHOT_SIZE);
+		if(slot != baseSlot)
+			applyDelta(this.entryOffset[slot]);
+
+		this.frameBuffer.clear();
+		this.system.restore(this.frameBuffer);
+
+		//Newer frames are discarded, so that recording continues from the restored frame
+		for(int i = 0; i < frames; ++i)
+			this.bytesUsed -= this.entryLength[slotAt(this.entryCount - 1 - i)];
+		this.entryCount -= frames;
+		this.writeOffset = this.entryOffset[slot] + this.entryLength[slot];
+
+		this.keyframeSlot = baseSlot;
+		this.framesSinceKeyframe = Math.floorMod(slot - baseSlot, this.entryOffset.length) + 1;
+	}//end method rewind
+
+	/**Discards all recorded history.*/
+	public void clear() {
+		this.entryCount = 0;
+		this.writeOffset = 0;
+		this.bytesUsed = 0;
+		this.keyframeSlot = -1;
+		this.framesSinceKeyframe = 0;
+	}//end method clear
+
+	/**Gets the number of frames of history recorded, including the newest frame.
+	 * @return The number of frames available to rewind to
+	 */
+	public int getFramesAvailable() {
+		return this.entryCount;
+	}//end method getFramesAvailable
+
+	/**Gets the number of bytes of history held by recorded frames.
+	 * @return The bytes used
+	 */
+	public int getBytesUsed() {
+		return this.bytesUsed;
+	}//end method getBytesUsed
+
+	/**Gets the maximum number of bytes of history kept.
+	 * @return The capacity, in bytes
+	 */
+	public int getCapacity() {
+		return this.history.length;
+	}//end method getCapacity
+
+	/**Gets the average number of bytes of history used per minute of emulated time, measured over the frames recorded.
+	 * @return The bytes used per minute of history, or 0 if no frames are recorded
+	 */
+	public long getBytesPerMinute() {
+		if(this.entryCount == 0)
+			return 0;
+
+		return (long) this.bytesUsed * FRAMES_PER_MINUTE / this.entryCount;
+	}//end method getBytesPerMinute
+
+	/**Gets the number of frames between keyframes.
+	 * @return The keyframe interval
+	 */
+	public int getKeyframeInterval() {
+		return this.keyframeInterval;
+	}//end method getKeyframeInterval
+
+	/**Records the frame being recorded as a full keyframe, discarding as much old history as needed to fit it.*/
+	private void recordKeyframe() {
+		int offset = allocate(Chip8.SNAPSHOT_SIZE, false);
+		System.arraycopy(this.frame, 0, this.history, offset, Chip8.SNAPSHOT_SIZE);
+		System.arraycopy(this.frame, 0, this.keyframe, 0, Chip8.SNAPSHOT_SIZE);
+
+		this.keyframeSlot = addEntry(offset, Chip8.SNAPSHOT_SIZE, -1);
+		this.framesSinceKeyframe = 1;
+	}//end method recordKeyframe
+
+	/**Records the frame being recorded as a delta of the latest keyframe.<br>
+	 * A delta holds a mask of changed memory pages, a mask of changed display rows, the contents of each changed page and row, then the registers.
+	 * @return True, if the delta was recorded. If not, false, as fitting it would discard the latest keyframe.
+	 */
+	private boolean recordDelta() {
+		long pageMask = 0;
+		int length = DELTA_HEADER_SIZE + REGISTERS_SIZE;
+		for(int page = 0; page < PAGE_COUNT; ++page) {
+			int start = Chip8.SNAPSHOT_MEMORY_OFFSET + page * PAGE_SIZE;
+			if(!Arrays.equals(this.frame, start, start + PAGE_SIZE, this.keyframe, start, start + PAGE_SIZE)) {
+				pageMask |= 1L << page;
+				length += PAGE_SIZE;
+			}//end if
+		}//end for
+
+		int rowMask = 0;
+		for(int row = 0; row < Chip8.DISPLAY_HEIGHT; ++row) {
+			int start = Chip8.SNAPSHOT_DISPLAY_OFFSET + row * ROW_SIZE;
+			if(!Arrays.equals(this.frame, start, start + ROW_SIZE, this.keyframe, start, start + ROW_SIZE)) {
+				rowMask |= 1 << row;
+				length += ROW_SIZE;
+			}//end if
+		}//end for
+
+		int offset = allocate(length, true);
+		if(offset < 0)
+			return false;
+
+		this.historyBuffer.putLong(offset, pageMask);
+		this.historyBuffer.putInt(offset + 8, rowMask);
+
+		int position = offset + DELTA_HEADER_SIZE;
+		for(int page = 0; page < PAGE_COUNT; ++page)
+			if((pageMask & (1L << page)) != 0) {
+				System.arraycopy(this.frame, Chip8.SNAPSHOT_MEMORY_OFFSET + page * PAGE_SIZE, this.history, position, PAGE_SIZE);
+				position += PAGE_SIZE;
+			}//end if
+
+		for(int row = 0; row < Chip8.DISPLAY_HEIGHT; ++row)
+			if((rowMask & (1 << row)) != 0) {
+				System.arraycopy(this.frame, Chip8.SNAPSHOT_DISPLAY_OFFSET + row * ROW_SIZE, this.history, position, ROW_SIZE);
+				position += ROW_SIZE;
+			}//end if
+
+		System.arraycopy(this.frame, Chip8.SNAPSHOT_REGISTERS_OFFSET, this.history, position, REGISTERS_SIZE);
+
+		addEntry(offset, length, this.keyframeSlot);
+		this.framesSinceKeyframe++;
+		return true;
+	}//end method recordDelta
+
+	/**Applies a recorded delta to the frame being restored, which must hold the delta's keyframe.
+	 * @param offset The offset of the delta in the history
+	 */
+	private void applyDelta(int offset) {
+		long pageMask = this.historyBuffer.getLong(offset);
+		int rowMask = this.historyBuffer.getInt(offset + 8);
+
+		int position = offset + DELTA_HEADER_SIZE;
+		for(int page = 0; page < PAGE_COUNT; ++page)
+			if((pageMask & (1L << page)) != 0) {
+				System.arraycopy(this.history, position, this.frame, Chip8.SNAPSHOT_MEMORY_OFFSET + page * PAGE_SIZE, PAGE_SIZE);
+				position += PAGE_SIZE;
+			}//end if
+
+		for(int row = 0; row < Chip8.DISPLAY_HEIGHT; ++row)
+			if((rowMask & (1 << row)) != 0) {
+				System.arraycopy(this.history, position, this.frame, Chip8.SNAPSHOT_DISPLAY_OFFSET + row * ROW_SIZE, ROW_SIZE);
+				position += ROW_SIZE;
+			}//end if
+
+		System.arraycopy(this.history, position, this.frame, Chip8.SNAPSHOT_REGISTERS_OFFSET, REGISTERS_SIZE);
+	}//end method applyDelta
+
+	/**Finds room in the history for a new entry, discarding the oldest keyframes and their deltas until it fits.
+	 * @param length The length in bytes of the entry
+	 * @param keepKeyframe Whether the latest keyframe must be kept, as the entry is a delta of it
+	 * @return The offset in the history to write the entry at, or -1 if the entry does not fit without discarding the latest keyframe
+	 */
+	private int allocate(int length, boolean keepKeyframe) {
+		while(true) {
+			if(this.entryCount == 0) {
+				this.writeOffset = length;
+				return 0;
+			}//end if
+
+			int oldestOffset = this.entryOffset[this.oldestEntry];
+			if(this.entryCount < this.entryOffset.length) {
+				if(this.writeOffset > oldestOffset) {
+					//Free space runs from the newest entry to the end of the history, and from the start of the history to the oldest entry
+					if(length <= this.history.length - this.writeOffset)
+						return claim(this.writeOffset, length);
+					if(length <= oldestOffset)
+						return claim(0, length);
+				} else if(this.writeOffset < oldestOffset && length <= oldestOffset - this.writeOffset)
+					return claim(this.writeOffset, length);
+			}//end if
+
+			if(keepKeyframe && this.oldestEntry == this.keyframeSlot)
+				return -1;
+
+			discardOldest();
+		}//end while
+	}//end method allocate
+
+	/**Claims space in the history for a new entry.
+	 * @param offset The offset of the entry
+	 * @param length The length in bytes of the entry
+	 * @return The offset of the entry
+	 */
+	private int claim(int offset, int length) {
+		this.writeOffset = offset + length;
+		return offset;
+	}//end method claim
+
+	/**Adds a new entry as the newest recorded frame.
+	 * @param offset The offset of the entry in the history
+	 * @param length The length in bytes of the entry
+	 * @param keyframeSlot The slot of the keyframe the entry is a delta of, or -1 if the entry is a keyframe
+	 * @return The slot of the entry
+	 */
+	private int addEntry(int offset, int length, int keyframeSlot) {
+		int slot = slotAt(this.entryCount);
+		this.entryOffset[slot] = offset;
+		this.entryLength[slot] = length;
+		this.entryKeyframe[slot] = (keyframeSlot < 0) ? slot : keyframeSlot;
+
+		this.entryCount++;
+		this.bytesUsed += length;
+		return slot;
+	}//end method addEntry
+
+	/**Discards the oldest keyframe and all of its deltas.*/
+	private void discardOldest() {
+		do {
+			this.bytesUsed -= this.entryLength[this.oldestEntry];
+			this.oldestEntry = (this.oldestEntry + 1) % this.entryOffset.length;
+			this.entryCount--;
+		} while(this.entryCount > 0 && this.entryKeyframe[this.oldestEntry] != this.oldestEntry);
+
+		if(this.entryCount == 0)
+			clear();
+	}//end method discardOldest
+
+	/**Gets the slot of a recorded entry.
+	 * @param entry The index of the entry, from 0 for the oldest entry
+	 * @return The slot of the entry
+	 */
+	private int slotAt(int entry) {
+		return (this.oldestEntry + entry) % this.entryOffset.length;
+	}//end method slotAt
+
+}//end class RewindBuffer
@@ -0,0 +1,188 @@
+package chip8.emulator;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**Profiles where a ROM spends its cycles, counting every cycle against the address of the instruction it ran and the subroutine it ran in.<br>
+ * <p>A shadow call stack follows CALL and RET, building a tree of every distinct chain of subroutine calls seen. Cycles spent idle, while halted waiting for a key press
+ * or fast-forwarding an idle loop, are counted against the instruction which is waiting.</p>
+ * <p>Two reports can be written: a heat histogram of cycles per address, hottest first, and the call tree as collapsed stacks, one line per chain of calls with the cycles spent in it,
+ * which flamegraph tools such as flamegraph.pl and speedscope read directly. Subroutines are named by their address, as <code>sub_2A4</code>, below the ROM's <code>main</code> code.</p>
+ * <p>Cycles are counted while the profiler is attached with {@link Chip8#attachProfiler(RomProfiler)}. Reports should be written from the thread running the emulator, or while emulation is stopped.</p>
+ */
+public class RomProfiler {
+	
+	/**A chain of subroutine calls in the call tree, ending in the subroutine at its address.*/
+	private static class Frame {
+		
+		/** The frame which called this frame's subroutine, or null for the ROM's main code */
+		private final Frame caller;
+		
+		/** The address of the frame's subroutine */
+		private final short address;
+		
+		/** The number of cycles spent in the subroutine itself, outside any subroutines it called */
+		private long selfCycles;
+		
+		/** The first subroutine called from this frame, or null if none have been called */
+		private Frame firstCallee;
+		
+		/** The next subroutine called from this frame's caller, or null if this is the last */
+		private Frame nextSibling;
+		
+		private Frame(Frame caller, short address) {
+			this.caller = caller;
+			this.address = address;
+		}//end constructor method
+		
+	}//end class Frame
+	
+	/** The number of cycles counted against each address in main memory */
+	private final long[] addressCycles = new long[Chip8.MAIN_MEMORY_SIZE];
+	
+	/** The opcode last run from each address in main memory */
+	private final short[] addressOpcodes = new short[Chip8.MAIN_MEMORY_SIZE];
+	
+	/** The root of the call tree, the ROM's main code */
+	private final Frame main = new Frame(null, Chip8.ROM_START_ADDRESS);
+	
+	/** The frame of the subroutine currently running */
+	private Frame current = this.main;
+	
+	/** The total number of cycles counted */
+	private long cycles;
+	
+	/** The number of cycles counted while idle */
+	private long idleCycles;
+	
+	/**Counts a cycle running an instruction, then follows it into or out of a subroutine if it is a CALL or RET.
+	 * @param address The address the instruction was fetched from
+	 * @param instruction The instruction
+	 */
+	void instructionExecuted(int address, DecodedInstruction instruction) {
+		address &= Chip8.MAIN_MEMORY_SIZE - 1;
+		this.addressCycles[address]++;
+		this.addressOpcodes[address] = instruction.opcode;
+		this.current.selfCycles++;
+		this.cycles++;
+		
+		if(instruction.familyIndex == OpcodeFamily.CALL_2NNN.ordinal())
+			this.current = callee(this.current, instruction.addr);
+		else if(instruction.familyIndex == OpcodeFamily.RET_00EE.ordinal() && this.current.caller != null)
+			this.current = this.current.caller;
+	}//end method instructionExecuted
+	
+	/**Counts cycles passed while idle against the instruction waiting.
+	 * @param address The address of the waiting instruction
+	 * @param cycles The number of cycles passed
+	 */
+	void idleCyclesPassed(int address, long cycles) {
+		address &= Chip8.MAIN_MEMORY_SIZE - 1;
+		this.addressCycles[address] += cycles;
+		this.current.selfCycles += cycles;
+		this.cycles += cycles;
+		this.idleCycles += cycles;
+	}//end method idleCyclesPassed
+	
+	/** Returns the shadow call stack to the ROM's main code, as when the emulator's own call stack is replaced. */
+	void resetCallStack() {
+		this.current = this.main;
+	}//end method resetCallStack
+	
+	/**Gets the total number of cycles counted.
+	 * @return The cycle count
+	 */
+	public long getCycles() {
+		return this.cycles;
+	}//end method getCycles
+	
+	/**Gets the number of cycles counted against an address.
+	 * @param address The address in main memory
+	 * @return The cycle count
+	 */
+	public long getAddressCycles(int address) {
+		return this.addressCycles[address & (Chip8.MAIN_MEMORY_SIZE - 1)];
+	}//end method getAddressCycles
+	
+	/**Writes the heat histogram: every address cycles were counted against, with its opcode, the opcode's family, its cycles and their share of all cycles, hottest first.
+	 * @param out The stream the histogram is written to
+	 */
+	public void writeHeatHistogram(PrintStream out) {
+		Integer[] addresses = new Integer[Chip8.MAIN_MEMORY_SIZE];
+		for(int i = 0; i < addresses.length; ++i)
+			addresses[i] = i;
+		Arrays.sort(addresses, Comparator.comparingLong( (Integer address) -> this.addressCycles[address] ).reversed());
+		
+		out.println(String.format("# %d cycles, %d idle", this.cycles, this.idleCycles));
+		out.println("# address opcode family cycles percent");
+		for(int address : addresses) {
+			long cycles = this.addressCycles[address];
+			if(cycles == 0)
+				break;
+			
+			short opcode = this.addressOpcodes[address];
+			out.println(String.format("%03X %04X %s %d %.2f", address, opcode, InstructionMapper.getInstruction(opcode).getFamily().getPattern(),
+					cycles, 100.0 * cycles / this.cycles));
+		}//end for
+	}//end method writeHeatHistogram
+	
+	/**Writes the call tree as collapsed stacks: one line for each chain of subroutine calls cycles were spent in, naming each subroutine from <code>main</code> down, separated by semicolons,
+	 * then the cycles spent in the last subroutine itself.
+	 * @param out The stream the collapsed stacks are written to
+	 */
+	public void writeCollapsedStacks(PrintStream out) {
+		writeCollapsedStacks(out, this.main, new StringBuilder("main"));
+	}//end method writeCollapsedStacks
+	
+	/**Writes the heat histogram and collapsed stacks to files named after a common base name: <code>base.heat</code> and <code>base.folded</code>.
+	 * @param baseName The location and name of the files, without extension
+	 * @return True, if both files were written. If not, false.
+	 */
+	public boolean save(String baseName) {
+		try(PrintStream heat = new PrintStream(baseName + ".heat"); PrintStream folded = new PrintStream(baseName + ".folded")) {
+			writeHeatHistogram(heat);
+			writeCollapsedStacks(folded);
+		} catch(FileNotFoundException e) {
+			System.err.println("Profile save failed: " + e.getMessage());
+			return false;
+		}//end try-catch
+		
+		return true;
+	}//end method save
+	
+	/**Writes the collapsed stacks of a frame and everything it called.
+	 * @param out The stream the collapsed stacks are written to
+	 * @param frame The frame
+	 * @param stack The names of the frame's chain of subroutines, which is restored before returning
+	 */
+	private void writeCollapsedStacks(PrintStream out, Frame frame, StringBuilder stack) {
+		if(frame.selfCycles != 0)
+			out.println(stack + " " + frame.selfCycles);
+		
+		int length = stack.length();
+		for(Frame callee = frame.firstCallee; callee != null; callee = callee.nextSibling) {
+			stack.append(String.format(";sub_%03X", callee.address));
+			writeCollapsedStacks(out, callee, stack);
+			stack.setLength(length);
+		}//end for
+	}//end method writeCollapsedStacks
+	
+	/**Finds the frame of a subroutine called from a frame, adding it to the call tree if it has not been called from there before.
+	 * @param caller The calling frame
+	 * @param address The address of the subroutine called
+	 * @return The frame of the called subroutine
+	 */
+	private static Frame callee(Frame caller, short address) {
+		for(Frame callee = caller.firstCallee; callee != null; callee = callee.nextSibling)
+			if(callee.address == address)
+				return callee;
+		
+		Frame callee = new Frame(caller, address);
+		callee.nextSibling = caller.firstCallee;
+		caller.firstCallee = callee;
+		return callee;
+	}//end method callee
+	
+}//end class RomProfiler
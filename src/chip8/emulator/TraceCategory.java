@@ -0,0 +1,24 @@
+package chip8.emulator;
+
+/**Categories of emulator trace output, which can be enabled independently of one another.*/
+public enum TraceCategory {
+	
+	/** Instruction fetch, decode and execution */
+	CPU,
+	
+	/** Display memory updates */
+	DISPLAY,
+	
+	/** Keypad presses, releases and queries */
+	KEYPAD,
+	
+	/** Delay and sound timer updates */
+	TIMERS,
+	
+	/** Emulator lifecycle, such as ROM loads and emulation starting or stopping */
+	SYSTEM;
+	
+	/** The bit representing this category in a set of enabled categories */
+	final int mask = 1 << ordinal();
+	
+}//end enum TraceCategory
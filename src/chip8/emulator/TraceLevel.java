@@ -0,0 +1,23 @@
+package chip8.emulator;
+
+/**Levels of detail for emulator trace output, from least to most verbose.<br>
+ * Tracing at a level also enables all less verbose levels.
+ */
+public enum TraceLevel {
+	
+	/** No trace output */
+	OFF,
+	
+	/** Failures the emulator recovered from */
+	ERROR,
+	
+	/** Emulator lifecycle events, such as ROM loads and emulation starting or stopping */
+	INFO,
+	
+	/** Infrequent runtime events, such as key presses and invalid opcodes */
+	DEBUG,
+	
+	/** Every instruction, pixel and timer tick */
+	TRACE;
+	
+}//end enum TraceLevel
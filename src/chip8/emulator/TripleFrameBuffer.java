@@ -0,0 +1,70 @@
+package chip8.emulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**Hands completed frames of an emulator's display from the thread running the emulator to a single renderer thread, such as the Swing event dispatch thread, without either ever blocking.<br>
+ * Three frames are kept. The emulator copies each completed frame into its back frame, then swaps the back frame with the shared middle frame in one atomic step.
+ * The renderer swaps its front frame with the middle frame in the same way whenever a newer frame has been published, and reads only its front frame, which the emulator never touches.
+ * The renderer therefore always sees a whole frame, exactly as it was at the end of a 60 Hz frame of emulated time, and simply skips frames it was too slow to take.
+ */
+public class TripleFrameBuffer {
+	
+	/** The bits of the shared state holding the index of the middle frame */
+	private static final int INDEX_MASK = 0b011;
+	
+	/** The bit of the shared state set when the middle frame was published after the renderer last took a frame */
+	private static final int FRESH = 0b100;
+	
+	/** The packed rows of each of the three frames */
+	private final long[][] frames = new long[3][Chip8.DISPLAY_HEIGHT];
+	
+	/** The display memory version each frame was published at */
+	private final long[] versions = new long[3];
+	
+	/** The index of the middle frame, plus the fresh bit */
+	private final AtomicInteger middle = new AtomicInteger(1);
+	
+	/** The index of the frame being written by the emulator */
+	private int back = 0;
+	
+	/** The index of the frame being read by the renderer */
+	private int front = 2;
+	
+	/**Publishes a completed frame. Must only be called from the thread running the emulator.
+	 * @param rows The packed rows of the display memory, which are copied
+	 * @param version The display memory version of the frame
+	 */
+	void publish(long[] rows, long version) {
+		System.arraycopy(rows, 0, this.frames[this.back], 0, Chip8.DISPLAY_HEIGHT);
+		this.versions[this.back] = version;
+		
+		this.back = this.middle.getAndSet(this.back | FRESH) & INDEX_MASK;
+	}//end method publish
+	
+	/**Takes the most recently published frame as the front frame, if a newer frame has been published since the last one taken. Must only be called from the renderer thread.
+	 * @return True, if a newer frame was taken. If not, false, and the front frame is unchanged.
+	 */
+	public boolean acquire() {
+		if((this.middle.get() & FRESH) == 0)
+			return false;
+		
+		this.front = this.middle.getAndSet(this.front) & INDEX_MASK;
+		return true;
+	}//end method acquire
+	
+	/**Gets the packed rows of the front frame, which stay unchanged until the next frame is acquired. Must only be called from the renderer thread.
+	 * @return An array of {@link Chip8#DISPLAY_HEIGHT} packed rows, laid out as by {@link Chip8#getCurrentDisplayBuffer()}, which must not be modified.
+	 * All pixels are off until the first frame is acquired.
+	 */
+	public long[] getFrontFrame() {
+		return this.frames[this.front];
+	}//end method getFrontFrame
+	
+	/**Gets the display memory version the front frame was published at. Must only be called from the renderer thread.
+	 * @return The version of the front frame, or 0 if no frame has been acquired yet
+	 */
+	public long getFrontFrameVersion() {
+		return this.versions[this.front];
+	}//end method getFrontFrameVersion
+
+}//end class TripleFrameBuffer
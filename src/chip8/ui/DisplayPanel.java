@@ -2,68 +2,251 @@ package chip8.ui;
 
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.DisplayMode;
+import java.awt.Font;
 import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
 import chip8.emulator.Chip8;
 import chip8.emulator.Display;
+import chip8.emulator.FrameTimes;
+import chip8.emulator.TripleFrameBuffer;
 
 @SuppressWarnings("serial")
 public class DisplayPanel extends JPanel implements Display {
 	
-	private Chip8 system;
+	/** The completed frames published by the associated CHIP-8, read only on the event dispatch thread */
+	private final TripleFrameBuffer frames;
+	
+	/** The frame times of presenting the associated CHIP-8's frames, recorded into its metrics */
+	private final FrameTimes frameTimes;
 	
 	private int scaleFactor = 1;
 	
+	/** Unscaled 64 * 32 image of the display, drawn scaled onto the panel */
+	private final BufferedImage frameImage = new BufferedImage(Chip8.DISPLAY_WIDTH, Chip8.DISPLAY_HEIGHT, BufferedImage.TYPE_INT_RGB);
+	
+	/** The RGB pixels backing the frame image, in row-major order */
+	private final int[] framePixels = ((DataBufferInt) this.frameImage.getRaster().getDataBuffer()).getData();
+	
+	/* Presentation, paced by a timer on the event dispatch thread */
+		/** Fires once at each presentation deadline, then is restarted for the next deadline */
+		private final Timer presentTimer = new Timer(0, e -> present());
+		
+		/** The interval between presentation deadlines, in nanoseconds */
+		private long presentPeriod;
+		
+		/** The time the next presentation is due */
+		private long nextPresentTime;
+		
+		/** The time of the last presentation tick, or 0 if there has not been one yet */
+		private long lastPresentTime;
+		
+		/** Whether frame times are drawn over the display */
+		private boolean overlayVisible = false;
+		
+		/** The font of the frame time overlay, sized to the display scale */
+		private Font overlayFont = overlayFont(1);
+	
 	public static final Color SCREEN_PIXEL_ON = Color.WHITE;
 	
 	public static final Color SCREEN_PIXEL_OFF = Color.BLACK;
-
-	/**Creates a new 32 * 64 pixel visualization for the supplied Chip8 system.
+	
+	/** The color of the frame time overlay's text */
+	public static final Color OVERLAY_TEXT = Color.GREEN;
+	
+	/** The color behind the frame time overlay's text, which is partly transparent */
+	public static final Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 160);
+	
+	/** The fastest rate frames are presented at, which is the rate the CHIP-8 completes them at */
+	private static final int MAX_PRESENT_RATE = Chip8.FRAME_RATE;
+	
+	/** The number of nanoseconds in a second */
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+	
+	/** The number of nanoseconds in a millisecond */
+	private static final long NANOS_PER_MILLI = 1_000_000L;
+	
+	/**Creates a new 32 * 64 pixel visualization for the supplied Chip8 system.<br>
+	 * Once shown, the panel presents the system's latest completed frame at a steady 60 Hz, or the monitor's refresh rate if lower.
+	 * Frames completed in between are never shown, and if the event dispatch thread falls behind, the deadlines it missed are skipped rather than presented late.
 	 * @param chip8 The emulated Chip8 system that this display visualizes.
 	 */
 	public DisplayPanel(Chip8 chip8) {
-		this.system = chip8;
+		this.frames = chip8.getFrameBuffer();
+		this.frameTimes = chip8.getMetrics().getFrameTimes();
+		this.presentTimer.setRepeats(false);
 	}//end constructor method
 	
 	@Override
 	public Dimension getPreferredSize() {
 		return new Dimension(scaleFactor * Chip8.DISPLAY_WIDTH, scaleFactor * Chip8.DISPLAY_HEIGHT);
 	}//end method getPreferredSize
-
-	/**Updates the pixels of the display based on the current state of the display buffer of the associated CHIP-8 system*/
-	public void update() {
-		repaint();
-	}//end method update
+	
+	/**Does nothing, as the panel presents the latest completed frame on its own steady timer, rather than whenever the associated CHIP-8 system publishes one*/
+	public void update() {}
 	
 	/**Scales the display by the provided factor.
 	 * @param factor The factor to scale the display pixels.
 	 */
 	public void scale(int factor) {
 		this.scaleFactor = factor;
+		this.overlayFont = overlayFont(factor);
 		repaint();
 	}//end method scale
 	
+	/**Shows or hides live frame time percentiles over the display.
+	 * @param visible True, if the overlay should be shown. If not, false.
+	 */
+	public void setOverlayVisible(boolean visible) {
+		this.overlayVisible = visible;
+		repaint();
+	}//end method setOverlayVisible
+	
+	/**Gets whether live frame time percentiles are shown over the display.
+	 * @return True, if the overlay is shown. If not, false.
+	 */
+	public boolean isOverlayVisible() {
+		return this.overlayVisible;
+	}//end method isOverlayVisible
+	
+	/**Starts presenting frames once the panel can be shown.*/
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		
+		this.presentPeriod = NANOS_PER_SECOND / getPresentRate();
+		this.nextPresentTime = System.nanoTime();
+		this.lastPresentTime = 0;
+		schedulePresent();
+	}//end method addNotify
+	
+	/**Stops presenting frames once the panel can no longer be shown.*/
+	@Override
+	public void removeNotify() {
+		this.presentTimer.stop();
+		super.removeNotify();
+	}//end method removeNotify
+	
+	/**Renders the latest frame completed by the associated CHIP-8 into the panel's image, if a newer frame has been published since the last one rendered.<br>
+	 * The frame is never written by the CHIP-8 while held, so it is never torn. Must be called on the event dispatch thread, unless the panel is not shown.
+	 * @return True, if a newer frame was rendered. If not, false.
+	 */
+	public boolean renderLatestFrame() {
+		if(!this.frames.acquire())
+			return false;
+		
+		long[] frame = this.frames.getFrontFrame();
+		
+		int pixelOn = SCREEN_PIXEL_ON.getRGB();
+		int pixelOff = SCREEN_PIXEL_OFF.getRGB();
+		
+		int pixel = 0;
+		for(int row = 0; row < Chip8.DISPLAY_HEIGHT; ++row) {
+			long displayRow = frame[row];
+			
+			for(int column = 0; column < Chip8.DISPLAY_WIDTH; ++column)
+				this.framePixels[pixel++] = (displayRow & Chip8.pixelMask(column)) != 0 ? pixelOn : pixelOff;
+		}//end for
+		
+		return true;
+	}//end method renderLatestFrame
+	
 	/**
-	 * Paints rectangular colored pixels based on the current state of the associated CHIP-8's display memory buffer.
+	 * Paints the display as one scaled image of the latest frame rendered, with the frame time overlay on top if it is shown.
 	 */
 	@Override
 	protected void paintComponent(Graphics g) {
-		super.paintComponent(g);
+		g.drawImage(this.frameImage, 0, 0, scaleFactor * Chip8.DISPLAY_WIDTH, scaleFactor * Chip8.DISPLAY_HEIGHT, null);
 		
-		boolean[][] currDisplayBuffer = this.system.getCurrentDisplayBuffer();
+		if(this.overlayVisible)
+			paintOverlay(g);
+	}//end method paintComponent
+	
+	/**Presents the latest completed frame, if it is newer than the one shown, then schedules the next presentation.<br>
+	 * Run by the presentation timer on the event dispatch thread, once per deadline. The frame is painted straight away, rather than queuing a repaint,
+	 * so that it is shown on the tick it was presented on, and so that the time spent presenting it can be measured.
+	 */
+	private void present() {
+		long now = System.nanoTime();
 		
-		for(int column = 0; column < Chip8.DISPLAY_WIDTH; ++column)
-			for(int row = 0; row < Chip8.DISPLAY_HEIGHT; ++row) {
-				if(currDisplayBuffer[column][row])
-					g.setColor(SCREEN_PIXEL_ON);
-				else
-					g.setColor(SCREEN_PIXEL_OFF);
-				
-				g.fillRect(column * scaleFactor , row * scaleFactor, scaleFactor, scaleFactor);
-			}//end for
+		//Deadlines passed while the event dispatch thread was busy are skipped, not presented late back-to-back
+		long late = now - this.nextPresentTime;
+		long missedTicks = (late > 0) ? late / this.presentPeriod : 0;
+		this.nextPresentTime += (missedTicks + 1) * this.presentPeriod;
 		
-	}//end method paintComponent
+		if(this.lastPresentTime != 0)
+			this.frameTimes.tickCompleted(now - this.lastPresentTime, missedTicks);
+		this.lastPresentTime = now;
+		
+		boolean presented = renderLatestFrame();
+		if(presented || this.overlayVisible) {
+			paintImmediately(0, 0, getWidth(), getHeight());
+			Toolkit.getDefaultToolkit().sync();
+		}//end if
+		
+		if(presented)
+			this.frameTimes.framePresented(System.nanoTime() - now);
+		
+		schedulePresent();
+	}//end method present
+	
+	/**Restarts the presentation timer to fire at the next presentation deadline.*/
+	private void schedulePresent() {
+		long delay = Math.max(0, this.nextPresentTime - System.nanoTime());
+		
+		//Swing timers count whole milliseconds, so round up to fire no earlier than the deadline
+		this.presentTimer.setInitialDelay((int) ((delay + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI));
+		this.presentTimer.restart();
+	}//end method schedulePresent
+	
+	/**Gets the rate frames are presented at.
+	 * @return 60 Hz, or the refresh rate of the monitor showing the panel if it is known and lower
+	 */
+	private int getPresentRate() {
+		GraphicsConfiguration configuration = getGraphicsConfiguration();
+		if(configuration == null)
+			return MAX_PRESENT_RATE;
+		
+		int refreshRate = configuration.getDevice().getDisplayMode().getRefreshRate();
+		if(refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN || refreshRate >= MAX_PRESENT_RATE)
+			return MAX_PRESENT_RATE;
+		
+		return refreshRate;
+	}//end method getPresentRate
+	
+	/**Paints the frame time overlay in the top-left corner of the display: the 50th, 95th and 99th percentile frame times, the 99th percentile time spent presenting a frame, and the number of missed ticks.
+	 * @param g The graphics the display is being painted with
+	 */
+	private void paintOverlay(Graphics g) {
+		String frameLine = String.format("frame p50 %.1f  p95 %.1f  p99 %.1f ms", this.frameTimes.getFrameTimePercentile(50),
+				this.frameTimes.getFrameTimePercentile(95), this.frameTimes.getFrameTimePercentile(99));
+		String renderLine = String.format("render p99 %.2f ms  missed %d", this.frameTimes.getRenderTimePercentile(99), this.frameTimes.getTicksMissed());
+		
+		g.setFont(this.overlayFont);
+		int lineHeight = g.getFontMetrics().getHeight();
+		int width = Math.max(g.getFontMetrics().stringWidth(frameLine), g.getFontMetrics().stringWidth(renderLine));
+		
+		g.setColor(OVERLAY_BACKGROUND);
+		g.fillRect(0, 0, width + 8, 2 * lineHeight + 4);
+		
+		g.setColor(OVERLAY_TEXT);
+		g.drawString(frameLine, 4, lineHeight);
+		g.drawString(renderLine, 4, 2 * lineHeight);
+	}//end method paintOverlay
+	
+	/**Creates the font of the frame time overlay for a display scale.
+	 * @param factor The factor the display pixels are scaled by
+	 * @return A monospaced font, at least 9 points in size
+	 */
+	private static Font overlayFont(int factor) {
+		return new Font(Font.MONOSPACED, Font.PLAIN, Math.max(9, 2 * factor));
+	}//end method overlayFont
 
 }//end class DisplayVisual
@@ -8,13 +8,16 @@ import chip8.emulator.Keypad;
 
 public class KeyboardAdapter extends KeyAdapter {
 	
-	private Keypad emulatedKeypad = new Keypad();
+	private final Keypad emulatedKeypad;
 	
 	/** Mapping of keyboard key IDs to the byte value of their respective Keypad key */
 	private final HashMap<Integer, Byte> controlMap = new HashMap<Integer, Byte>(Keypad.KEYS.length);
 	
-	/**Creates a new KeyboardAdapter with the default control mapping*/
-	public KeyboardAdapter() {
+	/**Creates a new KeyboardAdapter with the default control mapping
+	 * @param keypad The emulated keypad to send key presses and releases to
+	 */
+	public KeyboardAdapter(Keypad keypad) {
+		this.emulatedKeypad = keypad;
 		initDefaultControlMap();
 	}//end constructor method
 
@@ -1,8 +1,13 @@
 package chip8.ui;
 
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+
 import javax.swing.JFrame;
+import javax.swing.Timer;
 
 import chip8.emulator.Chip8;
+import chip8.emulator.EmulationLoop;
 
 @SuppressWarnings("serial")
 public class MainWindow extends JFrame {
@@ -11,6 +16,11 @@ public class MainWindow extends JFrame {
 	private DisplayPanel emulatorDisplay;
 	private final KeyboardAdapter emulatorController;
 	
+	/** Interval between updates of the achieved emulation speed shown in the title, in milliseconds */
+	private static final int SPEED_REPORT_INTERVAL = 1000;
+	
+	private static final String TITLE = "CHIP-8 Emulator";
+	
 	/**Creates the main window to drive the emulator.
 	 * @param rom The location of the ROM to be loaded
 	 * @param initialScale The initial scale factor for the emulator's display
@@ -28,15 +38,33 @@ public class MainWindow extends JFrame {
 	
 	private void initWindow() {
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		setTitle("CHIP-8 Emulator");
+		setTitle(TITLE);
 		setResizable(false);
 		isFocused();
 		
 		setContentPane(this.emulatorDisplay);
 		addKeyListener(this.emulatorController);
 		
+		//F3 shows or hides the frame time overlay
+		addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(KeyEvent e) {
+				if(e.getKeyCode() == KeyEvent.VK_F3)
+					emulatorDisplay.setOverlayVisible(!emulatorDisplay.isOverlayVisible());
+			}//end method keyPressed
+		});
+		
 		this.pack();
 		this.setVisible(true);
+		
+		new Timer(SPEED_REPORT_INTERVAL, e -> reportSpeed()).start();
 	}//end method frameInit
 	
+	/**Shows the achieved and target emulation speeds in the window title.*/
+	private void reportSpeed() {
+		EmulationLoop loop = this.emulator.getEmulationLoop();
+		if(loop != null)
+			setTitle(String.format("%s - %.0f / %d IPS", TITLE, loop.getAchievedInstructionsPerSecond(), loop.getInstructionsPerSecond()));
+	}//end method reportSpeed
+	
 }//end class MainWindow